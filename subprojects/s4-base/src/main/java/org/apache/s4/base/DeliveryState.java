@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+/**
+ * Progress of the delivery of a message that an {@link EventMessageHandler} did not fully accept.
+ * <p>
+ * A listener that retries a message passes the same state to each attempt, so that the handler resumes where the
+ * previous attempt stopped instead of starting over. The state is owned by the listener, which clears it once the
+ * message is accepted. The content is opaque to the listener.
+ */
+public class DeliveryState {
+
+    private Object attachment;
+
+    /**
+     * @return what the handler recorded during previous attempts, or <code>null</code> on the first attempt
+     */
+    public Object get() {
+        return attachment;
+    }
+
+    public void set(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public void clear() {
+        attachment = null;
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.apache.s4.base;
 
+import java.nio.ByteBuffer;
+
 /**
  * <p>
  * Encapsulates application-level events of type {@link Event}.
@@ -27,46 +29,225 @@ package org.apache.s4.base;
  * application.
  * </p>
  * <p>
- * Includes routing information (application name, stream name), so that this message can be dispatched at the
- * communication level.
+ * Includes routing information (application id, stream id), so that this message can be dispatched at the
+ * communication level. Stream ids are agreed upon cluster-wide, see
+ * <code>org.apache.s4.comm.topology.RemoteStreams</code>. Messages sent to a given PE instance also carry the hash of
+ * the key, which the receiving node uses to route the message without deserializing the event, and usually the key
+ * itself, so that the receiving stream does not need to extract it from the event again.
+ * </p>
+ * <p>
+ * Messages sent by another app, through a remote stream, are flagged: their payload is serialized by the node of the
+ * producer app, which does not know the serializers registered by the consumer app.
+ * </p>
+ * <p>
+ * Messages that stay within the JVM may carry the event object itself instead of its serialized form. That reference
+ * is never serialized.
+ * </p>
+ * <p>
+ * The serialized form is held in a {@link ByteBuffer}, so that a received message can refer to the network buffer it
+ * was decoded from instead of copying it. The content of that buffer must not be modified.
  * </p>
  * 
  */
 public class EventMessage {
 
-    private String appName;
-    private String streamName;
-    private byte[] serializedEvent;
+    private final int appId;
+    private final int streamId;
+    private final boolean keyed;
+    private final long keyHash;
+    private final String key;
+    private final ByteBuffer serializedEvent;
+    private final transient Event event;
+    private final boolean fromOtherApp;
+
+    /**
+     * Creates a message for all the PE instances of the target stream.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream
+     * @param serializedEvent
+     *            application-specific {@link Event} instance in serialized form
+     */
+    public EventMessage(int appId, int streamId, byte[] serializedEvent) {
+        this(appId, streamId, false, 0, null, ByteBuffer.wrap(serializedEvent), null);
+    }
+
+    /**
+     * Same as {@link #EventMessage(int, int, byte[])}, for an event serialized in the remaining bytes of a buffer.
+     */
+    public EventMessage(int appId, int streamId, ByteBuffer serializedEvent) {
+        this(appId, streamId, false, 0, null, serializedEvent, null, false);
+    }
+
+    /**
+     * Same as {@link #EventMessage(int, int, ByteBuffer)}, for an event that may be sent by another app.
+     * 
+     * @param fromOtherApp
+     *            true if the event is serialized by the node of another app, see {@link #isFromOtherApp()}
+     */
+    public EventMessage(int appId, int streamId, ByteBuffer serializedEvent, boolean fromOtherApp) {
+        this(appId, streamId, false, 0, null, serializedEvent, null, fromOtherApp);
+    }
 
-    public EventMessage() {
+    /**
+     * Creates a message for the PE instance with the given key hash.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream
+     * @param keyHash
+     *            hash of the key of the target PE instance, as computed by the {@link Hasher}
+     * @param serializedEvent
+     *            application-specific {@link Event} instance in serialized form
+     */
+    public EventMessage(int appId, int streamId, long keyHash, byte[] serializedEvent) {
+        this(appId, streamId, true, keyHash, null, ByteBuffer.wrap(serializedEvent), null);
     }
 
     /**
+     * Same as {@link #EventMessage(int, int, long, byte[])}, for an event serialized in the remaining bytes of a
+     * buffer.
+     */
+    public EventMessage(int appId, int streamId, long keyHash, ByteBuffer serializedEvent) {
+        this(appId, streamId, true, keyHash, null, serializedEvent, null);
+    }
+
+    /**
+     * Creates a message for the PE instance with the given key.
      * 
-     * @param appName
-     *            name of the application
-     * @param streamName
-     *            name of the stream
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream
+     * @param keyHash
+     *            hash of the key of the target PE instance, as computed by the {@link Hasher}
+     * @param key
+     *            the key of the target PE instance, may be <code>null</code>
      * @param serializedEvent
      *            application-specific {@link Event} instance in serialized form
      */
-    public EventMessage(String appName, String streamName, byte[] serializedEvent) {
-        super();
-        this.appName = appName;
-        this.streamName = streamName;
+    public EventMessage(int appId, int streamId, long keyHash, String key, byte[] serializedEvent) {
+        this(appId, streamId, true, keyHash, key, ByteBuffer.wrap(serializedEvent), null);
+    }
+
+    /**
+     * Same as {@link #EventMessage(int, int, long, String, byte[])}, for an event serialized in the remaining bytes of
+     * a buffer.
+     */
+    public EventMessage(int appId, int streamId, long keyHash, String key, ByteBuffer serializedEvent) {
+        this(appId, streamId, true, keyHash, key, serializedEvent, null);
+    }
+
+    /**
+     * Creates a message for local delivery, which holds a reference to the event instead of its serialized form.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream
+     * @param event
+     *            application-specific {@link Event} instance
+     */
+    public EventMessage(int appId, int streamId, Event event) {
+        this(appId, streamId, false, 0, null, null, event);
+    }
+
+    /**
+     * Creates a message for local delivery to the PE instance with the given key.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream
+     * @param keyHash
+     *            hash of the key of the target PE instance, as computed by the {@link Hasher}
+     * @param key
+     *            the key of the target PE instance, may be <code>null</code>
+     * @param event
+     *            application-specific {@link Event} instance
+     */
+    public EventMessage(int appId, int streamId, long keyHash, String key, Event event) {
+        this(appId, streamId, true, keyHash, key, null, event);
+    }
+
+    private EventMessage(int appId, int streamId, boolean keyed, long keyHash, String key, ByteBuffer serializedEvent,
+            Event event) {
+        this(appId, streamId, keyed, keyHash, key, serializedEvent, event, false);
+    }
+
+    private EventMessage(int appId, int streamId, boolean keyed, long keyHash, String key, ByteBuffer serializedEvent,
+            Event event, boolean fromOtherApp) {
+        this.appId = appId;
+        this.streamId = streamId;
+        this.keyed = keyed;
+        this.keyHash = keyHash;
+        this.key = key;
         this.serializedEvent = serializedEvent;
+        this.event = event;
+        this.fromOtherApp = fromOtherApp;
+    }
+
+    public int getAppId() {
+        return appId;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return true if the message targets a single PE instance, identified by {@link #getKeyHash()}
+     */
+    public boolean isKeyed() {
+        return keyed;
+    }
+
+    /**
+     * @return the hash of the key of the target PE instance, only meaningful when {@link #isKeyed()}
+     */
+    public long getKeyHash() {
+        return keyHash;
     }
 
-    public String getAppName() {
-        return appName;
+    /**
+     * @return the key of the target PE instance, or <code>null</code> if the message does not carry it
+     */
+    public String getKey() {
+        return key;
     }
 
-    public String getStreamName() {
-        return streamName;
+    /**
+     * @return a new view of the serialized event, from its position to its limit, or <code>null</code> for messages
+     *         that only hold the event instance. The view may be consumed freely, other views are not affected.
+     */
+    public ByteBuffer getSerializedEvent() {
+        return serializedEvent == null ? null : serializedEvent.duplicate();
     }
 
-    public byte[] getSerializedEvent() {
-        return serializedEvent;
+    /**
+     * @return the size of the serialized event, in bytes
+     */
+    public int getSerializedEventSize() {
+        return serializedEvent == null ? 0 : serializedEvent.remaining();
+    }
+
+    /**
+     * @return true if the event was serialized by the node of another app, with the default serializers of its class
+     *         instead of those registered by the target app
+     */
+    public boolean isFromOtherApp() {
+        return fromOtherApp;
+    }
+
+    /**
+     * @return the event instance for messages delivered locally, or <code>null</code> if the event is only available
+     *         in serialized form
+     */
+    public Event getEvent() {
+        return event;
     }
 
 }
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+/**
+ * Receives the messages decoded by a {@link Listener}.
+ * <p>
+ * Called from the threads of the listener, which may be network I/O threads: implementations must not block.
+ */
+public interface EventMessageHandler {
+
+    /**
+     * @param message
+     *            a message received by the listener
+     * @param state
+     *            where the handler records the progress of a partial delivery, passed again when the same message is
+     *            retried. <code>null</code> if the listener does not retry messages.
+     * @return true if the message was accepted, false if it could not be (fully) accepted right now. The listener then
+     *         applies backpressure where the transport allows it, and retries later.
+     */
+    boolean onMessage(EventMessage message, DeliveryState state);
+}
@@ -19,6 +19,7 @@
 package org.apache.s4.base;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -35,50 +36,69 @@ import com.google.common.collect.Lists;
  * <li>If there is no match and the {@link Event} class has arbitrary attributes, search for the key.
  * <li>Otherwise, fail.
  * </ul>
- * 
+ * <p>
+ * Several key names define a composite key, with one value per name.
  * 
  * @param <T>
  */
-public class GenericKeyFinder<T extends Event> implements KeyFinder<T> {
+public class GenericKeyFinder<T extends Event> implements ArrayKeyFinder<T> {
 
     private static final Logger logger = LoggerFactory.getLogger(GenericKeyFinder.class);
 
-    final private String keyName;
+    final private String[] keyNames;
     private Class<T> eventType;
-    private Field field;
+    private Field[] fields;
 
     public GenericKeyFinder(String keyName, Class<T> eventType) throws SecurityException {
-        this.keyName = keyName;
+        this(eventType, keyName);
+    }
+
+    public GenericKeyFinder(Class<T> eventType, String... keyNames) throws SecurityException {
+        this.keyNames = keyNames;
         this.eventType = eventType;
 
-        logger.debug("Creating a generic key finder for key [{}] with event type [{}].", keyName, eventType.getName());
-        field = getField();
+        logger.debug("Creating a generic key finder for key {} with event type [{}].", Arrays.toString(keyNames),
+                eventType.getName());
+        fields = new Field[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            fields[i] = getField(keyNames[i]);
+        }
     }
 
     @Override
     public List<String> get(T event) {
+        String[] values = getKeyValues(event);
+        return values == null ? null : Lists.newArrayList(values);
+    }
 
-        List<String> list = Lists.newArrayList();
-
-        if (field != null) {
-
-            try {
-                list.add(String.valueOf(field.get(event)));
-            } catch (IllegalArgumentException e) {
-                logger.error("Unable to access field [{}] in event of type [{}].", field.getName(), eventType.getName());
-                throw e;
-            } catch (IllegalAccessException e) {
-                logger.error("Could not access field.", e);
-                return null;
+    @Override
+    public String[] getKeyValues(T event) {
+
+        String[] values = new String[keyNames.length];
+
+        for (int i = 0; i < keyNames.length; i++) {
+            Field field = fields[i];
+            if (field != null) {
+
+                try {
+                    values[i] = String.valueOf(field.get(event));
+                } catch (IllegalArgumentException e) {
+                    logger.error("Unable to access field [{}] in event of type [{}].", field.getName(),
+                            eventType.getName());
+                    throw e;
+                } catch (IllegalAccessException e) {
+                    logger.error("Could not access field.", e);
+                    return null;
+                }
+
+            } else {
+                values[i] = event.get(keyNames[i]);
             }
-
-        } else {
-            list.add(event.get(keyName));
         }
-        return list;
+        return values;
     }
 
-    private Field getField() throws SecurityException {
+    private Field getField(String keyName) throws SecurityException {
 
         Field f;
 
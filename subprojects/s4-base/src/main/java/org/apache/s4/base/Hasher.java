@@ -20,8 +20,11 @@ package org.apache.s4.base;
 
 /**
  * Defines a transformation between a key and a hashcode.
+ * <p>
+ * Keys are passed as character sequences so that composite keys can be hashed without joining their values first.
+ * The hash of a key must only depend on its characters.
  *
  */
 public interface Hasher {
-    long hash(String hashKey);
+    long hash(CharSequence hashKey);
 }
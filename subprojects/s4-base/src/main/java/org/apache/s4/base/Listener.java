@@ -20,20 +20,19 @@ package org.apache.s4.base;
 
 /**
  * 
- * Get a byte array received by a lower level layer.
+ * Pushes messages received by a lower level layer to an {@link EventMessageHandler}.
  * 
  */
 public interface Listener {
 
     /**
-     * Perform blocking receive on the appropriate communication channel
+     * Sets the handler that received messages are pushed to. Messages that arrive while no handler is set are not
+     * accepted.
      * 
-     * @return <ul>
-     *         <li>byte[] message returned by the channel</li>
-     *         <li>null if the associated blocking thread is interrupted</li>
-     *         </ul>
+     * @param handler
+     *            the handler, or <code>null</code> to stop delivering messages
      */
-    byte[] recv();
+    void setHandler(EventMessageHandler handler);
 
     public int getPartitionId();
 
@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+/**
+ * Maps the hash of a key, as computed by a {@link Hasher}, to a partition.
+ * <p>
+ * All nodes of a cluster must use the same hasher and partitioner.
+ * 
+ */
+public interface Partitioner {
+
+    /**
+     * @param keyHash
+     *            hash of the key, may be negative
+     * @param partitionCount
+     *            number of partitions
+     * @return a partition between 0 and <code>partitionCount - 1</code>
+     */
+    int partition(long keyHash, int partitionCount);
+}
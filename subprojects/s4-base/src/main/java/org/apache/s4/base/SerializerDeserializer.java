@@ -18,6 +18,8 @@
 
 package org.apache.s4.base;
 
+import java.nio.ByteBuffer;
+
 /**
  * Defines serialization and deserialization methods used within the S4 platform, typically for events and PEs.
  *
@@ -26,4 +28,9 @@ public interface SerializerDeserializer {
     public byte[] serialize(Object message);
 
     public Object deserialize(byte[] rawMessage);
+
+    /**
+     * Deserializes an object from the remaining bytes of a buffer, without copying them.
+     */
+    public Object deserialize(ByteBuffer rawMessage);
 }
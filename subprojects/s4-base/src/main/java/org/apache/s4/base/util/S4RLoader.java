@@ -18,21 +18,97 @@
 
 package org.apache.s4.base.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 /**
  * A classloader that fetches and loads classes and resources from :
  * <ul>
  * <li>Application classes in an S4R archive</li>
  * <li>Application dependencies from an S4R archive</li>
- * <li>Classes dynamically generated
+ * <li>Classes dynamically generated, or generated ahead of time and packaged in the application jars</li>
  * 
  */
 public class S4RLoader extends URLClassLoader {
 
+    private final List<URL> appUrls;
+
     public S4RLoader(URL[] urls) {
         super(urls);
+        appUrls = Collections.emptyList();
+    }
+
+    /**
+     * @param appUrls
+     *            application jars, searched first
+     * @param libUrls
+     *            application dependencies
+     */
+    public S4RLoader(URL[] appUrls, URL[] libUrls) {
+        super(concat(appUrls, libUrls));
+        this.appUrls = Arrays.asList(appUrls);
+    }
+
+    private static URL[] concat(URL[] first, URL[] second) {
+        URL[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Lists the classes packaged in the application jars, excluding dependencies.
+     * 
+     * @return fully qualified class names, sorted
+     * @throws IOException
+     *             if an application jar cannot be read
+     */
+    public List<String> getAppClassNames() throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        for (URL url : appUrls) {
+            JarFile jar;
+            try {
+                jar = new JarFile(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid application jar location [" + url + "]", e);
+            }
+            try {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(".class")) {
+                        classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * Loads a class generated ahead of time and packaged with the application, see
+     * <code>org.apache.s4.core.gen.AheadOfTimeGenerator</code>.
+     * 
+     * @return the class, or null if it was not packaged with the application
+     */
+    public Class<?> loadPregeneratedClass(String name) {
+        try {
+            return loadClass(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
     }
 
     public Class<?> loadGeneratedClass(String name, byte[] bytes) {
@@ -103,11 +103,13 @@ public class S4RLoaderFactory {
                 }
             }
 
-            List<URL> classpath = new ArrayList<URL>();
-            addDirLibsToClassPath(classpath, s4rDir, "/app");
-            addDirLibsToClassPath(classpath, s4rDir, "/lib");
+            List<URL> appClasspath = new ArrayList<URL>();
+            addDirLibsToClassPath(appClasspath, s4rDir, "/app");
+            List<URL> libClasspath = new ArrayList<URL>();
+            addDirLibsToClassPath(libClasspath, s4rDir, "/lib");
 
-            S4RLoader s4rLoader = new S4RLoader(classpath.toArray(new URL[] {}));
+            S4RLoader s4rLoader = new S4RLoader(appClasspath.toArray(new URL[] {}),
+                    libClasspath.toArray(new URL[] {}));
             return s4rLoader;
 
         } catch (IOException e) {
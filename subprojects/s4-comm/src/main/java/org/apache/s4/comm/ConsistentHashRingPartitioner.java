@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm;
+
+import java.util.Arrays;
+
+import org.apache.s4.base.Partitioner;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Assigns keys to partitions with a hash ring. Each partition owns <code>s4.comm.partitioner.virtualNodes</code>
+ * points of the ring, and a key belongs to the partition owning the first point at or after the hash of the key. When
+ * a partition is added, only the keys falling just before its points move.
+ * <p>
+ * Points only depend on the partition number and the number of virtual nodes, so all nodes build the same ring.
+ * 
+ */
+public class ConsistentHashRingPartitioner implements Partitioner {
+
+    @Inject(optional = true)
+    @Named("s4.comm.partitioner.virtualNodes")
+    int virtualNodes = 128;
+
+    private volatile Ring ring;
+
+    public ConsistentHashRingPartitioner() {
+    }
+
+    public ConsistentHashRingPartitioner(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    @Override
+    public int partition(long keyHash, int partitionCount) {
+        Ring r = ring;
+        if (r == null || r.partitionCount != partitionCount) {
+            r = new Ring(partitionCount, virtualNodes);
+            ring = r;
+        }
+        return r.lookup(Murmur3Hasher.fmix(keyHash));
+    }
+
+    private static class Ring {
+        final int partitionCount;
+        final long[] points;
+        final int[] owners;
+
+        Ring(int partitionCount, int virtualNodes) {
+            this.partitionCount = partitionCount;
+            int size = partitionCount * virtualNodes;
+            long[] keys = new long[size];
+            for (int partition = 0, i = 0; partition < partitionCount; partition++) {
+                for (int v = 0; v < virtualNodes; v++, i++) {
+                    keys[i] = Murmur3Hasher.fmix(((long) partition << 32) | v);
+                }
+            }
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            points = new long[size];
+            owners = new int[size];
+            // keep the owner of each point along with it
+            for (int partition = 0, i = 0; partition < partitionCount; partition++) {
+                for (int v = 0; v < virtualNodes; v++, i++) {
+                    int index = Arrays.binarySearch(sorted, keys[i]);
+                    points[index] = keys[i];
+                    owners[index] = partition;
+                }
+            }
+        }
+
+        int lookup(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+                if (index == points.length) {
+                    index = 0;
+                }
+            }
+            return owners[index];
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.Hasher;
 import org.apache.s4.base.Listener;
+import org.apache.s4.base.Partitioner;
 import org.apache.s4.base.RemoteEmitter;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.serialize.KryoSerDeser;
@@ -84,8 +85,19 @@ public class DefaultCommModule extends AbstractModule {
             }
         }
 
-        /* The hashing function to map keys top partitions. */
-        bind(Hasher.class).to(DefaultHasher.class);
+        /* The hashing function and the partitioner that map keys to partitions. */
+        String hasherClass = config.getString("s4.comm.hasher.class", DefaultHasher.class.getName());
+        try {
+            bind(Hasher.class).to((Class<? extends Hasher>) Class.forName(hasherClass));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Invalid s4.comm.hasher.class [" + hasherClass + "]", e);
+        }
+        String partitionerClass = config.getString("s4.comm.partitioner.class", ModuloPartitioner.class.getName());
+        try {
+            bind(Partitioner.class).to((Class<? extends Partitioner>) Class.forName(partitionerClass));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Invalid s4.comm.partitioner.class [" + partitionerClass + "]", e);
+        }
         /* Use Kryo to serialize events. */
         bind(SerializerDeserializer.class).to(KryoSerDeser.class);
 
@@ -27,7 +27,7 @@ import org.apache.s4.base.Hasher;
 public class DefaultHasher implements Hasher {
 
     @Override
-    public long hash(String hashKey) {
+    public long hash(CharSequence hashKey) {
         int b = 378551;
         int a = 63689;
         long hash = 0;
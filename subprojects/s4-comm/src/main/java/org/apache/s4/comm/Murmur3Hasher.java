@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm;
+
+import org.apache.s4.base.Hasher;
+
+/**
+ * 64-bit hasher based on MurmurHash3 (x64, 128 bits, seed 0, first half of the result). The key is hashed as its
+ * UTF-16 little-endian representation, read directly from the characters of the key without encoding it.
+ * <p>
+ * Hashes may be negative.
+ * 
+ */
+public class Murmur3Hasher implements Hasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    public long hash(CharSequence hashKey) {
+        int length = hashKey.length();
+        long h1 = 0;
+        long h2 = 0;
+
+        // 16-byte blocks, i.e. 8 chars
+        int blocks = length >>> 3;
+        for (int i = 0; i < blocks; i++) {
+            int offset = i << 3;
+            long k1 = chars(hashKey, offset, 4);
+            long k2 = chars(hashKey, offset + 4, 4);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = length & 7;
+        if (tail > 4) {
+            h2 ^= mixK2(chars(hashKey, (blocks << 3) + 4, tail - 4));
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(chars(hashKey, blocks << 3, Math.min(tail, 4)));
+        }
+
+        long byteLength = (long) length << 1;
+        h1 ^= byteLength;
+        h2 ^= byteLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    /* Little-endian packing of count (at most 4) chars. */
+    private static long chars(CharSequence s, int offset, int count) {
+        long k = 0;
+        for (int i = 0; i < count; i++) {
+            k |= (long) s.charAt(offset + i) << (i << 4);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    /**
+     * MurmurHash3 finalizer: a bijection that spreads the bits of its input over the whole output.
+     */
+    public static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
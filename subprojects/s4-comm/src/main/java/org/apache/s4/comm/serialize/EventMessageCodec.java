@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+
+import org.apache.s4.base.EventMessage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Encodes and decodes {@link EventMessage} instances to and from the binary frame exchanged between nodes.
+ * <p>
+ * The frame is made of a fixed-size header, the key of the target PE instance if the message carries it, and the
+ * serialized event:
+ * 
+ * <pre>
+ * version       1 byte
+ * flags         1 byte   (bit 0: the message is keyed, bit 1: the key follows the header, bit 2: the event is
+ *                         sent by another app)
+ * app id        4 bytes
+ * stream id     4 bytes
+ * key hash      8 bytes
+ * payload size  4 bytes
+ * key length    2 bytes  (number of chars, if bit 1 is set)
+ * key           2 bytes per char (if bit 1 is set)
+ * payload       payload size bytes
+ * </pre>
+ * 
+ * Keys longer than 65535 chars are not carried. Frames of version 1 never carry the key, and are still decoded.
+ * 
+ * The event itself is serialized by the application, the envelope never goes through a
+ * {@link org.apache.s4.base.SerializerDeserializer}.
+ */
+public final class EventMessageCodec {
+
+    public static final byte VERSION = 2;
+
+    /**
+     * Length of the fixed part of the header.
+     */
+    public static final int HEADER_LENGTH = 1 + 1 + 4 + 4 + 8 + 4;
+
+    private static final byte FLAG_KEYED = 1;
+    private static final byte FLAG_KEY = 2;
+    private static final byte FLAG_OTHER_APP = 4;
+
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+    private EventMessageCodec() {
+    }
+
+    /**
+     * Encodes a message. The payload is not copied: the returned buffer wraps the serialized event of the message.
+     * 
+     * @param message
+     *            a message holding a serialized event
+     * @return the frame
+     */
+    public static ChannelBuffer encode(EventMessage message) {
+        ChannelBuffer header = ChannelBuffers.buffer(headerLength(message));
+        writeHeader(header, message);
+        return ChannelBuffers.wrappedBuffer(header, ChannelBuffers.wrappedBuffer(message.getSerializedEvent()));
+    }
+
+    /**
+     * Encodes a message, preceded by the length of the frame as a 4-byte integer, for stream transports. The payload
+     * is not copied.
+     * 
+     * @param message
+     *            a message holding a serialized event
+     * @return the length-prefixed frame
+     */
+    public static ChannelBuffer encodeLengthPrefixed(EventMessage message) {
+        int headerLength = headerLength(message);
+        ChannelBuffer header = ChannelBuffers.buffer(4 + headerLength);
+        header.writeInt(headerLength + message.getSerializedEventSize());
+        writeHeader(header, message);
+        return ChannelBuffers.wrappedBuffer(header, ChannelBuffers.wrappedBuffer(message.getSerializedEvent()));
+    }
+
+    /**
+     * Encodes a message into a byte array, for transports that do not use Netty buffers.
+     * 
+     * @param message
+     *            a message holding a serialized event
+     * @return the frame
+     */
+    public static byte[] encodeToArray(EventMessage message) {
+        ChannelBuffer frame = ChannelBuffers.buffer(encodedLength(message));
+        writeHeader(frame, message);
+        frame.writeBytes(message.getSerializedEvent());
+        return frame.array();
+    }
+
+    /**
+     * @return the size of the frame of the given message
+     */
+    public static int encodedLength(EventMessage message) {
+        return headerLength(message) + message.getSerializedEventSize();
+    }
+
+    /**
+     * Encodes a message at the current position of a NIO buffer, for instance to pack several frames in a datagram.
+     * 
+     * @param message
+     *            a message holding a serialized event
+     * @param buffer
+     *            destination, with at least {@link #encodedLength(EventMessage)} bytes remaining
+     */
+    public static void encode(EventMessage message, ByteBuffer buffer) {
+        String key = carriedKey(message);
+        buffer.put(VERSION);
+        buffer.put(flags(message, key));
+        buffer.putInt(message.getAppId());
+        buffer.putInt(message.getStreamId());
+        buffer.putLong(message.getKeyHash());
+        buffer.putInt(message.getSerializedEventSize());
+        if (key != null) {
+            buffer.putShort((short) key.length());
+            for (int i = 0; i < key.length(); i++) {
+                buffer.putChar(key.charAt(i));
+            }
+        }
+        buffer.put(message.getSerializedEvent());
+    }
+
+    private static void writeHeader(ChannelBuffer buffer, EventMessage message) {
+        String key = carriedKey(message);
+        buffer.writeByte(VERSION);
+        buffer.writeByte(flags(message, key));
+        buffer.writeInt(message.getAppId());
+        buffer.writeInt(message.getStreamId());
+        buffer.writeLong(message.getKeyHash());
+        buffer.writeInt(message.getSerializedEventSize());
+        if (key != null) {
+            buffer.writeShort(key.length());
+            for (int i = 0; i < key.length(); i++) {
+                buffer.writeChar(key.charAt(i));
+            }
+        }
+    }
+
+    private static int headerLength(EventMessage message) {
+        String key = carriedKey(message);
+        return key == null ? HEADER_LENGTH : HEADER_LENGTH + 2 + 2 * key.length();
+    }
+
+    /* The key written in the frame, if any. */
+    private static String carriedKey(EventMessage message) {
+        String key = message.getKey();
+        return message.isKeyed() && key != null && key.length() <= MAX_KEY_LENGTH ? key : null;
+    }
+
+    private static byte flags(EventMessage message, String key) {
+        byte flags = message.isKeyed() ? FLAG_KEYED : 0;
+        if (message.isFromOtherApp()) {
+            flags |= FLAG_OTHER_APP;
+        }
+        return key == null ? flags : (byte) (flags | FLAG_KEY);
+    }
+
+    /**
+     * Decodes a frame, starting at the reader index of the buffer. The reader index is moved past the frame.
+     * <p>
+     * The payload of the returned message is a view of the content of the buffer, not a copy: the buffer must not be
+     * reused afterwards.
+     * 
+     * @param frame
+     *            a buffer holding a complete frame
+     * @return the message
+     * @throws IllegalArgumentException
+     *             if the frame is truncated or has an unsupported version
+     */
+    public static EventMessage decode(ChannelBuffer frame) {
+        if (frame.readableBytes() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated frame: " + frame.readableBytes() + " bytes");
+        }
+        byte version = frame.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version: " + version);
+        }
+        byte flags = frame.readByte();
+        int appId = frame.readInt();
+        int streamId = frame.readInt();
+        long keyHash = frame.readLong();
+        int length = frame.readInt();
+        String key = null;
+        if ((flags & FLAG_KEY) != 0) {
+            if (frame.readableBytes() < 2) {
+                throw new IllegalArgumentException("Truncated frame: no key length");
+            }
+            int keyLength = frame.readUnsignedShort();
+            if (2 * keyLength > frame.readableBytes()) {
+                throw new IllegalArgumentException("Invalid key length: " + keyLength);
+            }
+            char[] chars = new char[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                chars[i] = frame.readChar();
+            }
+            key = new String(chars);
+        }
+        if (length < 0 || length > frame.readableBytes()) {
+            throw new IllegalArgumentException("Invalid payload size: " + length);
+        }
+        ByteBuffer payload = frame.toByteBuffer(frame.readerIndex(), length);
+        frame.skipBytes(length);
+        if ((flags & FLAG_KEYED) != 0) {
+            return new EventMessage(appId, streamId, keyHash, key, payload);
+        }
+        return new EventMessage(appId, streamId, payload, (flags & FLAG_OTHER_APP) != 0);
+    }
+
+    /**
+     * Decodes a frame held in a byte array, which may be reused afterwards: the payload is copied.
+     * 
+     * @see #decode(ChannelBuffer)
+     */
+    public static EventMessage decode(byte[] frame, int offset, int length) {
+        return decode(ChannelBuffers.copiedBuffer(frame, offset, length));
+    }
+}
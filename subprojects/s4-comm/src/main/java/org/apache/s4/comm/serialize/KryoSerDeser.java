@@ -18,26 +18,55 @@
 
 package org.apache.s4.comm.serialize;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.s4.base.SerializerDeserializer;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.serialize.ClassSerializer;
 import com.esotericsoftware.kryo.serialize.SimpleSerializer;
 
 /**
  * Serializazer/deserializer based on <a href="http://code.google.com/p/kryo/">kryo</a>
- *
+ * <p>
+ * Kryo instances are not thread-safe: each thread uses its own instance, along with its own serialization buffer,
+ * which is reused across calls and grows up to the maximum buffer size. Only the resulting bytes are allocated for
+ * each serialized object. Deserialization reads directly from the given bytes.
+ * <p>
+ * Classes registered through {@link #registerClass(Class)} are written with a compact id instead of their name. Ids
+ * follow registration order, so peers exchanging messages must register the same classes in the same order, before
+ * any message is exchanged. Unregistered classes are still supported and written by name. A dedicated serializer may be
+ * provided along with the class.
+ * <p>
+ * The payload does not tell which serializer wrote an object: a class tagged by name is read with the serializer
+ * registered by the reader, if any. A class registered with a dedicated serializer must therefore be registered on
+ * every serializer that writes it, otherwise the reader must not register it either. Registering a class after it was
+ * first written by name is supported: the class gets its id from then on.
+ * 
  */
 public class KryoSerDeser implements SerializerDeserializer {
 
-    private Kryo kryo = new Kryo();
+    private final ClassLoader classLoader;
 
     private int initialBufferSize = 2048;
     private int maxBufferSize = 256 * 1024;
 
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    private final ThreadLocal<KryoContext> contexts = new ThreadLocal<KryoContext>() {
+        @Override
+        protected KryoContext initialValue() {
+            return new KryoContext();
+        }
+    };
+
     public void setInitialBufferSize(int initialBufferSize) {
         this.initialBufferSize = initialBufferSize;
     }
@@ -57,6 +86,95 @@ public class KryoSerDeser implements SerializerDeserializer {
      *            can only be handled by the application classloader.
      */
     public KryoSerDeser(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Assigns a compact id to the given class. Registering the same class twice has no effect.
+     */
+    public void registerClass(Class<?> type) {
+        registerClass(type, null);
+    }
+
+    /**
+     * Assigns a compact id to the given class, and serializes its instances with serializers created by the given
+     * factory. Registering the same class twice has no effect.
+     * 
+     * @param factory
+     *            creates a serializer for each kryo instance, or <code>null</code> for the default kryo serializer
+     */
+    public void registerClass(Class<?> type, SerializerFactory factory) {
+        synchronized (registrations) {
+            if (!isRegistered(type)) {
+                registrations.add(new Registration(type, factory));
+            }
+        }
+    }
+
+    /**
+     * @return true if the given class is already registered
+     */
+    public boolean isRegistered(Class<?> type) {
+        for (Registration registration : registrations) {
+            if (registration.type.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return registered classes, in registration order
+     */
+    public List<Class<?>> getRegisteredClasses() {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Registration registration : registrations) {
+            classes.add(registration.type);
+        }
+        return Collections.unmodifiableList(classes);
+    }
+
+    @Override
+    public Object deserialize(byte[] rawMessage) {
+        return contexts.get().kryo().readClassAndObject(ByteBuffer.wrap(rawMessage));
+    }
+
+    @Override
+    public Object deserialize(ByteBuffer rawMessage) {
+        return contexts.get().kryo().readClassAndObject(rawMessage);
+    }
+
+    @Override
+    public byte[] serialize(Object message) {
+        KryoContext context = contexts.get();
+        Kryo kryo = context.kryo();
+        ByteBuffer buffer = context.buffer;
+        while (true) {
+            buffer.clear();
+            try {
+                kryo.writeClassAndObject(buffer, message);
+                break;
+            } catch (SerializationException e) {
+                if (!e.causedBy(BufferOverflowException.class) || buffer.capacity() >= maxBufferSize) {
+                    throw e;
+                }
+            } catch (BufferOverflowException e) {
+                // from custom serializers
+                if (buffer.capacity() >= maxBufferSize) {
+                    throw e;
+                }
+            }
+            buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxBufferSize));
+            context.buffer = buffer;
+        }
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private Kryo newKryo() {
+        Kryo kryo = new Kryo();
         kryo.setClassLoader(classLoader);
         kryo.setRegistrationOptional(true);
 
@@ -75,18 +193,52 @@ public class KryoSerDeser implements SerializerDeserializer {
             }
 
         });
+        return kryo;
+    }
 
+    /**
+     * Per-thread kryo instance and serialization buffer.
+     */
+    private class KryoContext {
+        Kryo kryo = newKryo();
+        int registeredCount = 0;
+        boolean used = false;
+        ByteBuffer buffer = ByteBuffer.allocate(initialBufferSize);
+
+        Kryo kryo() {
+            if (used && registeredCount < registrations.size()) {
+                // kryo keeps the name tag of classes it already wrote by name, even once registered: start over
+                kryo = newKryo();
+                registeredCount = 0;
+            }
+            used = true;
+            // catch up with classes registered since last use, in the same order on every thread
+            while (registeredCount < registrations.size()) {
+                Registration registration = registrations.get(registeredCount++);
+                if (registration.factory == null) {
+                    kryo.register(registration.type);
+                } else {
+                    kryo.register(registration.type, registration.factory.newSerializer(kryo));
+                }
+            }
+            return kryo;
+        }
     }
 
-    @Override
-    public Object deserialize(byte[] rawMessage) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.readClassAndObject(rawMessage);
+    /**
+     * Creates serializers bound to a given kryo instance.
+     */
+    public interface SerializerFactory {
+        Serializer newSerializer(Kryo kryo);
     }
 
-    @Override
-    public byte[] serialize(Object message) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.writeClassAndObject(message);
+    private static class Registration {
+        final Class<?> type;
+        final SerializerFactory factory;
+
+        Registration(Class<?> type, SerializerFactory factory) {
+            this.type = type;
+            this.factory = factory;
+        }
     }
 }
@@ -21,13 +21,24 @@ package org.apache.s4.comm.tcp;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
-import org.apache.s4.base.SerializerDeserializer;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.Cluster;
 import org.apache.s4.comm.topology.ClusterChangeListener;
 import org.apache.s4.comm.topology.ClusterNode;
@@ -41,24 +52,40 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 /**
  * TCPEmitter - Uses TCP to send messages across partitions.
+ * <p>
+ * Messages are not written one by one: each partition has an outbound queue of frames, which is flushed as a single
+ * write when it holds more than <code>s4.comm.tcp.flushThresholdBytes</code> bytes, or at the latest
+ * <code>s4.comm.tcp.flushIntervalMicros</code> microseconds after the first frame was queued. An interval of 0 flushes
+ * on every send. Batch size and flush latency metrics help tuning these settings.
+ * <p>
+ * Connections are established asynchronously, so senders never wait for a peer. Until the connection to a partition is
+ * up, its messages stay in its queue, which holds at most <code>s4.comm.tcp.maxPendingMessages</code> messages. When
+ * the queue is full, the <code>s4.comm.tcp.overflowPolicy</code> decides whether the new message (DROP_NEWEST) or the
+ * oldest queued one (DROP_OLDEST) is dropped. Failed connections are retried with an exponential backoff, from
+ * <code>s4.comm.tcp.reconnectInitialDelayMs</code> up to <code>s4.comm.tcp.reconnectMaxDelayMs</code>.
+ * <p>
+ * Queues are only drained while the channel of their partition is writable: when the socket buffers of a slow peer
+ * fill up, messages stay queued, subject to the overflow policy, and writing resumes once the channel becomes writable
+ * again.
  * 
  */
 
@@ -81,15 +108,58 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
     private final BiMap<Integer, Channel> partitionChannelMap;
 
     /*
-     * Node hosting each partition
+     * Node hosting each partition, guarded by the lock
      */
     private final BiMap<Integer, ClusterNode> partitionNodeMap;
 
     // lock for synchronizing between cluster updates callbacks and other code
     private final Lock lock;
 
-    @Inject
-    SerializerDeserializer serDeser;
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.flushThresholdBytes")
+    int flushThresholdBytes = 32 * 1024;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.flushIntervalMicros")
+    long flushIntervalMicros = 100;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.maxPendingMessages")
+    int maxPendingMessages = 10000;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.overflowPolicy")
+    String overflowPolicy = OverflowPolicy.DROP_NEWEST.name();
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.reconnectInitialDelayMs")
+    long reconnectInitialDelayMs = 100;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.reconnectMaxDelayMs")
+    long reconnectMaxDelayMs = 10000;
+
+    /**
+     * What to do with a message sent to a partition whose queue is full.
+     */
+    public enum OverflowPolicy {
+        DROP_NEWEST, DROP_OLDEST
+    }
+
+    private OverflowPolicy policy;
+
+    private final ConcurrentMap<Integer, PartitionQueue> partitionQueues = new ConcurrentHashMap<Integer, PartitionQueue>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("TCPEmitter-flusher-%d").setDaemon(true).build());
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedMessages = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong flushLatencyNanos = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
 
     @Inject
     public TCPEmitter(Cluster topology, @Named("s4.comm.timeout") int timeout) throws InterruptedException {
@@ -110,8 +180,8 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
             @Override
             public ChannelPipeline getPipeline() {
                 ChannelPipeline p = Channels.pipeline();
-                p.addLast("1", new LengthFieldPrepender(4));
-                p.addLast("2", new ExceptionHandler());
+                p.addLast("1", new ExceptionHandler());
+                p.addLast("2", new WritabilityHandler());
                 return p;
             }
         });
@@ -124,59 +194,85 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 
     @Inject
     private void init() {
+        policy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
         refreshCluster();
         this.topology.addListener(this);
     }
 
-    private boolean connectTo(Integer partitionId) {
-        ClusterNode clusterNode = partitionNodeMap.get(partitionId);
-
-        if (clusterNode == null) {
-
-            logger.error("No ClusterNode exists for partitionId " + partitionId);
-            refreshCluster();
-            return false;
-        }
-
-        try {
-            ChannelFuture connectFuture = this.bootstrap.connect(new InetSocketAddress(clusterNode.getMachineName(),
-                    clusterNode.getPort()));
-            connectFuture.await();
-            if (connectFuture.isSuccess()) {
-                channels.add(connectFuture.getChannel());
-                partitionChannelMap.forcePut(partitionId, connectFuture.getChannel());
-                return true;
+    @Override
+    public boolean send(int partitionId, EventMessage message) {
+        PartitionQueue queue = partitionQueues.get(partitionId);
+        if (queue == null) {
+            queue = new PartitionQueue(partitionId);
+            PartitionQueue existing = partitionQueues.putIfAbsent(partitionId, queue);
+            if (existing != null) {
+                queue = existing;
             }
-        } catch (InterruptedException ie) {
-            logger.error(String.format("Interrupted while connecting to %s:%d", clusterNode.getMachineName(),
-                    clusterNode.getPort()));
-            Thread.currentThread().interrupt();
         }
-        return false;
+        return queue.add(EventMessageCodec.encodeLengthPrefixed(message));
     }
 
-    private void sendMessage(int partitionId, byte[] message) {
-        ChannelBuffer buffer = ChannelBuffers.buffer(message.length);
-        buffer.writeBytes(message);
+    /**
+     * @return the number of messages dropped because the queue of their partition was full
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
 
-        if (!partitionChannelMap.containsKey(partitionId)) {
-            if (!connectTo(partitionId)) {
-                // Couldn't connect, discard message
-                return;
-            }
+    /**
+     * @return the number of failed connection attempts
+     */
+    public long getConnectFailureCount() {
+        return connectFailures.get();
+    }
+
+    /**
+     * @return the number of writes that failed, along with the messages they carried
+     */
+    public long getWriteFailureCount() {
+        return writeFailures.get();
+    }
+
+    /**
+     * @return the number of messages waiting to be written, for all partitions
+     */
+    public int getPendingMessageCount() {
+        int pending = 0;
+        for (PartitionQueue queue : partitionQueues.values()) {
+            pending += queue.pendingMessages.get();
         }
+        return pending;
+    }
 
-        Channel c = partitionChannelMap.get(partitionId);
-        if (c == null)
-            return;
+    /**
+     * @return the number of writes issued so far
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
 
-        c.write(buffer).addListener(new MessageSendingListener(partitionId));
+    /**
+     * @return the average number of messages per write
+     */
+    public double getAverageBatchSize() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) flushedMessages.get() / flushes;
     }
 
-    @Override
-    public boolean send(int partitionId, EventMessage message) {
-        sendMessage(partitionId, serDeser.serialize(message));
-        return true;
+    /**
+     * @return the average number of bytes per write
+     */
+    public double getAverageBatchBytes() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) flushedBytes.get() / flushes;
+    }
+
+    /**
+     * @return the average time between queuing the first message of a batch and writing the batch, in microseconds
+     */
+    public double getAverageFlushLatencyMicros() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : flushLatencyNanos.get() / 1000.0 / flushes;
     }
 
     protected void removeChannel(int partition) {
@@ -196,6 +292,10 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
     }
 
     public void close() {
+        for (PartitionQueue queue : partitionQueues.values()) {
+            queue.flush();
+        }
+        flusher.shutdown();
         try {
             channels.close().await();
             bootstrap.releaseExternalResources();
@@ -252,24 +352,210 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
         }
     }
 
+    /**
+     * Resumes writing to a partition when its channel becomes writable again.
+     */
+    class WritabilityHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            if (e.getChannel().isWritable()) {
+                Integer partitionId = partitionChannelMap.inverse().get(e.getChannel());
+                if (partitionId != null) {
+                    PartitionQueue queue = partitionQueues.get(partitionId);
+                    if (queue != null) {
+                        flusher.execute(queue);
+                    }
+                }
+            }
+            super.channelInterestChanged(ctx, e);
+        }
+    }
+
+    /**
+     * Frames waiting to be written to a partition, and the state of the connection to that partition.
+     */
+    class PartitionQueue implements Runnable {
+        private final int partitionId;
+        private final Queue<ChannelBuffer> frames = new ConcurrentLinkedQueue<ChannelBuffer>();
+        private final AtomicInteger pendingBytes = new AtomicInteger();
+        private final AtomicInteger pendingMessages = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean connecting = new AtomicBoolean();
+        private final Lock flushLock = new ReentrantLock();
+        private volatile long firstFrameNanos;
+        /* Only modified by the connection callbacks, which do not overlap. */
+        private volatile int failedConnects = 0;
+
+        PartitionQueue(int partitionId) {
+            this.partitionId = partitionId;
+        }
+
+        boolean add(ChannelBuffer frame) {
+            int size = frame.readableBytes();
+            if (pendingMessages.incrementAndGet() > maxPendingMessages) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    droppedMessages.incrementAndGet();
+                    pendingMessages.decrementAndGet();
+                    return false;
+                }
+                // a concurrent flush may have emptied the queue in the meantime, then nothing is dropped
+                ChannelBuffer oldest = frames.poll();
+                if (oldest != null) {
+                    droppedMessages.incrementAndGet();
+                    pendingBytes.addAndGet(-oldest.readableBytes());
+                    pendingMessages.decrementAndGet();
+                }
+            }
+            frames.add(frame);
+            int pending = pendingBytes.addAndGet(size);
+            if (pending == size) {
+                firstFrameNanos = System.nanoTime();
+            }
+            if (pending >= flushThresholdBytes || flushIntervalMicros <= 0) {
+                flush();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                flusher.schedule(this, flushIntervalMicros, TimeUnit.MICROSECONDS);
+            }
+            return true;
+        }
+
+        /* Returns the channel to the partition, or null while it is being established. */
+        private Channel getChannel() {
+            Channel c = partitionChannelMap.get(partitionId);
+            if (c != null && c.isConnected()) {
+                return c;
+            }
+            if (c != null) {
+                partitionChannelMap.remove(partitionId);
+            }
+            connect();
+            return null;
+        }
+
+        private void connect() {
+            if (!connecting.compareAndSet(false, true)) {
+                return;
+            }
+            ClusterNode clusterNode;
+            lock.lock();
+            try {
+                clusterNode = partitionNodeMap.get(partitionId);
+            } finally {
+                lock.unlock();
+            }
+            if (clusterNode == null) {
+                logger.error("No ClusterNode exists for partitionId " + partitionId);
+                refreshCluster();
+                retryConnect();
+                return;
+            }
+            final String address = clusterNode.getMachineName() + ":" + clusterNode.getPort();
+            bootstrap.connect(new InetSocketAddress(clusterNode.getMachineName(), clusterNode.getPort())).addListener(
+                    new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (future.isSuccess()) {
+                                channels.add(future.getChannel());
+                                partitionChannelMap.forcePut(partitionId, future.getChannel());
+                                failedConnects = 0;
+                                connecting.set(false);
+                                // replay the messages that waited for the connection
+                                flusher.execute(PartitionQueue.this);
+                            } else {
+                                logger.warn("Could not connect to partition {} at {}", partitionId, address);
+                                retryConnect();
+                            }
+                        }
+                    });
+        }
+
+        private void retryConnect() {
+            connectFailures.incrementAndGet();
+            long delay = Math.min(reconnectInitialDelayMs << Math.min(failedConnects, 20), reconnectMaxDelayMs);
+            failedConnects++;
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connecting.set(false);
+                    // nothing to send, the next flush will connect
+                    if (!frames.isEmpty()) {
+                        connect();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+
+        /*
+         * Gathers the queued frames into writes of about flushThresholdBytes, as long as the channel accepts them.
+         * Whatever remains when the channel stops being writable is written when it becomes writable again.
+         */
+        void flush() {
+            flushLock.lock();
+            try {
+                if (frames.isEmpty()) {
+                    return;
+                }
+                Channel c = getChannel();
+                if (c == null) {
+                    // messages stay queued until the connection is up
+                    return;
+                }
+                while (!frames.isEmpty() && c.isWritable()) {
+                    long latency = System.nanoTime() - firstFrameNanos;
+                    List<ChannelBuffer> batch = new ArrayList<ChannelBuffer>();
+                    int bytes = 0;
+                    ChannelBuffer frame;
+                    while (bytes < flushThresholdBytes && (frame = frames.poll()) != null) {
+                        batch.add(frame);
+                        bytes += frame.readableBytes();
+                    }
+                    pendingBytes.addAndGet(-bytes);
+                    pendingMessages.addAndGet(-batch.size());
+
+                    c.write(ChannelBuffers.wrappedBuffer(batch.toArray(new ChannelBuffer[batch.size()]))).addListener(
+                            new MessageSendingListener(partitionId, batch.size()));
+
+                    flushCount.incrementAndGet();
+                    flushedMessages.addAndGet(batch.size());
+                    flushedBytes.addAndGet(bytes);
+                    flushLatencyNanos.addAndGet(latency);
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
     class MessageSendingListener implements ChannelFutureListener {
 
         int partitionId = -1;
+        int messageCount;
 
-        public MessageSendingListener(int partitionId) {
+        public MessageSendingListener(int partitionId, int messageCount) {
             super();
             this.partitionId = partitionId;
+            this.messageCount = messageCount;
         }
 
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
             if (!future.isSuccess()) {
+                writeFailures.incrementAndGet();
                 try {
                     // TODO handle possible cluster reconfiguration between send and failure callback
-                    logger.warn("Failed to send message to node {} (according to current cluster information)",
-                            topology.getPhysicalCluster().getNodes().get(partitionId));
+                    logger.warn("Failed to send " + messageCount + " messages to node "
+                            + topology.getPhysicalCluster().getNodes().get(partitionId)
+                            + " (according to current cluster information)", future.getCause());
                 } catch (IndexOutOfBoundsException ignored) {
                     // cluster was changed
+                    logger.warn("Failed to send " + messageCount + " messages to partition " + partitionId,
+                            future.getCause());
                 }
             }
 
@@ -19,11 +19,17 @@
 package org.apache.s4.comm.tcp;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.s4.base.DeliveryState;
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
 import org.apache.s4.base.Listener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.Assignment;
 import org.apache.s4.comm.topology.ClusterNode;
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -44,6 +50,10 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,11 +62,19 @@ import com.google.inject.name.Named;
 
 /**
  * Receives messages through TCP for the assigned subcluster.
+ * <p>
+ * Frames are decoded on the Netty I/O threads and pushed directly to the {@link EventMessageHandler}. When the handler
+ * does not accept a message, the connection stops reading (TCP backpressure then slows down the sender) and the
+ * message is kept in a small per-connection buffer until the handler accepts it. I/O threads never block.
  * 
  */
 public class TCPListener implements Listener {
     private static final Logger logger = LoggerFactory.getLogger(TCPListener.class);
-    private BlockingQueue<byte[]> handoffQueue = new SynchronousQueue<byte[]>();
+    /* Coarse, as the timer thread ticks at this pace for as long as the listener is open. */
+    private static final long RETRY_DELAY_MS = 100;
+    private volatile EventMessageHandler handler;
+    private final Timer retryTimer = new HashedWheelTimer(RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+    private final AtomicLong readSuspensions = new AtomicLong();
     private ClusterNode node;
     private ServerBootstrap bootstrap;
     private final ChannelGroup channels = new DefaultChannelGroup();
@@ -77,7 +95,7 @@ public class TCPListener implements Listener {
             public ChannelPipeline getPipeline() {
                 ChannelPipeline p = Channels.pipeline();
                 p.addLast("1", new LengthFieldBasedFrameDecoder(999999, 0, 4, 0, 4));
-                p.addLast("2", new ChannelHandler(handoffQueue));
+                p.addLast("2", new ChannelHandler());
 
                 return p;
             }
@@ -93,14 +111,16 @@ public class TCPListener implements Listener {
         channels.add(c);
     }
 
-    public byte[] recv() {
-        try {
-            byte[] msg = handoffQueue.take();
-            return msg;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return null;
-        }
+    @Override
+    public void setHandler(EventMessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return the number of times a connection stopped reading because the handler did not accept messages
+     */
+    public long getReadSuspensionCount() {
+        return readSuspensions.get();
     }
 
     @Override
@@ -115,23 +135,78 @@ public class TCPListener implements Listener {
             Thread.currentThread().interrupt();
         }
         bootstrap.releaseExternalResources();
+        retryTimer.stop();
     }
 
+    /**
+     * Handles a single connection. Messages that were not accepted are kept, in order, until the handler accepts them;
+     * meanwhile the connection does not read.
+     */
     public class ChannelHandler extends SimpleChannelHandler {
-        private BlockingQueue<byte[]> handoffQueue;
-
-        public ChannelHandler(BlockingQueue<byte[]> handOffQueue) {
-            this.handoffQueue = handOffQueue;
-        }
+        /* Guarded by this. */
+        private final Deque<EventMessage> pending = new ArrayDeque<EventMessage>();
+        /* Progress of the delivery of the first pending message, the only one being retried. Guarded by this. */
+        private final DeliveryState headState = new DeliveryState();
+        private Channel channel;
+        private boolean retryScheduled = false;
 
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
             channels.add(e.getChannel());
             ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+            EventMessage message;
             try {
-                handoffQueue.put(buffer.array()); // this holds up the Netty upstream I/O thread if
-                                                  // there's no receiver at the other end of the handoff queue
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
+                message = EventMessageCodec.decode(buffer);
+            } catch (IllegalArgumentException iae) {
+                logger.error("Dropping invalid frame from {}: {}", e.getRemoteAddress(), iae.getMessage());
+                return;
+            }
+            synchronized (this) {
+                channel = e.getChannel();
+                if (pending.isEmpty() && deliver(message)) {
+                    return;
+                }
+                pending.add(message);
+                if (channel.isReadable()) {
+                    channel.setReadable(false);
+                    readSuspensions.incrementAndGet();
+                }
+                scheduleRetry();
+            }
+        }
+
+        private boolean deliver(EventMessage message) {
+            EventMessageHandler h = handler;
+            if (h != null && h.onMessage(message, headState)) {
+                headState.clear();
+                return true;
+            }
+            return false;
+        }
+
+        private void scheduleRetry() {
+            if (!retryScheduled) {
+                retryScheduled = true;
+                retryTimer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        retry();
+                    }
+                }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /* Pending messages are delivered even if the connection was closed in the meantime. */
+        private synchronized void retry() {
+            retryScheduled = false;
+            while (!pending.isEmpty()) {
+                if (!deliver(pending.peek())) {
+                    scheduleRetry();
+                    return;
+                }
+                pending.poll();
+            }
+            if (channel.isOpen()) {
+                channel.setReadable(true);
             }
         }
 
@@ -24,6 +24,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -49,6 +51,10 @@ import com.google.inject.name.Named;
  * <p>
  * Provides methods to publish producers and consumers of streams
  * </p>
+ * <p>
+ * Assigns cluster-wide integer ids to stream names, which are used instead of the names in messages exchanged between
+ * nodes.
+ * </p>
  * 
  */
 @Singleton
@@ -59,8 +65,10 @@ public class RemoteStreams implements IZkStateListener, IZkChildListener {
     private final ZkClient zkClient;
     private final Lock lock;
     private final static String STREAMS_PATH = "/s4/streams";
+    private final static String STREAM_IDS_PATH = "/s4/streamIds";
     // by stream name, then "producer"|"consumer" then
     private Map<String, Map<String, Set<StreamConsumer>>> streams = new HashMap<String, Map<String, Set<StreamConsumer>>>();
+    private final ConcurrentMap<String, Integer> streamIds = new ConcurrentHashMap<String, Integer>();
 
     public enum StreamType {
         PRODUCER, CONSUMER;
@@ -115,6 +123,62 @@ public class RemoteStreams implements IZkStateListener, IZkChildListener {
         }
     }
 
+    /**
+     * Returns the id of a stream, the same on every node using the same ZooKeeper ensemble. The id is registered on
+     * first use and cached afterwards.
+     * 
+     * @param streamName
+     *            name of the stream
+     * @return the id of the stream
+     */
+    public int getStreamId(String streamName) {
+        Integer id = streamIds.get(streamName);
+        if (id == null) {
+            lock.lock();
+            try {
+                id = streamIds.get(streamName);
+                if (id == null) {
+                    id = registerStreamId(streamName);
+                    streamIds.put(streamName, id);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return id;
+    }
+
+    private int registerStreamId(String streamName) {
+        zkClient.createPersistent(STREAM_IDS_PATH, true);
+        Integer id = lookupStreamId(streamName);
+        if (id == null) {
+            ZNRecord record = new ZNRecord(streamName);
+            record.putSimpleField("streamName", streamName);
+            zkClient.createPersistentSequential(STREAM_IDS_PATH + "/stream-", record);
+            id = lookupStreamId(streamName);
+        }
+        logger.debug("Stream [{}] has id [{}]", streamName, id);
+        return id;
+    }
+
+    /*
+     * Nodes may register the same stream concurrently. The lowest sequence number registered for a name wins, so that
+     * they all agree on the id.
+     */
+    private Integer lookupStreamId(String streamName) {
+        Integer id = null;
+        for (String child : zkClient.getChildren(STREAM_IDS_PATH)) {
+            ZNRecord record = zkClient.readData(STREAM_IDS_PATH + "/" + child, true);
+            if (record != null && streamName.equals(record.getSimpleField("streamName"))) {
+                int sequence = Integer.parseInt(child.substring(child.lastIndexOf('-') + 1));
+                if (id == null || sequence < id) {
+                    id = sequence;
+                }
+            }
+        }
+        return id;
+    }
+
     /**
      * One method to do any processing if there is a change in ZK, all callbacks will be processed sequentially
      */
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.s4.comm.topology.Cluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * UDP emitter that retransmits lost datagrams, to be used with {@link ReliableUDPListener}.
+ * <p>
+ * Each datagram starts with a header holding a random session id, identifying this emitter, and a sequence number
+ * specific to the destination partition:
+ * 
+ * <pre>
+ * type          1 byte   ({@link #DATA})
+ * session id    8 bytes
+ * sequence      8 bytes
+ * frames
+ * </pre>
+ * 
+ * The last <code>s4.comm.udp.retransmitBufferSize</code> datagrams sent to each partition are kept. Listeners that
+ * detect a gap in sequence numbers send back a {@link #NACK} datagram listing the missing sequence numbers, which are
+ * sent again if they are still available:
+ * 
+ * <pre>
+ * type          1 byte   ({@link #NACK})
+ * session id    8 bytes
+ * partition     4 bytes
+ * count         4 bytes
+ * sequences     count * 8 bytes
+ * </pre>
+ * 
+ */
+public class ReliableUDPEmitter extends UDPEmitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReliableUDPEmitter.class);
+
+    public static final byte DATA = 1;
+    public static final byte NACK = 2;
+    public static final int HEADER_LENGTH = 1 + 8 + 8;
+    public static final int NACK_HEADER_LENGTH = 1 + 8 + 4 + 4;
+
+    @Inject(optional = true)
+    @Named("s4.comm.udp.retransmitBufferSize")
+    int retransmitBufferSize = 1024;
+
+    private final long sessionId = new Random().nextLong();
+    private final ConcurrentMap<Integer, RetransmitRing> rings = new ConcurrentHashMap<Integer, RetransmitRing>();
+    private final AtomicLong nacksReceived = new AtomicLong();
+    private final AtomicLong retransmittedDatagrams = new AtomicLong();
+    private final AtomicLong unrecoverableDatagrams = new AtomicLong();
+    private Thread nackReceiver;
+
+    @Inject
+    public ReliableUDPEmitter(Cluster topology) {
+        super(topology);
+        try {
+            // NACKs are received on the sending port
+            getChannel().socket().bind(new InetSocketAddress(0));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Inject
+    private void startNackReceiver() {
+        nackReceiver = new Thread(new NackReceiver(), "ReliableUDPEmitter-nacks");
+        nackReceiver.setDaemon(true);
+        nackReceiver.start();
+    }
+
+    @Override
+    protected int getHeaderLength() {
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    protected void sendDatagram(int partitionId, ByteBuffer datagram) throws IOException {
+        RetransmitRing ring = rings.get(partitionId);
+        if (ring == null) {
+            rings.putIfAbsent(partitionId, new RetransmitRing(sessionId, retransmitBufferSize));
+            ring = rings.get(partitionId);
+        }
+        ring.add(datagram);
+        super.sendDatagram(partitionId, datagram);
+    }
+
+    /**
+     * @return the number of NACK datagrams received from listeners
+     */
+    public long getNackCount() {
+        return nacksReceived.get();
+    }
+
+    /**
+     * @return the number of datagrams sent again after a NACK
+     */
+    public long getRetransmittedDatagramCount() {
+        return retransmittedDatagrams.get();
+    }
+
+    /**
+     * @return the number of datagrams requested by listeners that were no longer available
+     */
+    public long getUnrecoverableDatagramCount() {
+        return unrecoverableDatagrams.get();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (nackReceiver != null) {
+            nackReceiver.interrupt();
+        }
+    }
+
+    private void retransmit(int partitionId, long sequence) {
+        RetransmitRing ring = rings.get(partitionId);
+        ByteBuffer datagram = ring == null ? null : ring.get(sequence);
+        if (datagram == null) {
+            unrecoverableDatagrams.incrementAndGet();
+            return;
+        }
+        try {
+            super.sendDatagram(partitionId, datagram);
+            retransmittedDatagrams.incrementAndGet();
+        } catch (IOException e) {
+            logger.error("Cannot retransmit datagram {} to partition {}: {}", new Object[] { sequence, partitionId,
+                    e.getMessage() });
+        }
+    }
+
+    private class NackReceiver implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocate(UDPListener.BUFFER_LENGTH);
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    buffer.clear();
+                    getChannel().receive(buffer);
+                    buffer.flip();
+                    if (buffer.remaining() < NACK_HEADER_LENGTH || buffer.get() != NACK
+                            || buffer.getLong() != sessionId) {
+                        continue;
+                    }
+                    nacksReceived.incrementAndGet();
+                    int partitionId = buffer.getInt();
+                    int count = Math.min(buffer.getInt(), buffer.remaining() / 8);
+                    for (int i = 0; i < count; i++) {
+                        retransmit(partitionId, buffer.getLong());
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // closed
+            } catch (IOException e) {
+                logger.error("Cannot receive NACKs", e);
+            }
+        }
+    }
+
+    /**
+     * Last datagrams sent to a partition, indexed by sequence number. Slots are reused.
+     */
+    static class RetransmitRing {
+        private final long sessionId;
+        private final byte[][] datagrams;
+        private final int[] lengths;
+        private final long[] sequences;
+        private long nextSequence = 0;
+
+        RetransmitRing(long sessionId, int capacity) {
+            this.sessionId = sessionId;
+            datagrams = new byte[capacity][];
+            lengths = new int[capacity];
+            sequences = new long[capacity];
+        }
+
+        /* Assigns the next sequence number to the datagram, writes the header and keeps a copy. */
+        synchronized void add(ByteBuffer datagram) {
+            long sequence = nextSequence++;
+            int start = datagram.position();
+            datagram.put(start, DATA);
+            datagram.putLong(start + 1, sessionId);
+            datagram.putLong(start + 9, sequence);
+
+            int slot = (int) (sequence % datagrams.length);
+            int length = datagram.remaining();
+            if (datagrams[slot] == null || datagrams[slot].length < length) {
+                datagrams[slot] = new byte[length];
+            }
+            datagram.duplicate().get(datagrams[slot], 0, length);
+            lengths[slot] = length;
+            sequences[slot] = sequence;
+        }
+
+        /* Returns a copy of the datagram, or null if it was overwritten. */
+        synchronized ByteBuffer get(long sequence) {
+            int slot = (int) (sequence % datagrams.length);
+            if (sequence < 0 || sequence >= nextSequence || sequences[slot] != sequence || datagrams[slot] == null) {
+                return null;
+            }
+            byte[] copy = new byte[lengths[slot]];
+            System.arraycopy(datagrams[slot], 0, copy, 0, copy.length);
+            return ByteBuffer.wrap(copy);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.s4.comm.topology.Assignment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * UDP listener that requests lost datagrams again from a {@link ReliableUDPEmitter}.
+ * <p>
+ * Datagrams are tracked by session and sequence number. When a datagram arrives with a sequence number past the next
+ * expected one, the missing sequence numbers are requested with a NACK, then again every
+ * <code>s4.comm.udp.nackIntervalMs</code>, up to <code>s4.comm.udp.maxNackAttempts</code> times, after which they
+ * are counted as lost. Duplicates are dropped. Datagrams are delivered as they arrive: retransmitted datagrams are
+ * delivered out of order.
+ * <p>
+ * Losses are detected when a later datagram from the same emitter arrives, so the loss of the last datagrams of a
+ * burst is only detected when traffic resumes.
+ * 
+ */
+public class ReliableUDPListener extends UDPListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReliableUDPListener.class);
+
+    private static final int MAX_SEQUENCES_PER_NACK = 128;
+
+    @Inject(optional = true)
+    @Named("s4.comm.udp.retransmitBufferSize")
+    int retransmitBufferSize = 1024;
+
+    @Inject(optional = true)
+    @Named("s4.comm.udp.nackIntervalMs")
+    long nackIntervalMs = 20;
+
+    @Inject(optional = true)
+    @Named("s4.comm.udp.maxNackAttempts")
+    int maxNackAttempts = 5;
+
+    private final ConcurrentMap<Long, SenderState> senders = new ConcurrentHashMap<Long, SenderState>();
+    private final ScheduledExecutorService nackTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ReliableUDPListener-nacks-%d").setDaemon(true).build());
+
+    private final AtomicLong nacksSent = new AtomicLong();
+    private final AtomicLong recoveredDatagrams = new AtomicLong();
+    private final AtomicLong lostDatagrams = new AtomicLong();
+    private final AtomicLong duplicateDatagrams = new AtomicLong();
+
+    @Inject
+    public ReliableUDPListener(Assignment assignment) {
+        super(assignment);
+    }
+
+    public ReliableUDPListener(Assignment assignment, int UDPBufferSize) {
+        super(assignment, UDPBufferSize);
+    }
+
+    @Inject
+    private void startNackTimer() {
+        nackTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (SenderState sender : senders.values()) {
+                    sendNacks(sender, sender.renack());
+                }
+            }
+        }, nackIntervalMs, nackIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void onDatagram(ByteBuffer datagram, SocketAddress sender) {
+        if (datagram.remaining() < ReliableUDPEmitter.HEADER_LENGTH
+                || datagram.get(datagram.position()) != ReliableUDPEmitter.DATA) {
+            logger.error("Dropping datagram without sequence number from {}", sender);
+            return;
+        }
+        datagram.get();
+        long sessionId = datagram.getLong();
+        long sequence = datagram.getLong();
+
+        SenderState state = senders.get(sessionId);
+        if (state == null) {
+            senders.putIfAbsent(sessionId, new SenderState(sessionId, sender));
+            state = senders.get(sessionId);
+        }
+        List<Long> missing = new ArrayList<Long>(0);
+        if (state.accept(sequence, missing)) {
+            deliverFrames(datagram, sender);
+        } else {
+            duplicateDatagrams.incrementAndGet();
+        }
+        sendNacks(state, missing);
+    }
+
+    private void sendNacks(SenderState sender, List<Long> sequences) {
+        for (int from = 0; from < sequences.size(); from += MAX_SEQUENCES_PER_NACK) {
+            int count = Math.min(MAX_SEQUENCES_PER_NACK, sequences.size() - from);
+            ByteBuffer nack = ByteBuffer.allocate(ReliableUDPEmitter.NACK_HEADER_LENGTH + 8 * count);
+            nack.put(ReliableUDPEmitter.NACK);
+            nack.putLong(sender.sessionId);
+            nack.putInt(getPartitionId());
+            nack.putInt(count);
+            for (int i = from; i < from + count; i++) {
+                nack.putLong(sequences.get(i));
+            }
+            nack.flip();
+            try {
+                getChannel().send(nack, sender.address);
+                nacksSent.incrementAndGet();
+            } catch (IOException e) {
+                logger.error("Cannot send NACK to {}: {}", sender.address, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of NACK datagrams sent
+     */
+    public long getNackCount() {
+        return nacksSent.get();
+    }
+
+    /**
+     * @return the number of missing datagrams received after a NACK
+     */
+    public long getRecoveredDatagramCount() {
+        return recoveredDatagrams.get();
+    }
+
+    /**
+     * @return the number of missing datagrams given up on
+     */
+    public long getLostDatagramCount() {
+        return lostDatagrams.get();
+    }
+
+    /**
+     * @return the number of datagrams received more than once
+     */
+    public long getDuplicateDatagramCount() {
+        return duplicateDatagrams.get();
+    }
+
+    @Override
+    public void close() {
+        nackTimer.shutdownNow();
+        super.close();
+    }
+
+    /**
+     * Sequence numbers received from an emitter.
+     */
+    private class SenderState {
+        final long sessionId;
+        final SocketAddress address;
+        private long highest;
+        private boolean started = false;
+        /* missing sequence number -> NACKs sent */
+        private final TreeMap<Long, Integer> missing = new TreeMap<Long, Integer>();
+
+        SenderState(long sessionId, SocketAddress address) {
+            this.sessionId = sessionId;
+            this.address = address;
+        }
+
+        /*
+         * Returns true if the datagram was not received before. Sequence numbers to request right away are added to
+         * the given list.
+         */
+        synchronized boolean accept(long sequence, List<Long> newlyMissing) {
+            if (!started) {
+                // datagrams sent before this listener started are not requested
+                started = true;
+                highest = sequence;
+                return true;
+            }
+            if (sequence > highest) {
+                // gaps larger than the emitter buffer cannot be recovered
+                long from = Math.max(highest + 1, sequence - retransmitBufferSize);
+                lostDatagrams.addAndGet(from - highest - 1);
+                for (long s = from; s < sequence; s++) {
+                    missing.put(s, 1);
+                    newlyMissing.add(s);
+                }
+                highest = sequence;
+                while (missing.size() > retransmitBufferSize) {
+                    missing.pollFirstEntry();
+                    lostDatagrams.incrementAndGet();
+                }
+                return true;
+            }
+            if (missing.remove(sequence) != null) {
+                recoveredDatagrams.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /* Returns the sequence numbers to request again, and gives up on those requested too many times. */
+        synchronized List<Long> renack() {
+            List<Long> sequences = new ArrayList<Long>(missing.size());
+            Iterator<Map.Entry<Long, Integer>> it = missing.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Integer> entry = it.next();
+                if (entry.getValue() >= maxNackAttempts) {
+                    it.remove();
+                    lostDatagrams.incrementAndGet();
+                } else {
+                    entry.setValue(entry.getValue() + 1);
+                    sequences.add(entry.getKey());
+                }
+            }
+            return sequences;
+        }
+    }
+}
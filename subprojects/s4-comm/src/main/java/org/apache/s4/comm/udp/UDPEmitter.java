@@ -19,40 +19,86 @@
 package org.apache.s4.comm.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
-import org.apache.s4.base.SerializerDeserializer;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.Cluster;
 import org.apache.s4.comm.topology.ClusterChangeListener;
 import org.apache.s4.comm.topology.ClusterNode;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.HashBiMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 /**
  * UDP based emitter.
- *
+ * <p>
+ * Frames sent to a partition are packed in a single datagram, up to <code>s4.comm.udp.maxDatagramBytes</code>. A
+ * datagram is sent when the next frame does not fit, or at the latest <code>s4.comm.udp.flushIntervalMicros</code>
+ * after its first frame was added. Frames larger than a datagram are sent alone.
+ * <p>
+ * Subclasses may reserve a header at the beginning of each datagram, see {@link #getHeaderLength()} and
+ * {@link #sendDatagram(int, ByteBuffer)}.
+ * 
  */
 public class UDPEmitter implements Emitter, ClusterChangeListener {
-    private DatagramSocket socket;
+    private static final Logger logger = LoggerFactory.getLogger(UDPEmitter.class);
+
+    private final DatagramChannel channel;
     private final HashBiMap<Integer, ClusterNode> nodes;
-    private final Map<Integer, InetAddress> inetCache = new HashMap<Integer, InetAddress>();
-    private final long messageDropInQueueCount = 0;
+    private final ConcurrentMap<Integer, InetSocketAddress> addresses = new ConcurrentHashMap<Integer, InetSocketAddress>();
+    private final ConcurrentMap<Integer, PartitionBatch> batches = new ConcurrentHashMap<Integer, PartitionBatch>();
     private final Cluster topology;
 
-    @Inject
-    SerializerDeserializer serDeser;
+    // default fits in an ethernet frame: 1500 bytes minus IP and UDP headers
+    @Inject(optional = true)
+    @Named("s4.comm.udp.maxDatagramBytes")
+    int maxDatagramBytes = 1472;
+
+    @Inject(optional = true)
+    @Named("s4.comm.udp.flushIntervalMicros")
+    long flushIntervalMicros = 100;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("UDPEmitter-flusher-%d").setDaemon(true).build());
+
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
 
+    /**
+     * @return the number of messages that could not be sent
+     */
     public long getMessageDropInQueueCount() {
-        return messageDropInQueueCount;
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the number of datagrams sent so far
+     */
+    public long getDatagramCount() {
+        return datagrams.get();
+    }
+
+    /**
+     * @return the average number of messages per datagram
+     */
+    public double getAverageBatchSize() {
+        long count = datagrams.get();
+        return count == 0 ? 0 : (double) sentMessages.get() / count;
     }
 
     @Inject
@@ -64,9 +110,9 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
         }
 
         try {
-            socket = new DatagramSocket();
-        } catch (SocketException se) {
-            throw new RuntimeException(se);
+            channel = DatagramChannel.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -78,29 +124,52 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
 
     @Override
     public boolean send(int partitionId, EventMessage eventMessage) {
-        try {
-            byte[] message = serDeser.serialize(eventMessage);
-            ClusterNode node = nodes.get(partitionId);
-            if (node == null) {
-                LoggerFactory.getLogger(getClass()).error(
+        PartitionBatch batch = batches.get(partitionId);
+        if (batch == null) {
+            if (nodes.get(partitionId) == null) {
+                logger.error(
                         "Cannot send message to partition {} because this partition is not visible to this emitter",
                         partitionId);
                 return false;
             }
-            byte[] byteBuffer = new byte[message.length];
-            System.arraycopy(message, 0, byteBuffer, 0, message.length);
-            InetAddress inetAddress = inetCache.get(partitionId);
-            if (inetAddress == null) {
-                inetAddress = InetAddress.getByName(node.getMachineName());
-                inetCache.put(partitionId, inetAddress);
-            }
-            DatagramPacket dp = new DatagramPacket(byteBuffer, byteBuffer.length, inetAddress, node.getPort());
-            socket.send(dp);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            batches.putIfAbsent(partitionId, new PartitionBatch(partitionId));
+            batch = batches.get(partitionId);
         }
+        return batch.add(eventMessage);
+    }
 
-        return true;
+    /**
+     * @return number of bytes reserved at the beginning of each datagram
+     */
+    protected int getHeaderLength() {
+        return 0;
+    }
+
+    /**
+     * Sends a datagram to a partition. The first {@link #getHeaderLength()} bytes of the datagram are reserved for the
+     * subclass.
+     * 
+     * @param datagram
+     *            the datagram, from its position to its limit. It is reused once the method returns.
+     * @throws IOException
+     *             if the datagram could not be sent
+     */
+    protected void sendDatagram(int partitionId, ByteBuffer datagram) throws IOException {
+        channel.send(datagram, getAddress(partitionId));
+    }
+
+    protected DatagramChannel getChannel() {
+        return channel;
+    }
+
+    protected InetSocketAddress getAddress(int partitionId) {
+        InetSocketAddress address = addresses.get(partitionId);
+        if (address == null) {
+            ClusterNode node = nodes.get(partitionId);
+            address = new InetSocketAddress(node.getMachineName(), node.getPort());
+            addresses.put(partitionId, address);
+        }
+        return address;
     }
 
     @Override
@@ -120,13 +189,91 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
                 Integer partition = clusterNode.getPartition();
                 nodes.forcePut(partition, clusterNode);
             }
+            addresses.clear();
         }
 
     }
 
     @Override
     public void close() {
-        // TODO Auto-generated method stub
+        flusher.shutdown();
+        for (PartitionBatch batch : batches.values()) {
+            batch.run();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error while closing UDP channel", e);
+        }
+    }
+
+    /**
+     * Frames waiting to be sent to a partition, in a buffer the size of a datagram.
+     */
+    class PartitionBatch implements Runnable {
+        private final int partitionId;
+        private final int headerLength = getHeaderLength();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(maxDatagramBytes);
+        private int messages = 0;
+        private boolean flushScheduled = false;
+
+        PartitionBatch(int partitionId) {
+            this.partitionId = partitionId;
+            buffer.position(headerLength);
+        }
 
+        synchronized boolean add(EventMessage message) {
+            int length = EventMessageCodec.encodedLength(message);
+            if (length > buffer.remaining()) {
+                flush();
+            }
+            if (length > buffer.capacity() - headerLength) {
+                ByteBuffer frame = ByteBuffer.allocate(headerLength + length);
+                frame.position(headerLength);
+                EventMessageCodec.encode(message, frame);
+                frame.flip();
+                return send(frame, 1);
+            }
+            EventMessageCodec.encode(message, buffer);
+            messages++;
+            if (flushIntervalMicros <= 0) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this, flushIntervalMicros, TimeUnit.MICROSECONDS);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void run() {
+            flushScheduled = false;
+            flush();
+        }
+
+        private void flush() {
+            if (messages == 0) {
+                return;
+            }
+            buffer.flip();
+            send(buffer, messages);
+            buffer.clear();
+            buffer.position(headerLength);
+            messages = 0;
+        }
+
+        private boolean send(ByteBuffer datagram, int count) {
+            try {
+                sendDatagram(partitionId, datagram);
+                datagrams.incrementAndGet();
+                sentMessages.addAndGet(count);
+                return true;
+            } catch (IOException e) {
+                logger.error("Cannot send {} messages to partition {}: {}",
+                        new Object[] { count, partitionId, e.getMessage() });
+                droppedMessages.addAndGet(count);
+                return false;
+            }
+        }
     }
 }
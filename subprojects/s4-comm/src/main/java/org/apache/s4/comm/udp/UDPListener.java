@@ -19,31 +19,55 @@
 package org.apache.s4.comm.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
 import org.apache.s4.base.Listener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.Assignment;
 import org.apache.s4.comm.topology.ClusterNode;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 /**
  * 
  * Implementation of a simple UDP listener.
+ * <p>
+ * Datagrams are received by <code>s4.comm.udp.receiveThreads</code> threads, each with its own direct buffer, and may
+ * contain several frames. With more than one thread, messages from a given sender may be handed over out of order.
+ * <p>
+ * UDP offers no backpressure: messages that the handler does not accept are dropped and counted.
  * 
  */
-public class UDPListener implements Listener, Runnable {
+public class UDPListener implements Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(UDPListener.class);
 
-    private DatagramSocket socket;
-    private DatagramPacket datagram;
-    private byte[] bs;
+    private final DatagramChannel channel;
     static int BUFFER_LENGTH = 65507;
-    private BlockingQueue<byte[]> handoffQueue = new SynchronousQueue<byte[]>();
+    private volatile EventMessageHandler handler;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong receivedDatagrams = new AtomicLong();
+    private final List<Thread> receiveThreads = new ArrayList<Thread>();
     private ClusterNode node;
 
+    @Inject(optional = true)
+    @Named("s4.comm.udp.receiveThreads")
+    int receiveThreadCount = 2;
+
     @Inject
     public UDPListener(Assignment assignment) {
         this(assignment, -1);
@@ -54,57 +78,119 @@ public class UDPListener implements Listener, Runnable {
         node = assignment.assignClusterNode();
 
         try {
-            socket = new DatagramSocket(node.getPort());
+            channel = DatagramChannel.open();
+            channel.socket().bind(new InetSocketAddress(node.getPort()));
             if (UDPBufferSize > 0) {
-                socket.setReceiveBufferSize(UDPBufferSize);
+                channel.socket().setReceiveBufferSize(UDPBufferSize);
             }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        bs = new byte[BUFFER_LENGTH];
-        datagram = new DatagramPacket(bs, bs.length);
     }
 
     @Inject
     private void init() {
-        (new Thread(this)).start();
+        for (int i = 0; i < receiveThreadCount; i++) {
+            Thread thread = new Thread(new DatagramReceiver(), "UDPListener-" + node.getPartition() + "-" + i);
+            thread.setDaemon(true);
+            receiveThreads.add(thread);
+            thread.start();
+        }
     }
 
-    public void run() {
-        try {
-            while (!Thread.interrupted()) {
-                socket.receive(datagram);
-                byte[] data = new byte[datagram.getLength()];
-                System.arraycopy(datagram.getData(), datagram.getOffset(), data, 0, data.length);
-                datagram.setLength(BUFFER_LENGTH);
-                try {
-                    handoffQueue.put(data);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
+    private class DatagramReceiver implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    buffer.clear();
+                    SocketAddress sender = channel.receive(buffer);
+                    buffer.flip();
+                    receivedDatagrams.incrementAndGet();
+                    onDatagram(buffer, sender);
                 }
+            } catch (ClosedChannelException e) {
+                // closed
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    public byte[] recv() {
-        try {
-            return handoffQueue.take();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return null;
+    /**
+     * Called by receiving threads for each datagram.
+     * 
+     * @param datagram
+     *            content of the datagram, from its position to its limit. The buffer is reused once the method
+     *            returns.
+     * @param sender
+     *            address of the sender
+     */
+    protected void onDatagram(ByteBuffer datagram, SocketAddress sender) {
+        deliverFrames(datagram, sender);
+    }
+
+    /**
+     * Decodes the frames from the position of the datagram up to its limit, and hands them over to the handler.
+     */
+    protected void deliverFrames(ByteBuffer datagram, SocketAddress sender) {
+        // payloads of decoded messages are views of this copy
+        ChannelBuffer frames = ChannelBuffers.copiedBuffer(datagram);
+        while (frames.readable()) {
+            EventMessage message;
+            try {
+                message = EventMessageCodec.decode(frames);
+            } catch (IllegalArgumentException iae) {
+                logger.error("Dropping invalid datagram from {}: {}", sender, iae.getMessage());
+                return;
+            }
+            EventMessageHandler h = handler;
+            // not retried: lanes that had no room for the message miss it
+            if (h == null || !h.onMessage(message, null)) {
+                droppedMessages.incrementAndGet();
+            }
         }
     }
 
+    protected DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void setHandler(EventMessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return the number of messages received but not accepted by the handler
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the number of datagrams received so far
+     */
+    public long getReceivedDatagramCount() {
+        return receivedDatagrams.get();
+    }
+
     public int getPartitionId() {
         return node.getPartition();
     }
 
     @Override
     public void close() {
-        // TODO Auto-generated method stub
-
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error while closing UDP channel", e);
+        }
+        for (Thread thread : receiveThreads) {
+            thread.interrupt();
+        }
     }
 
 }
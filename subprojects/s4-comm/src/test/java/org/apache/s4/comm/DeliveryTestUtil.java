@@ -18,8 +18,13 @@
 
 package org.apache.s4.comm;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.s4.base.DeliveryState;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
 import org.apache.s4.base.Listener;
 
 import com.google.inject.Inject;
@@ -41,6 +46,7 @@ public class DeliveryTestUtil {
 
     private final Emitter emitter;
     private final Listener listener;
+    private final BlockingQueue<EventMessage> received = new LinkedBlockingQueue<EventMessage>();
     private final int interval;
     private int numMessages;
     private int sleepCount;
@@ -57,6 +63,12 @@ public class DeliveryTestUtil {
         this.numMessages = numMessages;
         this.sleepCount = sleepCount;
         this.messagesExpected = numMessages * this.emitter.getPartitionCount();
+        this.listener.setHandler(new EventMessageHandler() {
+            @Override
+            public boolean onMessage(EventMessage message, DeliveryState state) {
+                return received.offer(message);
+            }
+        });
 
         // this.sendThread = new SendThread();
         // this.receiveThread = new ReceiveThread();
@@ -69,7 +81,7 @@ public class DeliveryTestUtil {
                 for (int partition = 0; partition < emitter.getPartitionCount(); partition++) {
                     for (int i = 0; i < numMessages; i++) {
                         byte[] message = (new String("message-" + i)).getBytes();
-                        emitter.send(partition, new EventMessage(null, null, message));
+                        emitter.send(partition, new EventMessage(-1, -1, message));
                         Thread.sleep(interval);
                     }
                 }
@@ -130,12 +142,13 @@ public class DeliveryTestUtil {
             TimerThread timer = new TimerThread(this);
             timer.start();
             while (messagesReceived < messagesExpected) {
-                byte[] message = listener.recv();
-                timer.resetSleepCounter();
-                if (message != null)
-                    messagesReceived++;
-                else
+                try {
+                    received.take();
+                } catch (InterruptedException e) {
                     break;
+                }
+                timer.resetSleepCounter();
+                messagesReceived++;
             }
             timer.clearSleepCounter();
         }
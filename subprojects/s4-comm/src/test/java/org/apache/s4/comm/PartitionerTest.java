@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.s4.base.Hasher;
+import org.apache.s4.base.Partitioner;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+
+public class PartitionerTest {
+
+    private static Logger logger = LoggerFactory.getLogger(PartitionerTest.class);
+
+    private static final int KEYS = 100000;
+
+    @Test
+    public void testMurmur3MatchesReference() {
+        Hasher hasher = new Murmur3Hasher();
+        for (int length = 0; length < 40; length++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                sb.append((char) ('a' + (i * 7 + length) % 26));
+            }
+            String key = sb.toString();
+            Assert.assertEquals(key, Hashing.murmur3_128().hashString(key, Charsets.UTF_16LE).asLong(),
+                    hasher.hash(key));
+        }
+        Assert.assertEquals(Hashing.murmur3_128().hashString("\u00e9t\u00e9 \u4e2d", Charsets.UTF_16LE).asLong(),
+                hasher.hash("\u00e9t\u00e9 \u4e2d"));
+    }
+
+    @Test
+    public void testInvalidHasherClassIsRejected() {
+        try {
+            Guice.createInjector(new DefaultCommModule(new ByteArrayInputStream(
+                    "s4.comm.hasher.class=org.apache.s4.comm.NoSuchHasher".getBytes()), "cluster1"));
+            Assert.fail("Invalid hasher class accepted");
+        } catch (CreationException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("Invalid s4.comm.hasher.class"));
+        }
+    }
+
+    @Test
+    public void testModulo() {
+        checkDistribution("modulo", new ModuloPartitioner(), 0.1);
+    }
+
+    @Test
+    public void testJumpHash() {
+        double moved = checkDistribution("jump hash", new JumpHashPartitioner(), 0.1);
+        // ideally 1/17 of the keys
+        Assert.assertTrue(moved < 0.07);
+    }
+
+    @Test
+    public void testConsistentHashRing() {
+        double moved = checkDistribution("hash ring", new ConsistentHashRingPartitioner(128), 0.3);
+        Assert.assertTrue(moved < 0.1);
+    }
+
+    @Test
+    public void testHashersSpreadKeysConsistently() {
+        Hasher[][] hashers = new Hasher[][] { { new DefaultHasher(), new DefaultHasher() },
+                { new Murmur3Hasher(), new Murmur3Hasher() } };
+        for (Hasher[] pair : hashers) {
+            String name = pair[0].getClass().getSimpleName();
+            Set<Long> hashes = new HashSet<Long>();
+            int[] counts = new int[17];
+            for (int i = 0; i < KEYS; i++) {
+                String key = "user-" + i;
+                long hash = pair[0].hash(key);
+                // same hash from another instance, and for any char sequence with the same content
+                Assert.assertEquals(name, hash, pair[1].hash(key));
+                Assert.assertEquals(name, hash, pair[0].hash(new StringBuilder(key)));
+                hashes.add(hash);
+                counts[new ModuloPartitioner().partition(hash, counts.length)]++;
+            }
+            Assert.assertEquals(name, KEYS, hashes.size());
+            double expected = (double) KEYS / counts.length;
+            for (int count : counts) {
+                Assert.assertTrue(name, Math.abs(count - expected) < expected * 0.1);
+            }
+        }
+    }
+
+    /*
+     * Checks that every partition gets its share of the keys (within the given relative deviation) and returns the
+     * fraction of keys moved when going from 16 to 17 partitions.
+     */
+    private double checkDistribution(String name, Partitioner partitioner, double maxDeviation) {
+        Hasher hasher = new Murmur3Hasher();
+        int[] counts = new int[17];
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            long hash = hasher.hash("user-" + i);
+            int before = partitioner.partition(hash, 16);
+            Assert.assertTrue(before >= 0 && before < 16);
+            int after = partitioner.partition(hash, 17);
+            counts[after]++;
+            if (before != after) {
+                moved++;
+            }
+        }
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int count : counts) {
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        double expected = (double) KEYS / counts.length;
+        logger.info("{}: {} to {} keys per partition, {}% moved from 16 to 17 partitions", new Object[] { name,
+                min, max, 100.0 * moved / KEYS });
+        Assert.assertTrue(name, min > expected * (1 - maxDeviation));
+        Assert.assertTrue(name, max < expected * (1 + maxDeviation));
+        return (double) moved / KEYS;
+    }
+}
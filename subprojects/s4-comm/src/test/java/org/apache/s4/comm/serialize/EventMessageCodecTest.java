@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+
+import org.apache.s4.base.EventMessage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventMessageCodecTest {
+
+    @Test
+    public void testKeyedMessage() {
+        EventMessage decoded = EventMessageCodec.decode(EventMessageCodec.encode(new EventMessage(3, 42, 1234567890123L,
+                "payload".getBytes())));
+        Assert.assertEquals(3, decoded.getAppId());
+        Assert.assertEquals(42, decoded.getStreamId());
+        Assert.assertTrue(decoded.isKeyed());
+        Assert.assertEquals(1234567890123L, decoded.getKeyHash());
+        Assert.assertEquals("payload", payload(decoded));
+    }
+
+    @Test
+    public void testMessageWithKey() {
+        EventMessage message = new EventMessage(3, 42, 99L, "user^42", "payload".getBytes());
+        ByteBuffer frame = ByteBuffer.allocate(EventMessageCodec.encodedLength(message));
+        EventMessageCodec.encode(message, frame);
+        Assert.assertEquals(0, frame.remaining());
+
+        byte[] bytes = frame.array();
+        for (EventMessage decoded : new EventMessage[] { EventMessageCodec.decode(bytes, 0, bytes.length),
+                EventMessageCodec.decode(EventMessageCodec.encode(message)) }) {
+            Assert.assertTrue(decoded.isKeyed());
+            Assert.assertEquals(99L, decoded.getKeyHash());
+            Assert.assertEquals("user^42", decoded.getKey());
+            Assert.assertEquals("payload", payload(decoded));
+        }
+    }
+
+    @Test
+    public void testVersion1Frame() {
+        byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(3, 42, 99L, "payload".getBytes()));
+        frame[0] = 1;
+        EventMessage decoded = EventMessageCodec.decode(frame, 0, frame.length);
+        Assert.assertEquals(99L, decoded.getKeyHash());
+        Assert.assertNull(decoded.getKey());
+        Assert.assertEquals("payload", payload(decoded));
+    }
+
+    @Test
+    public void testBroadcastMessageFromArray() {
+        byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(-1, 7, "payload".getBytes()));
+        Assert.assertEquals(EventMessageCodec.HEADER_LENGTH + "payload".length(), frame.length);
+        EventMessage decoded = EventMessageCodec.decode(frame, 0, frame.length);
+        Assert.assertEquals(-1, decoded.getAppId());
+        Assert.assertEquals(7, decoded.getStreamId());
+        Assert.assertFalse(decoded.isKeyed());
+        Assert.assertEquals("payload", payload(decoded));
+    }
+
+    @Test
+    public void testMessageFromOtherApp() {
+        byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(3, 7, ByteBuffer.wrap("payload".getBytes()),
+                true));
+        EventMessage decoded = EventMessageCodec.decode(frame, 0, frame.length);
+        Assert.assertTrue(decoded.isFromOtherApp());
+        Assert.assertFalse(decoded.isKeyed());
+        Assert.assertEquals("payload", payload(decoded));
+        frame = EventMessageCodec.encodeToArray(new EventMessage(3, 7, "payload".getBytes()));
+        Assert.assertFalse(EventMessageCodec.decode(frame, 0, frame.length).isFromOtherApp());
+    }
+
+    @Test
+    public void testLengthPrefixedMessage() {
+        ChannelBuffer frame = EventMessageCodec.encodeLengthPrefixed(new EventMessage(1, 2, "payload".getBytes()));
+        Assert.assertEquals(frame.readableBytes() - 4, frame.readInt());
+        Assert.assertEquals("payload", payload(EventMessageCodec.decode(frame)));
+        Assert.assertEquals(0, frame.readableBytes());
+    }
+
+    private static String payload(EventMessage message) {
+        ByteBuffer payload = message.getSerializedEvent();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedFrame() {
+        ChannelBuffer frame = EventMessageCodec.encode(new EventMessage(1, 1, "payload".getBytes()));
+        EventMessageCodec.decode(frame.slice(0, frame.readableBytes() - 1));
+    }
+}
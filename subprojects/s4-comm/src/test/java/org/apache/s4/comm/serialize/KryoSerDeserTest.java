@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.s4.comm.serialize.KryoSerDeser.SerializerFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.serialize.SimpleSerializer;
+import com.esotericsoftware.kryo.serialize.StringSerializer;
+
+public class KryoSerDeserTest {
+
+    public static class Sample {
+        String text;
+        long value;
+    }
+
+    @Test
+    public void testRegisteredClassIsSmaller() {
+        KryoSerDeser serDeser = new KryoSerDeser(getClass().getClassLoader());
+        byte[] byName = serDeser.serialize(sample());
+        serDeser.registerClass(Sample.class);
+        byte[] byId = serDeser.serialize(sample());
+        Assert.assertTrue(byId.length < byName.length);
+
+        Sample read = (Sample) serDeser.deserialize(byId);
+        Assert.assertEquals("text", read.text);
+        Assert.assertEquals(42L, read.value);
+    }
+
+    @Test
+    public void testDuplicateRegistrationIsIgnored() {
+        KryoSerDeser serDeser = new KryoSerDeser(getClass().getClassLoader());
+        Assert.assertFalse(serDeser.isRegistered(Sample.class));
+        serDeser.registerClass(Sample.class);
+        serDeser.registerClass(Sample.class);
+        Assert.assertTrue(serDeser.isRegistered(Sample.class));
+        Assert.assertEquals(1, serDeser.getRegisteredClasses().size());
+    }
+
+    @Test
+    public void testRegistrationVisibleFromOtherThreads() throws Exception {
+        final KryoSerDeser serDeser = new KryoSerDeser(getClass().getClassLoader());
+        serDeser.registerClass(Sample.class);
+        final byte[] bytes = serDeser.serialize(sample());
+
+        final AtomicReference<Object> read = new AtomicReference<Object>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read.set(serDeser.deserialize(bytes));
+            }
+        });
+        reader.start();
+        reader.join();
+        Assert.assertEquals("text", ((Sample) read.get()).text);
+    }
+
+    @Test
+    public void testRegistrationAfterUseMatchesRegisteredReader() {
+        // the writer used the class before registering it, the reader registered it from the start
+        KryoSerDeser writer = new KryoSerDeser(getClass().getClassLoader());
+        writer.serialize(sample());
+        writer.registerClass(Sample.class, new SampleSerializerFactory());
+        KryoSerDeser reader = new KryoSerDeser(getClass().getClassLoader());
+        reader.registerClass(Sample.class, new SampleSerializerFactory());
+
+        byte[] bytes = writer.serialize(sample());
+        Assert.assertArrayEquals(reader.serialize(sample()), bytes);
+        Sample read = (Sample) reader.deserialize(bytes);
+        Assert.assertEquals("text", read.text);
+        Assert.assertEquals(42L, read.value);
+    }
+
+    static class SampleSerializerFactory implements SerializerFactory {
+        @Override
+        public Serializer newSerializer(Kryo kryo) {
+            return new SimpleSerializer<Sample>() {
+                @Override
+                public Sample read(ByteBuffer buffer) {
+                    Sample sample = new Sample();
+                    sample.value = buffer.getLong();
+                    sample.text = StringSerializer.get(buffer);
+                    return sample;
+                }
+
+                @Override
+                public void write(ByteBuffer buffer, Sample sample) {
+                    buffer.putLong(sample.value);
+                    StringSerializer.put(buffer, sample.text);
+                }
+            };
+        }
+    }
+
+    private static Sample sample() {
+        Sample sample = new Sample();
+        sample.text = "text";
+        sample.value = 42L;
+        return sample;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.udp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.base.DeliveryState;
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
+import org.apache.s4.comm.topology.Assignment;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+public class ReliableUDPTest {
+
+    private static final int MESSAGES = 1000;
+
+    /**
+     * Drops the first copy of one datagram out of ten.
+     */
+    static class LossyListener extends ReliableUDPListener {
+        private final Set<Long> dropped = new HashSet<Long>();
+
+        @Inject
+        public LossyListener(Assignment assignment) {
+            super(assignment);
+        }
+
+        @Override
+        protected void onDatagram(ByteBuffer datagram, SocketAddress sender) {
+            long sequence = datagram.getLong(datagram.position() + 9);
+            synchronized (dropped) {
+                if (sequence % 10 == 5 && dropped.add(sequence)) {
+                    return;
+                }
+            }
+            super.onDatagram(datagram, sender);
+        }
+    }
+
+    @Test
+    public void testRetransmission() throws Exception {
+        Properties properties = new Properties();
+        // one message per datagram
+        properties.setProperty("s4.comm.udp.flushIntervalMicros", "0");
+        properties.setProperty("s4.comm.udp.receiveThreads", "1");
+        Injector injector = UDPLoopbackTest.newInjector(properties);
+        LossyListener listener = injector.getInstance(LossyListener.class);
+        ReliableUDPEmitter emitter = injector.getInstance(ReliableUDPEmitter.class);
+        final AtomicInteger received = new AtomicInteger();
+        listener.setHandler(new EventMessageHandler() {
+            @Override
+            public boolean onMessage(EventMessage message, DeliveryState state) {
+                received.incrementAndGet();
+                return true;
+            }
+        });
+
+        for (int i = 0; i < MESSAGES; i++) {
+            emitter.send(0, new EventMessage(1, 1, ("message-" + i).getBytes()));
+            if (i % 100 == 0) {
+                // leave time to the receiving thread, so that the socket buffer does not overflow
+                Thread.sleep(10);
+            }
+        }
+        for (int i = 0; i < 50 && received.get() < MESSAGES; i++) {
+            Thread.sleep(100);
+        }
+        emitter.close();
+        listener.close();
+
+        Assert.assertEquals(MESSAGES, received.get());
+        Assert.assertEquals(MESSAGES / 10, listener.getRecoveredDatagramCount());
+        Assert.assertTrue(emitter.getRetransmittedDatagramCount() >= MESSAGES / 10);
+        Assert.assertEquals(0, listener.getLostDatagramCount());
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.udp;
+
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.s4.base.DeliveryState;
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
+import org.apache.s4.comm.topology.Assignment;
+import org.apache.s4.comm.topology.Cluster;
+import org.apache.s4.comm.topology.ClusterChangeListener;
+import org.apache.s4.comm.topology.ClusterNode;
+import org.apache.s4.comm.topology.PhysicalCluster;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+/**
+ * Sends messages over the loopback interface, one per datagram as without packing, then packed in datagrams.
+ */
+public class UDPLoopbackTest {
+
+    private static final int MESSAGES = 1000;
+
+    @Test
+    public void testPackedDelivery() throws Exception {
+        Result result = run(MESSAGES, 10000, 1000, 1);
+        Assert.assertEquals(MESSAGES, result.received.size());
+        Assert.assertTrue(result.datagrams < MESSAGES);
+    }
+
+    @Test
+    public void testUnpackedAndPackedDeliverSameMessages() throws Exception {
+        Result unpacked = run(MESSAGES, 0, 1, 1);
+        Result packed = run(MESSAGES, 100, 1472, 2);
+        Assert.assertEquals(MESSAGES, unpacked.datagrams);
+        Assert.assertTrue(packed.datagrams < MESSAGES);
+
+        Set<Integer> sent = new HashSet<Integer>();
+        for (int i = 0; i < MESSAGES; i++) {
+            sent.add(i);
+        }
+        Assert.assertEquals(sent, unpacked.received);
+        Assert.assertEquals(sent, packed.received);
+    }
+
+    /* Each message holds its index in its payload. */
+    private Result run(int messages, long flushIntervalMicros, int maxDatagramBytes, int receiveThreads)
+            throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("s4.comm.udp.flushIntervalMicros", String.valueOf(flushIntervalMicros));
+        properties.setProperty("s4.comm.udp.maxDatagramBytes", String.valueOf(maxDatagramBytes));
+        properties.setProperty("s4.comm.udp.receiveThreads", String.valueOf(receiveThreads));
+        Injector injector = newInjector(properties);
+        UDPListener listener = injector.getInstance(UDPListener.class);
+        UDPEmitter emitter = injector.getInstance(UDPEmitter.class);
+        final Set<Integer> received = Collections.synchronizedSet(new HashSet<Integer>());
+        listener.setHandler(new EventMessageHandler() {
+            @Override
+            public boolean onMessage(EventMessage message, DeliveryState state) {
+                received.add(message.getSerializedEvent().getInt());
+                return true;
+            }
+        });
+
+        for (int i = 0; i < messages; i++) {
+            emitter.send(0, new EventMessage(1, 1, ByteBuffer.allocate(40).putInt(0, i).array()));
+            if (i % 50 == 49) {
+                // paced, so that unpacked datagrams do not overflow the receive buffer of the socket
+                Thread.sleep(1);
+            }
+        }
+        // wait until nothing more arrives
+        int last = -1;
+        while (received.size() != last && received.size() < messages) {
+            last = received.size();
+            Thread.sleep(200);
+        }
+        Result result = new Result(new HashSet<Integer>(received), emitter.getDatagramCount());
+        emitter.close();
+        listener.close();
+        return result;
+    }
+
+    /* Single partition cluster on localhost. */
+    static Injector newInjector(final Properties properties) throws SocketException {
+        final ClusterNode node = new ClusterNode(0, freePort(), "localhost", "Task-0");
+        final PhysicalCluster physicalCluster = new PhysicalCluster(1);
+        physicalCluster.addNode(node);
+
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Names.bindProperties(binder(), properties);
+                bind(Assignment.class).toInstance(new Assignment() {
+                    @Override
+                    public ClusterNode assignClusterNode() {
+                        return node;
+                    }
+                });
+                bind(Cluster.class).toInstance(new Cluster() {
+                    @Override
+                    public PhysicalCluster getPhysicalCluster() {
+                        return physicalCluster;
+                    }
+
+                    @Override
+                    public void addListener(ClusterChangeListener listener) {
+                    }
+
+                    @Override
+                    public void removeListener(ClusterChangeListener listener) {
+                    }
+                });
+            }
+        });
+    }
+
+    private static int freePort() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    static class Result {
+        final Set<Integer> received;
+        final long datagrams;
+
+        Result(Set<Integer> received, long datagrams) {
+            this.received = received;
+            this.datagrams = datagrams;
+        }
+    }
+}
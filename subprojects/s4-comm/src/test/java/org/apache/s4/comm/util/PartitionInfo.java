@@ -18,14 +18,18 @@
 
 package org.apache.s4.comm.util;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import org.apache.s4.base.DeliveryState;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
 import org.apache.s4.base.Listener;
-import org.apache.s4.base.SerializerDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +53,7 @@ public class PartitionInfo {
     public Listener listener;
     public SendThread sendThread;
     public ReceiveThread receiveThread;
+    private final BlockingQueue<EventMessage> received = new LinkedBlockingQueue<EventMessage>();
 
     private final int numRetries = 10;
     private final int retryDelayMs = 10;
@@ -56,14 +61,17 @@ public class PartitionInfo {
     private int partitionId;
     private ProtocolTestUtil ptu;
 
-    @Inject
-    SerializerDeserializer serDeser;
-
     @Inject
     public PartitionInfo(Emitter emitter, Listener listener) {
         this.emitter = emitter;
         this.listener = listener;
         this.partitionId = this.listener.getPartitionId();
+        this.listener.setHandler(new EventMessageHandler() {
+            @Override
+            public boolean onMessage(EventMessage message, DeliveryState state) {
+                return received.offer(message);
+            }
+        });
         logger.debug("# Partitions = {}; Current partition = {}", this.emitter.getPartitionCount(),
                 this.listener.getPartitionId());
 
@@ -90,7 +98,7 @@ public class PartitionInfo {
             try {
                 for (int i = 0; i < numMessages; i++) {
                     for (int partition = 0; partition < emitter.getPartitionCount(); partition++) {
-                        EventMessage message = new EventMessage("app1", "stream1",
+                        EventMessage message = new EventMessage(1, 1,
                                 new String(partitionId + " " + i).getBytes());
                         for (int retries = 0; retries < numRetries; retries++) {
                             if (emitter.send(partition, message)) {
@@ -128,15 +136,19 @@ public class PartitionInfo {
         @Override
         public void run() {
             while (messagesReceived < ptu.expectedMessages[partitionId]) {
-                byte[] message = listener.recv();
-                if (message == null) {
-                    logger.error("ReceiveThread {}: received a null message", partitionId);
+                EventMessage message;
+                try {
+                    message = received.take();
+                } catch (InterruptedException e) {
+                    logger.error("ReceiveThread {}: interrupted", partitionId);
                     break;
                 }
 
-                EventMessage deserialized = (EventMessage) serDeser.deserialize(message);
                 // process and store the message
-                String msgString = new String(deserialized.getSerializedEvent());
+                ByteBuffer payload = message.getSerializedEvent();
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                String msgString = new String(bytes);
                 String[] msgTokens = msgString.split(" ");
                 Integer senderPartition = Integer.parseInt(msgTokens[0]);
                 Integer receivedMsg = Integer.parseInt(msgTokens[1]);
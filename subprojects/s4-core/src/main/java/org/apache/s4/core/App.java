@@ -21,15 +21,24 @@ package org.apache.s4.core;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
+import net.jcip.annotations.Immutable;
+
 import org.apache.s4.base.Event;
+import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
 import org.apache.s4.base.KeyFinder;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.serialize.KryoSerDeser;
 import org.apache.s4.comm.topology.RemoteStreams;
 import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.gen.EventSerializerGenerator;
+import org.apache.s4.core.queue.StreamQueueFactory;
+import org.apache.s4.core.timers.HashedWheelTimerService;
+import org.apache.s4.core.timers.TimerService;
 import org.apache.s4.core.window.AbstractSlidingWindowPE;
 import org.apache.s4.core.window.SlotFactory;
 import org.slf4j.Logger;
@@ -84,8 +93,40 @@ public abstract class App {
     @Inject
     CheckpointingFramework checkpointingFramework;
 
+    @Inject
+    StreamQueueFactory streamQueueFactory;
+
+    // shared by all the apps of the node
+    @Inject
+    TimerService timerService;
+
+    // registered event classes are serialized by generated code unless disabled
+    @Inject(optional = true)
+    @Named("s4.serializer.generated")
+    boolean generatedSerializers = true;
+
     // serialization uses the application class loader
-    private SerializerDeserializer serDeser = new KryoSerDeser(getClass().getClassLoader());
+    private final KryoSerDeser serDeser = new KryoSerDeser(getClass().getClassLoader());
+
+    // events from other apps are serialized by their node, without the registrations of this app
+    private final KryoSerDeser otherAppSerDeser = new KryoSerDeser(getClass().getClassLoader());
+
+    /* How events of a given class are handed over to local PEs, see copyForLocalDelivery. */
+    private final ConcurrentMap<Class<?>, EventCopier<Event>> eventCopiers = new ConcurrentHashMap<Class<?>, EventCopier<Event>>();
+
+    private static final EventCopier<Event> PASS_BY_REFERENCE = new EventCopier<Event>() {
+        @Override
+        public Event copy(Event event) {
+            return event;
+        }
+    };
+
+    private static final EventCopier<Event> SERIALIZE = new EventCopier<Event>() {
+        @Override
+        public Event copy(Event event) {
+            return null;
+        }
+    };
 
     /**
      * The internal clock can be configured as "wall clock" or "event clock". The wall clock computes time from the
@@ -273,10 +314,119 @@ public abstract class App {
         return serDeser;
     }
 
+    /**
+     * @return the serializer that reads the payload of the given message: events sent by other apps use the default
+     *         serializers of their class, see {@link RemoteSenders}
+     */
+    SerializerDeserializer getSerDeser(EventMessage message) {
+        return message.isFromOtherApp() ? otherAppSerDeser : serDeser;
+    }
+
+    /**
+     * Registers a copy strategy for events of the given class (subclasses need their own registration). Events that
+     * stay in this JVM are then copied with it instead of going through the serializer.
+     * <p>
+     * Event classes annotated with {@link Immutable} are passed by reference and need no copier. Other events are
+     * serialized and deserialized, as for remote delivery. Since streams stamp events with their name, an event
+     * passed by reference is only stamped by the first stream it is put on: other streams deliver a serialized copy.
+     * 
+     * @param eventType
+     *            the concrete event class
+     * @param copier
+     *            the copy strategy
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Event> void setEventCopier(Class<T> eventType, EventCopier<T> copier) {
+        eventCopiers.put(eventType, (EventCopier<Event>) copier);
+    }
+
+    /**
+     * Declares an event class exchanged between nodes of this app. Registered classes are serialized with a compact id
+     * instead of their name.
+     * <p>
+     * Ids depend on registration order: all nodes must register the same classes in the same order, before events are
+     * sent, typically in {@link #onInit()}. For apps deployed from an s4r archive, the event classes of the archive
+     * are registered automatically at deployment time. Event types of streams are registered when streams are
+     * created.
+     * <p>
+     * Unless <code>s4.serializer.generated</code> is false, a dedicated serializer is generated for the class. Payloads
+     * do not tell which serializer wrote them, so a registered class must be registered by every node that sends it:
+     * nodes of this app register the same classes, and events sent by other apps, which do not know these
+     * registrations, are read without them (see {@link #getSerDeser(EventMessage)}).
+     * 
+     * @param eventType
+     *            the event class
+     */
+    public void registerEventClass(Class<? extends Event> eventType) {
+        if (serDeser.isRegistered(eventType)) {
+            // registered at deployment and by every stream of that type: generate the serializer once
+            return;
+        }
+        if (generatedSerializers) {
+            try {
+                serDeser.registerClass(eventType, new EventSerializerGenerator(eventType).generateFactory());
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Cannot generate serializer for event class [{}], using default serializer: {}",
+                        eventType.getName(), e.getMessage());
+            } catch (LinkageError e) {
+                logger.warn("Cannot generate serializer for event class [{}], using default serializer: {}",
+                        eventType.getName(), e.getMessage());
+            }
+        }
+        serDeser.registerClass(eventType);
+    }
+
+    /**
+     * Returns the instance to enqueue for a PE in this JVM, or <code>null</code> if the event must be serialized.
+     */
+    Event copyForLocalDelivery(Event event) {
+        return getEventCopier(event).copy(event);
+    }
+
+    /**
+     * Whether PEs in this JVM get the instance itself, so that it must not be modified once put on a stream.
+     */
+    boolean isPassedByReference(Event event) {
+        return getEventCopier(event) == PASS_BY_REFERENCE;
+    }
+
+    private EventCopier<Event> getEventCopier(Event event) {
+        EventCopier<Event> copier = eventCopiers.get(event.getClass());
+        if (copier == null) {
+            copier = event.getClass().isAnnotationPresent(Immutable.class) ? PASS_BY_REFERENCE : SERIALIZE;
+            eventCopiers.putIfAbsent(event.getClass(), copier);
+        }
+        return copier;
+    }
+
+    /* Creates the queues of stream lanes. Should only be used within the core package. */
+    StreamQueueFactory getStreamQueueFactory() {
+        return streamQueueFactory;
+    }
+
+    Hasher getHasher() {
+        return hasher;
+    }
+
+    RemoteStreams getRemoteStreams() {
+        return remoteStreams;
+    }
+
     public CheckpointingFramework getCheckpointingFramework() {
         return checkpointingFramework;
     }
 
+    /**
+     * @return the timer service of the node, or a timer service for this app if it was not created by the injector
+     */
+    public synchronized TimerService getTimerService() {
+        if (timerService == null) {
+            timerService = new HashedWheelTimerService();
+        }
+        return timerService;
+    }
+
     /**
      * Creates a stream with a specific key finder. The event is delivered to the PE instances in the target PE
      * prototypes by key.
@@ -302,6 +452,21 @@ public abstract class App {
                 .register();
     }
 
+    /**
+     * Creates a stream whose events are processed by several threads ("lanes"). Events are assigned to a lane by key,
+     * so that events with the same key are processed in order, by the same thread.
+     * 
+     * @param lanes
+     *            number of lanes
+     * @see App#createStream(String, KeyFinder, Class, ProcessingElement...)
+     * @see Stream#setLanes(int)
+     */
+    protected <T extends Event> Stream<T> createStream(String name, KeyFinder<T> finder, Class<T> eventType,
+            int lanes, ProcessingElement... processingElements) {
+
+        return createStream(name, finder, eventType, processingElements).setLanes(lanes);
+    }
+
     /**
      * @see App#createStream(String, KeyFinder, Class, ProcessingElement...)
      */
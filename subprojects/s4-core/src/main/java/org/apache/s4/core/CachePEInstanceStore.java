@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * PE instance store backed by a Guava {@link LoadingCache}. This is the default store.
+ */
+public class CachePEInstanceStore extends PEInstanceStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachePEInstanceStore.class);
+
+    private final LoadingCache<String, ProcessingElement> cache;
+
+    /**
+     * Creates a store where instances never expire.
+     */
+    public CachePEInstanceStore() {
+        this(CacheBuilder.newBuilder());
+    }
+
+    /**
+     * Creates a store where the least accessed instances are removed when the number of instances approaches
+     * maximumSize.
+     */
+    public CachePEInstanceStore(int maximumSize) {
+        this(CacheBuilder.newBuilder().maximumSize(maximumSize));
+    }
+
+    /**
+     * Creates a store where instances are also removed once a fixed duration has elapsed after their creation or last
+     * access.
+     */
+    public CachePEInstanceStore(int maximumSize, long duration, TimeUnit timeUnit) {
+        this(CacheBuilder.newBuilder().expireAfterAccess(duration, timeUnit).maximumSize(maximumSize));
+    }
+
+    private CachePEInstanceStore(CacheBuilder<Object, Object> builder) {
+        cache = builder.recordStats().build(new CacheLoader<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement load(String key) throws Exception {
+                return createInstance(key);
+            }
+        });
+    }
+
+    @Override
+    public ProcessingElement getOrCreate(String id) {
+        try {
+            return cache.getUnchecked(id);
+        } catch (UncheckedExecutionException e) {
+            logger.error("Problem when trying to create a PE instance for id {}", id, e.getCause());
+            return null;
+        }
+    }
+
+    @Override
+    public ProcessingElement getIfPresent(String id) {
+        return cache.getIfPresent(id);
+    }
+
+    @Override
+    public void remove(String id) {
+        cache.invalidate(id);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public Map<String, ProcessingElement> asMap() {
+        return cache.asMap();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public double getBytesPerEntry() {
+        return -1;
+    }
+}
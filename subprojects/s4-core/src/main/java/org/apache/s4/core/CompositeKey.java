@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+/**
+ * The value of a key for a given event: one or more strings, read as a single character sequence in which values are
+ * separated by a separator.
+ * <p>
+ * A composite key behaves like the joined string (same characters, hash codes and ordering) but is hashed and
+ * compared without building it. The joined string is only built by {@link #toString()}, once. For single keys,
+ * {@link #toString()} returns the value itself.
+ * <p>
+ * Instances are immutable.
+ */
+public final class CompositeKey implements CharSequence, Comparable<CompositeKey> {
+
+    private final String[] values;
+    private final String separator;
+    private final int length;
+    private int hashCode;
+    private String string;
+
+    public CompositeKey(String[] values, String separator) {
+        this.values = values;
+        this.separator = separator;
+        int total = values.length == 0 ? 0 : separator.length() * (values.length - 1);
+        for (String value : values) {
+            total += value.length();
+        }
+        this.length = total;
+        if (values.length == 1) {
+            this.string = values[0];
+        }
+    }
+
+    /**
+     * @return the number of values in this key
+     */
+    public int getValueCount() {
+        return values.length;
+    }
+
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int remaining = index;
+        for (int i = 0;; i++) {
+            String value = values[i];
+            if (remaining < value.length()) {
+                return value.charAt(remaining);
+            }
+            remaining -= value.length();
+            if (remaining < separator.length()) {
+                return separator.charAt(remaining);
+            }
+            remaining -= separator.length();
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Same as the hash code of the joined string.
+     */
+    @Override
+    public int hashCode() {
+        int h = hashCode;
+        if (h == 0) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    h = hash(h, separator);
+                }
+                h = hash(h, values[i]);
+            }
+            hashCode = h;
+        }
+        return h;
+    }
+
+    private static int hash(int h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey other = (CompositeKey) obj;
+        return length == other.length && hashCode() == other.hashCode() && compareTo(other) == 0;
+    }
+
+    /**
+     * Compares the characters of the keys, as with the joined strings.
+     */
+    @Override
+    public int compareTo(CompositeKey other) {
+        int common = Math.min(length, other.length);
+        for (int i = 0; i < common; i++) {
+            char c1 = charAt(i);
+            char c2 = other.charAt(i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return length - other.length;
+    }
+
+    /**
+     * @return the values joined with the separator
+     */
+    @Override
+    public String toString() {
+        String s = string;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(separator);
+                }
+                sb.append(values[i]);
+            }
+            s = sb.toString();
+            string = s;
+        }
+        return s;
+    }
+}
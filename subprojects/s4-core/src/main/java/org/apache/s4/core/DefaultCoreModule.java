@@ -24,13 +24,15 @@ import java.io.InputStream;
 import org.apache.commons.configuration.ConfigurationConverter;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
-import org.apache.s4.base.Hasher;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.base.util.S4RLoaderFactory;
-import org.apache.s4.comm.DefaultHasher;
 import org.apache.s4.comm.serialize.KryoSerDeser;
 import org.apache.s4.core.ft.CheckpointingFramework;
 import org.apache.s4.core.ft.NoOpCheckpointingFramework;
+import org.apache.s4.core.queue.ArrayStreamQueueFactory;
+import org.apache.s4.core.queue.StreamQueueFactory;
+import org.apache.s4.core.timers.HashedWheelTimerService;
+import org.apache.s4.core.timers.TimerService;
 import org.apache.s4.deploy.DeploymentManager;
 import org.apache.s4.deploy.DistributedDeploymentManager;
 import org.slf4j.Logger;
@@ -58,6 +60,7 @@ public class DefaultCoreModule extends AbstractModule {
         this.coreConfigFileInputStream = coreConfigFileInputStream;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     protected void configure() {
         if (config == null) {
@@ -70,8 +73,7 @@ public class DefaultCoreModule extends AbstractModule {
             }
         }
 
-        /* The hashing function to map keys top partitions. */
-        bind(Hasher.class).to(DefaultHasher.class);
+        /* The hashing function and the partitioner that map keys to partitions are bound by the comm module. */
 
         /* Use Kryo to serialize events. */
         bind(SerializerDeserializer.class).to(KryoSerDeser.class);
@@ -83,6 +85,18 @@ public class DefaultCoreModule extends AbstractModule {
         // For enabling checkpointing, one needs to use a custom module, such as
         // org.apache.s4.core.ft.FileSytemBasedCheckpointingModule
         bind(CheckpointingFramework.class).to(NoOpCheckpointingFramework.class);
+
+        /* One timer service for the PE timers of all the apps of the node. */
+        bind(TimerService.class).to(HashedWheelTimerService.class);
+
+        /* Queues between event producers and stream threads. */
+        try {
+            bind(StreamQueueFactory.class).to(
+                    (Class<? extends StreamQueueFactory>) Class.forName(config.getString(
+                            "s4.stream.queue.factory.class", ArrayStreamQueueFactory.class.getName())));
+        } catch (ClassNotFoundException e) {
+            logger.error("Cannot find class implementation ", e);
+        }
     }
 
     private void loadProperties(Binder binder) {
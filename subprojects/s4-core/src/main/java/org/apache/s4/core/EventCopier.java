@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import org.apache.s4.base.Event;
+
+/**
+ * Creates a private copy of an event so that it can be handed to processing elements in the same JVM without a
+ * serialization round trip.
+ * <p>
+ * Copiers are registered per event class with {@link App#setEventCopier(Class, EventCopier)}. Event classes annotated
+ * with {@link net.jcip.annotations.Immutable} do not need a copier: they are passed by reference.
+ */
+public interface EventCopier<T extends Event> {
+
+    /**
+     * @param event
+     *            the event emitted by the producer
+     * @return an instance that does not share mutable state with the original event
+     */
+    T copy(T event);
+}
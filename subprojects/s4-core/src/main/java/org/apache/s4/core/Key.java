@@ -20,7 +20,7 @@ package org.apache.s4.core;
 
 import java.util.List;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.s4.base.ArrayKeyFinder;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.KeyFinder;
 
@@ -46,9 +46,33 @@ public class Key<T extends Event> {
         return finder.get(event);
     }
 
-    public String get(T event) {
-        List<String> keys = getList(event);
+    /**
+     * @return the value of the key for this event, built without joining the key values, or null if the key finder
+     *         returned no values
+     */
+    @SuppressWarnings("unchecked")
+    public CompositeKey getCompositeKey(T event) {
+        String[] values;
+        if (finder instanceof ArrayKeyFinder) {
+            values = ((ArrayKeyFinder<T>) finder).getKeyValues(event);
+        } else {
+            List<String> keys = getList(event);
+            values = keys == null ? null : keys.toArray(new String[keys.size()]);
+        }
+        if (values == null) {
+            return null;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                /* as when joining the values */
+                values[i] = "";
+            }
+        }
+        return new CompositeKey(values, separator);
+    }
 
-        return StringUtils.join(keys, separator);
+    public String get(T event) {
+        CompositeKey key = getCompositeKey(event);
+        return key == null ? null : key.toString();
     }
 }
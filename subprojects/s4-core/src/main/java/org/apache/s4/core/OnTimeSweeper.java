@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.s4.core.timers.TimerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls {@link ProcessingElement#onTime()} on all the instances of a PE prototype, and keeps statistics about these
+ * sweeps.
+ * <p>
+ * By default, a sweep visits the instances one after the other, waiting for the lock of each instance. In parallel
+ * mode, the instances are split into partitions that are swept concurrently by the threads of the timer service. An
+ * instance that is processing events when the sweep reaches it is deferred and revisited after the rest of its
+ * partition, so that the sweep does not wait on busy instances while others are ready.
+ * <p>
+ * A sweep that is still running when the next one is due causes the next one to be skipped.
+ */
+public class OnTimeSweeper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OnTimeSweeper.class);
+
+    private static final int PARTITION_SIZE = 4096;
+    /* deferred instances are revisited this many times before waiting for their lock */
+    private static final int DEFERRAL_PASSES = 3;
+
+    private final ProcessingElement prototype;
+    private final TimerService timerService;
+    private final boolean parallel;
+    private final long intervalNanos;
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicInteger pendingPartitions = new AtomicInteger();
+    private volatile long sweepStart;
+
+    private final AtomicLong sweepCount = new AtomicLong();
+    private final AtomicLong overrunCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private volatile long lastSweepNanos;
+    private volatile long maxSweepNanos;
+
+    OnTimeSweeper(ProcessingElement prototype, TimerService timerService, boolean parallel, long interval,
+            TimeUnit timeUnit) {
+        this.prototype = prototype;
+        this.timerService = timerService;
+        this.parallel = parallel;
+        this.intervalNanos = timeUnit.toNanos(interval);
+    }
+
+    @Override
+    public void run() {
+        if (!sweeping.compareAndSet(false, true)) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+        sweepStart = System.nanoTime();
+        if (!parallel) {
+            try {
+                boolean threadSafe = prototype.isThreadSafe();
+                for (ProcessingElement pe : prototype.getPEInstances().values()) {
+                    if (threadSafe) {
+                        callOnTime(pe);
+                    } else {
+                        synchronized (pe) {
+                            callOnTime(pe);
+                        }
+                    }
+                }
+            } finally {
+                finish();
+            }
+            return;
+        }
+
+        List<ProcessingElement> instances = new ArrayList<ProcessingElement>(prototype.getPEInstances().values());
+        int partitions = Math.max(1, (instances.size() + PARTITION_SIZE - 1) / PARTITION_SIZE);
+        pendingPartitions.set(partitions);
+        for (int i = 1; i < partitions; i++) {
+            Partition partition = new Partition(instances.subList(i * PARTITION_SIZE,
+                    Math.min(instances.size(), (i + 1) * PARTITION_SIZE)));
+            try {
+                timerService.execute(partition);
+            } catch (RuntimeException e) {
+                partition.run();
+            }
+        }
+        /* this thread sweeps the first partition, without waiting for the others */
+        new Partition(instances.subList(0, Math.min(instances.size(), PARTITION_SIZE))).run();
+    }
+
+    private class Partition implements Runnable {
+
+        private final List<ProcessingElement> instances;
+
+        Partition(List<ProcessingElement> instances) {
+            this.instances = instances;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Collection<ProcessingElement> deferred = tryOnTime(instances);
+                deferredCount.addAndGet(deferred.size());
+                for (int pass = 0; pass < DEFERRAL_PASSES && !deferred.isEmpty(); pass++) {
+                    Thread.yield();
+                    deferred = tryOnTime(deferred);
+                }
+                for (ProcessingElement pe : deferred) {
+                    synchronized (pe) {
+                        callOnTime(pe);
+                    }
+                }
+            } finally {
+                if (pendingPartitions.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        }
+    }
+
+    /* Returns the instances that were busy. */
+    private Collection<ProcessingElement> tryOnTime(Collection<ProcessingElement> instances) {
+        List<ProcessingElement> busy = new ArrayList<ProcessingElement>();
+        boolean threadSafe = prototype.isThreadSafe();
+        for (ProcessingElement pe : instances) {
+            if (threadSafe) {
+                callOnTime(pe);
+            } else if (pe.isProcessing()) {
+                busy.add(pe);
+            } else {
+                synchronized (pe) {
+                    callOnTime(pe);
+                }
+            }
+        }
+        return busy;
+    }
+
+    private void callOnTime(ProcessingElement pe) {
+        try {
+            pe.onTime();
+        } catch (Exception e) {
+            logger.error("Caught exception in timer when calling PE instance [{}] with id [{}].", pe, pe.id);
+            logger.error("Timer error.", e);
+        }
+    }
+
+    private void finish() {
+        long duration = System.nanoTime() - sweepStart;
+        lastSweepNanos = duration;
+        if (duration > maxSweepNanos) {
+            maxSweepNanos = duration;
+        }
+        if (duration > intervalNanos) {
+            overrunCount.incrementAndGet();
+        }
+        sweepCount.incrementAndGet();
+        sweeping.set(false);
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @return the number of completed sweeps
+     */
+    public long getSweepCount() {
+        return sweepCount.get();
+    }
+
+    /**
+     * @return the number of sweeps that took longer than the timer interval
+     */
+    public long getOverrunCount() {
+        return overrunCount.get();
+    }
+
+    /**
+     * @return the number of sweeps that were skipped because the previous sweep was still running
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @return the number of instances that were busy when the sweep reached them, in parallel mode
+     */
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    public long getLastSweepNanos() {
+        return lastSweepNanos;
+    }
+
+    public long getMaxSweepNanos() {
+        return maxSweepNanos;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Holds the instances of a {@link ProcessingElement} prototype, by id. Instances are created on first access.
+ * <p>
+ * Every keyed event goes through {@link #getOrCreate(String)}, so implementations must be fast and thread safe. A
+ * store belongs to a single prototype, see {@link ProcessingElement#setPEInstanceStore(PEInstanceStore)}.
+ */
+public abstract class PEInstanceStore {
+
+    private ProcessingElement prototype;
+
+    void attach(ProcessingElement prototype) {
+        Preconditions.checkState(this.prototype == null || this.prototype == prototype,
+                "This store already holds the instances of another PE prototype");
+        this.prototype = prototype;
+    }
+
+    /**
+     * Creates a new instance of the prototype, to be stored by the caller.
+     */
+    protected ProcessingElement createInstance(String id) {
+        return prototype.createPE(id);
+    }
+
+    /**
+     * @return the instance with the given id, created if needed, or <code>null</code> if it cannot be created
+     */
+    public abstract ProcessingElement getOrCreate(String id);
+
+    /**
+     * @return the instance with the given id, or <code>null</code> if there is none
+     */
+    public abstract ProcessingElement getIfPresent(String id);
+
+    public abstract void remove(String id);
+
+    public abstract void clear();
+
+    /**
+     * @return the approximate number of instances
+     */
+    public abstract long size();
+
+    /**
+     * @return a view of the instances by id. Iterators are weakly consistent: they do not fail when the store is
+     *         modified.
+     */
+    public abstract Map<String, ProcessingElement> asMap();
+
+    /**
+     * @return the number of calls to {@link #getOrCreate(String)} that found an existing instance
+     */
+    public abstract long getHitCount();
+
+    /**
+     * @return the number of calls to {@link #getOrCreate(String)} that created an instance
+     */
+    public abstract long getMissCount();
+
+    /**
+     * @return the number of instances removed because of the size limit or because they expired
+     */
+    public abstract long getEvictionCount();
+
+    /**
+     * @return the approximate memory used by the store for each instance, not counting the instances themselves, or
+     *         -1 if unknown
+     */
+    public abstract double getBytesPerEntry();
+}
@@ -0,0 +1,663 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import sun.misc.Unsafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * PE instance store designed for very large numbers of instances.
+ * <p>
+ * Instances are spread over segments, each guarded by its own lock. A segment is an open-addressing hash table with
+ * linear probing, made of parallel arrays: for each slot, the hash of the id and the instance. The id itself is not
+ * stored, it is the id of the instance. There is no entry object per instance.
+ * <p>
+ * When a maximum size is set, each segment evicts instances with the CLOCK algorithm, an approximation of LRU: every
+ * access marks the instance, and the clock hand clears marks until it finds an unmarked instance to evict. Instances
+ * may also expire after a duration without access. Expired instances are removed when accessed, when the clock hand
+ * passes over them, or by the cleanup performed on each insertion.
+ * <p>
+ * With a {@link SpillStore}, the table keeps more instances than fit in memory: the state of evicted instances is
+ * serialized to the spill store (see {@link ProcessingElement#serializeState()}), and restored when the instance is
+ * accessed again. Only instances that processed events since they were created, restored or checkpointed are written.
+ * Spilled instances are not visible through {@link #getIfPresent(String)} or {@link #asMap()}.
+ * <p>
+ * Instances are created and restored while holding the lock of their segment, so that each instance is only created
+ * once. Evicted instances are spilled after the lock is released, so that serialization and disk writes do not block
+ * the other instances of the segment. Until its state is saved, an evicting instance cannot be recreated: threads that
+ * request it wait for the spill to complete. A thread that obtained the instance before its eviction may still hand
+ * events to it: they are passed on to the instance reloaded from the spill store, see
+ * {@link ProcessingElement#handleInputEvent(org.apache.s4.base.Event)}.
+ */
+public class PEInstanceTable extends PEInstanceStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PEInstanceTable.class);
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+    private static final int MIN_SEGMENT_SIZE = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    /* expired slots inspected by each insertion */
+    private static final int CLEANUP_STEPS = 4;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long expireAfterAccessNanos;
+    private final SpillStore spillStore;
+
+    /**
+     * Creates a table without size limit, where instances never expire.
+     */
+    public PEInstanceTable() {
+        this(0, 0, TimeUnit.NANOSECONDS, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a table holding approximately at most maximumSize instances.
+     */
+    public PEInstanceTable(int maximumSize) {
+        this(maximumSize, 0, TimeUnit.NANOSECONDS, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maximumSize
+     *            the approximate maximum number of instances, 0 for no limit
+     * @param expireAfterAccess
+     *            time after which an instance that was not accessed is removed, 0 to keep instances
+     * @param timeUnit
+     *            unit of expireAfterAccess
+     * @param concurrencyLevel
+     *            number of segments, rounded to a power of two. Tables with a small maximum size use fewer segments.
+     */
+    public PEInstanceTable(int maximumSize, long expireAfterAccess, TimeUnit timeUnit, int concurrencyLevel) {
+        this(maximumSize, expireAfterAccess, timeUnit, concurrencyLevel, null);
+    }
+
+    /**
+     * Creates a table that saves evicted instances to a spill store. A maximum size or an expiration time should be
+     * set.
+     * 
+     * @param spillStore
+     *            store for the state of evicted instances, not used by any other table
+     * @see #PEInstanceTable(int, long, TimeUnit, int)
+     */
+    public PEInstanceTable(int maximumSize, long expireAfterAccess, TimeUnit timeUnit, int concurrencyLevel,
+            SpillStore spillStore) {
+        Preconditions.checkArgument(maximumSize >= 0, "Maximum size must not be negative");
+        Preconditions.checkArgument(expireAfterAccess >= 0, "Expiration time must not be negative");
+        Preconditions.checkArgument(concurrencyLevel > 0, "Concurrency level must be positive");
+
+        int segmentCount = Integer.highestOneBit(concurrencyLevel);
+        if (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        while (maximumSize > 0 && segmentCount > 1 && segmentCount * MIN_SEGMENT_SIZE > maximumSize) {
+            segmentCount >>= 1;
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.expireAfterAccessNanos = timeUnit.toNanos(expireAfterAccess);
+        this.spillStore = spillStore;
+
+        int segmentMaximumSize = maximumSize == 0 ? 0 : (maximumSize + segmentCount - 1) / segmentCount;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentMaximumSize, expireAfterAccessNanos > 0);
+        }
+    }
+
+    @Override
+    public ProcessingElement getOrCreate(String id) {
+        int hash = hash(id);
+        return segmentFor(hash).get(id, hash, true);
+    }
+
+    @Override
+    public ProcessingElement getIfPresent(String id) {
+        int hash = hash(id);
+        return segmentFor(hash).get(id, hash, false);
+    }
+
+    @Override
+    public void remove(String id) {
+        int hash = hash(id);
+        segmentFor(hash).remove(id, hash);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        if (spillStore != null) {
+            spillStore.clear();
+        }
+    }
+
+    /**
+     * @return the store holding evicted instances, which reports reload counts and latencies, or <code>null</code>
+     */
+    public SpillStore getSpillStore() {
+        return spillStore;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public Map<String, ProcessingElement> asMap() {
+        return new MapView();
+    }
+
+    @Override
+    public long getHitCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.hits;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getMissCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.misses;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.evictions;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the memory used by the slots of the table, divided by the number of instances
+     */
+    @Override
+    public double getBytesPerEntry() {
+        /* hash, instance reference and clock mark, plus access time when instances expire */
+        int slotBytes = 4 + Unsafe.ARRAY_OBJECT_INDEX_SCALE + 1 + (expireAfterAccessNanos > 0 ? 8 : 0);
+        long slots = 0;
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                slots += segment.instances.length;
+                size += segment.size;
+            }
+        }
+        return size == 0 ? 0 : (double) slots * slotBytes / size;
+    }
+
+    /* Called without the lock of the segment of the instance. */
+    private void spill(ProcessingElement pe) {
+        byte[] state = null;
+        try {
+            synchronized (pe) {
+                pe.markEvicted();
+                if (pe.hasStateToSpill()) {
+                    state = pe.serializeState();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Cannot serialize the state of PE instance [" + pe.id + "], the state is lost", e);
+        }
+        if (state != null) {
+            spillStore.put(pe.id, state);
+        }
+    }
+
+    /* Called with the lock of the segment of the instance. */
+    private void reload(ProcessingElement pe) {
+        byte[] state = spillStore.take(pe.id);
+        if (state == null) {
+            return;
+        }
+        try {
+            pe.restoreSpilledState(state);
+        } catch (RuntimeException e) {
+            logger.error("Cannot restore the state of PE instance [" + pe.id + "], the state is lost", e);
+        }
+    }
+
+    /* Ids usually have similar hash codes, the finalizer of MurmurHash3 spreads them. */
+    private static int hash(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /* High bits pick the segment, low bits the slot. */
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private final class Segment {
+
+        private final int maximumSize;
+        private int[] hashes;
+        private ProcessingElement[] instances;
+        private boolean[] marks;
+        private long[] accessTimes;
+        private volatile int size;
+        private int hand;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        /* Instances removed from the slots, whose state is being spilled, by id */
+        private final Map<String, Eviction> evicting = new HashMap<String, Eviction>();
+        /* Evicted by the current operation, to spill once the lock is released */
+        private final List<Eviction> toSpill = new ArrayList<Eviction>();
+
+        Segment(int maximumSize, boolean expires) {
+            this.maximumSize = maximumSize;
+            allocate(INITIAL_SEGMENT_CAPACITY, expires);
+        }
+
+        private void allocate(int capacity, boolean expires) {
+            hashes = new int[capacity];
+            instances = new ProcessingElement[capacity];
+            marks = new boolean[capacity];
+            accessTimes = expires ? new long[capacity] : null;
+        }
+
+        ProcessingElement get(String id, int hash, boolean create) {
+            while (true) {
+                ProcessingElement pe = null;
+                Eviction pending;
+                Eviction[] evicted;
+                synchronized (this) {
+                    pending = create ? evicting.get(id) : null;
+                    if (pending == null) {
+                        pe = getLocked(id, hash, create);
+                    }
+                    evicted = takeEvictions();
+                }
+                spillEvicted(evicted);
+                if (pending == null) {
+                    return pe;
+                }
+                // the state must be in the spill store before the instance is restored
+                Uninterruptibles.awaitUninterruptibly(pending.spilled);
+            }
+        }
+
+        private ProcessingElement getLocked(String id, int hash, boolean create) {
+            long now = accessTimes == null ? 0 : System.nanoTime();
+            int slot = find(id, hash);
+            if (slot >= 0) {
+                if (isExpired(slot, now)) {
+                    evictSlot(slot);
+                } else {
+                    marks[slot] = true;
+                    if (accessTimes != null) {
+                        accessTimes[slot] = now;
+                    }
+                    if (create) {
+                        hits++;
+                    }
+                    return instances[slot];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+
+            misses++;
+            ProcessingElement pe;
+            try {
+                pe = createInstance(id);
+            } catch (RuntimeException e) {
+                logger.error("Problem when trying to create a PE instance for id {}", id, e);
+                return null;
+            }
+            if (spillStore != null) {
+                reload(pe);
+            }
+
+            /* The instance may have been created by onCreate(), through the same thread. */
+            slot = find(id, hash);
+            if (slot >= 0) {
+                return instances[slot];
+            }
+            if (accessTimes != null) {
+                cleanup(now);
+            }
+            if (maximumSize > 0 && size >= maximumSize) {
+                evict(now);
+            }
+            if ((size + 1) * 4 > instances.length * 3) {
+                resize();
+            }
+            insert(hash, pe, now);
+            return pe;
+        }
+
+        synchronized void remove(String id, int hash) {
+            int slot = find(id, hash);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            if (spillStore != null) {
+                // a spill in progress discards its state when it completes
+                evicting.remove(id);
+                spillStore.remove(id);
+            }
+        }
+
+        synchronized void clear() {
+            allocate(INITIAL_SEGMENT_CAPACITY, accessTimes != null);
+            size = 0;
+            hand = 0;
+            evicting.clear();
+        }
+
+        /* Removes the instance in this slot. With a spill store, the instance is spilled once the lock is released. */
+        private void evictSlot(int slot) {
+            if (spillStore != null) {
+                Eviction eviction = new Eviction(instances[slot]);
+                evicting.put(eviction.pe.id, eviction);
+                toSpill.add(eviction);
+            }
+            removeSlot(slot);
+            evictions++;
+        }
+
+        private Eviction[] takeEvictions() {
+            if (toSpill.isEmpty()) {
+                return null;
+            }
+            Eviction[] evicted = toSpill.toArray(new Eviction[toSpill.size()]);
+            toSpill.clear();
+            return evicted;
+        }
+
+        /* Called without the lock. */
+        private void spillEvicted(Eviction[] evicted) {
+            if (evicted == null) {
+                return;
+            }
+            for (Eviction eviction : evicted) {
+                try {
+                    spill(eviction.pe);
+                } finally {
+                    synchronized (this) {
+                        if (evicting.get(eviction.pe.id) == eviction) {
+                            evicting.remove(eviction.pe.id);
+                        } else if (spillStore != null) {
+                            // removed while it was spilled
+                            spillStore.remove(eviction.pe.id);
+                        }
+                    }
+                    eviction.spilled.countDown();
+                }
+            }
+        }
+
+        private int find(String id, int hash) {
+            int mask = instances.length - 1;
+            for (int slot = hash & mask; instances[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && id.equals(instances[slot].id)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private int insert(int hash, ProcessingElement pe, long now) {
+            int mask = instances.length - 1;
+            int slot = hash & mask;
+            while (instances[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            instances[slot] = pe;
+            marks[slot] = true;
+            if (accessTimes != null) {
+                accessTimes[slot] = now;
+            }
+            size++;
+            return slot;
+        }
+
+        /*
+         * Backward shift deletion: entries following the removed slot move back when the removed slot lies between
+         * their home slot and their current slot, so that lookups never need tombstones.
+         */
+        private void removeSlot(int slot) {
+            int mask = instances.length - 1;
+            int empty = slot;
+            instances[empty] = null;
+            size--;
+            for (int current = (empty + 1) & mask; instances[current] != null; current = (current + 1) & mask) {
+                int home = hashes[current] & mask;
+                boolean stays = empty < current ? (home > empty && home <= current) : (home > empty || home <= current);
+                if (!stays) {
+                    hashes[empty] = hashes[current];
+                    instances[empty] = instances[current];
+                    marks[empty] = marks[current];
+                    if (accessTimes != null) {
+                        accessTimes[empty] = accessTimes[current];
+                    }
+                    instances[current] = null;
+                    empty = current;
+                }
+            }
+        }
+
+        /* CLOCK: clear marks until an unmarked (or expired) instance is found, and evict it. */
+        private void evict(long now) {
+            int mask = instances.length - 1;
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) & mask;
+                if (instances[slot] == null) {
+                    continue;
+                }
+                if (marks[slot] && !isExpired(slot, now)) {
+                    marks[slot] = false;
+                } else {
+                    evictSlot(slot);
+                    return;
+                }
+            }
+        }
+
+        private void cleanup(long now) {
+            int mask = instances.length - 1;
+            for (int i = 0; i < CLEANUP_STEPS; i++) {
+                int slot = hand;
+                hand = (hand + 1) & mask;
+                if (instances[slot] != null && isExpired(slot, now)) {
+                    evictSlot(slot);
+                }
+            }
+        }
+
+        private boolean isExpired(int slot, long now) {
+            return accessTimes != null && now - accessTimes[slot] >= expireAfterAccessNanos;
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            ProcessingElement[] oldInstances = instances;
+            boolean[] oldMarks = marks;
+            long[] oldAccessTimes = accessTimes;
+            allocate(oldInstances.length * 2, oldAccessTimes != null);
+            size = 0;
+            hand = 0;
+            for (int i = 0; i < oldInstances.length; i++) {
+                if (oldInstances[i] != null) {
+                    int slot = insert(oldHashes[i], oldInstances[i], oldAccessTimes == null ? 0 : oldAccessTimes[i]);
+                    marks[slot] = oldMarks[i];
+                }
+            }
+        }
+
+        /* Copies the live instances, for iteration outside the lock. */
+        synchronized ProcessingElement[] snapshot() {
+            long now = accessTimes == null ? 0 : System.nanoTime();
+            ProcessingElement[] copy = new ProcessingElement[size];
+            int count = 0;
+            for (int slot = 0; slot < instances.length; slot++) {
+                if (instances[slot] != null && !isExpired(slot, now)) {
+                    copy[count++] = instances[slot];
+                }
+            }
+            if (count < copy.length) {
+                ProcessingElement[] trimmed = new ProcessingElement[count];
+                System.arraycopy(copy, 0, trimmed, 0, count);
+                return trimmed;
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * An instance being spilled.
+     */
+    private static class Eviction {
+        final ProcessingElement pe;
+        final CountDownLatch spilled = new CountDownLatch(1);
+
+        Eviction(ProcessingElement pe) {
+            this.pe = pe;
+        }
+    }
+
+    /**
+     * Map view, iterating over the table one segment at a time.
+     */
+    private class MapView extends AbstractMap<String, ProcessingElement> {
+
+        @Override
+        public ProcessingElement get(Object key) {
+            return key instanceof String ? getIfPresent((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public ProcessingElement remove(Object key) {
+            ProcessingElement pe = get(key);
+            if (pe != null) {
+                PEInstanceTable.this.remove((String) key);
+            }
+            return pe;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, PEInstanceTable.this.size());
+        }
+
+        @Override
+        public Set<Map.Entry<String, ProcessingElement>> entrySet() {
+            return new AbstractSet<Map.Entry<String, ProcessingElement>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, ProcessingElement>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return MapView.this.size();
+                }
+            };
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, ProcessingElement>> {
+
+        private int nextSegment = 0;
+        private ProcessingElement[] current = new ProcessingElement[0];
+        private int index = 0;
+        private ProcessingElement last;
+
+        @Override
+        public boolean hasNext() {
+            while (index == current.length) {
+                if (nextSegment == segments.length) {
+                    return false;
+                }
+                current = segments[nextSegment++].snapshot();
+                index = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, ProcessingElement> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current[index++];
+            return new AbstractMap.SimpleImmutableEntry<String, ProcessingElement>(last.id, last);
+        }
+
+        @Override
+        public void remove() {
+            Preconditions.checkState(last != null);
+            PEInstanceTable.this.remove(last.id);
+            last = null;
+        }
+    }
+}
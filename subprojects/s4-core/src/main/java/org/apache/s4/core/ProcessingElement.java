@@ -18,16 +18,9 @@
 
 package org.apache.s4.core;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import net.jcip.annotations.ThreadSafe;
@@ -39,18 +32,17 @@ import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
 import org.apache.s4.core.ft.CheckpointingTask;
 import org.apache.s4.core.gen.OverloadDispatcher;
 import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+import org.apache.s4.core.gen.StateCopier;
+import org.apache.s4.core.gen.StateCopierGenerator;
+import org.apache.s4.core.timers.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * <p>
@@ -70,6 +62,10 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * this method.
  * <li>{@code onTrigger(AnotherEvent event)} When implemented, input events of type {@code AnotherEvent} will be
  * dispatched to this method when certain conditions are met. See {@link #setTrigger(Class, int, long, TimeUnit)}.
+ * <li>{@code onEvents(List<SomeEvent> events)} Optional. When implemented, streams configured with a batch size (see
+ * {@link Stream#setBatchSize(int)}) pass the events they dequeue together for a PE instance in a single call, instead
+ * of calling {@code onEvent} for each of them. A batch is split after each event that reaches a trigger, so that
+ * {@code onTrigger} sees the same state as with {@code onEvent}. See {@link #handleInputEvents(List)}.
  * </ul>
  * <li>
  * A PE implementation must not create threads. A periodic task can be implemented by overloading the {@link #onTime()}
@@ -114,12 +110,15 @@ public abstract class ProcessingElement implements Cloneable {
     transient protected App app;
 
     /*
-     * This maps holds all the instances. We make it package private to prevent concrete classes from updating the
+     * This store holds all the instances. We make it package private to prevent concrete classes from updating the
      * collection.
      */
-    transient LoadingCache<String, ProcessingElement> peInstances;
+    transient PEInstanceStore peInstances;
 
-    /* This map is initialized in the prototype and cloned to instances. */
+    /*
+     * This map is initialized in the prototype and cloned to instances. Without triggers, it is never modified and
+     * instances share the map of the prototype.
+     */
     transient Map<Class<? extends Event>, Trigger> triggers;
 
     /* PE instance id. */
@@ -129,8 +128,10 @@ public abstract class ProcessingElement implements Cloneable {
     transient private ProcessingElement pePrototype;
     transient private boolean haveTriggers = false;
     transient private long timerIntervalInMilliseconds = 0;
-    transient private ScheduledExecutorService triggerTimer;
-    transient private ScheduledExecutorService checkpointingTimer;
+    transient private Timeout triggerTimer;
+    transient private boolean parallelOnTime = false;
+    transient private OnTimeSweeper onTimeSweeper;
+    transient private Timeout checkpointingTimer;
     transient private boolean isPrototype = true;
     transient private boolean isThreadSafe = false;
     transient private String name = null;
@@ -138,26 +139,26 @@ public abstract class ProcessingElement implements Cloneable {
     transient long eventCount = 0;
 
     transient private OverloadDispatcher overloadDispatcher;
+    transient private volatile StateCopier stateCopier;
+    /* Type of the events accepted by onEvents(List), null if the PE does not process batches. */
+    transient private Class<?> batchEventType;
     transient private boolean recoveryAttempted = false;
     transient private boolean dirty = false;
+    /* Set while the instance processes events, so that onTime sweeps can visit other instances first. */
+    transient private volatile boolean processing = false;
+    /* The state was restored from a spill store, this instance holds the only copy. */
+    transient private boolean restoredFromSpill = false;
+    /* Evicted from a store that spills: the instance reloaded from the spill store replaces this one. */
+    transient private volatile boolean evicted = false;
 
     transient private CheckpointingConfig checkpointingConfig = new CheckpointingConfig.Builder(CheckpointingMode.NONE)
             .build();
 
     protected ProcessingElement() {
-        OverloadDispatcherGenerator oldg = new OverloadDispatcherGenerator(this.getClass());
-        Class<?> overloadDispatcherClass = oldg.generate();
-        try {
-            overloadDispatcher = (OverloadDispatcher) overloadDispatcherClass.newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        peInstances = CacheBuilder.newBuilder().build(new CacheLoader<String, ProcessingElement>() {
-            @Override
-            public ProcessingElement load(String key) throws Exception {
-                return createPE(key);
-            }
-        });
+        overloadDispatcher = OverloadDispatcherGenerator.getDispatcher(getClass());
+        batchEventType = OverloadDispatcherGenerator.getBatchEventType(getClass());
+        peInstances = new CachePEInstanceStore();
+        peInstances.attach(this);
 
         triggers = new MapMaker().makeMap();
 
@@ -257,17 +258,7 @@ public abstract class ProcessingElement implements Cloneable {
      */
     public ProcessingElement setPECache(int maximumSize, long duration, TimeUnit timeUnit) {
 
-        Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
-
-        peInstances = CacheBuilder.newBuilder().expireAfterAccess(duration, timeUnit).maximumSize(maximumSize)
-                .build(new CacheLoader<String, ProcessingElement>() {
-                    @Override
-                    public ProcessingElement load(String key) throws Exception {
-                        return createPE(key);
-                    }
-                });
-
-        return this;
+        return setPEInstanceStore(new CachePEInstanceStore(maximumSize, duration, timeUnit));
     }
 
     /**
@@ -285,19 +276,36 @@ public abstract class ProcessingElement implements Cloneable {
      */
     public ProcessingElement setPECache(int maximumSize) {
 
-        Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
+        return setPEInstanceStore(new CachePEInstanceStore(maximumSize));
+    }
 
-        peInstances = CacheBuilder.newBuilder().maximumSize(maximumSize)
-                .build(new CacheLoader<String, ProcessingElement>() {
-                    @Override
-                    public ProcessingElement load(String key) throws Exception {
-                        return createPE(key);
-                    }
-                });
+    /**
+     * Sets the store holding the PE instances, for instance a {@link PEInstanceTable} for very large numbers of
+     * instances. The default store is a {@link CachePEInstanceStore}.
+     * <p>
+     * When this method is called all existing PE instances are destroyed.
+     * 
+     * @param store
+     *            a new store, not used by any other PE prototype.
+     * @return the PE prototype
+     */
+    public ProcessingElement setPEInstanceStore(PEInstanceStore store) {
+
+        Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Store not set.");
+
+        store.attach(this);
+        peInstances = store;
 
         return this;
     }
 
+    /**
+     * @return the store holding the PE instances, which also reports hit, miss and eviction counts.
+     */
+    public PEInstanceStore getPEInstanceStore() {
+        return peInstances;
+    }
+
     /**
      * This trigger is fired when the following conditions occur:
      * 
@@ -357,7 +365,6 @@ public abstract class ProcessingElement implements Cloneable {
      * Makes this PE a singleton. A single PE instance is eagerly created and ready to receive events.
      * 
      * @param isSingleton
-     * @throws ExecutionException
      */
     public ProcessingElement setSingleton(boolean isSingleton) {
 
@@ -397,25 +404,34 @@ public abstract class ProcessingElement implements Cloneable {
         Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
 
         if (triggerTimer != null) {
-            triggerTimer.shutdownNow();
+            triggerTimer.cancel();
+            triggerTimer = null;
         }
 
-        if (interval == 0) {
-            return this;
-        }
-
-        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                .setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+        return this;
+    }
 
-                    @Override
-                    public void uncaughtException(Thread t, Throwable e) {
-                        logger.error("Expection from timer thread", e);
-                    }
-                }).setNameFormat("Timer-" + getClass().getSimpleName()).build();
-        triggerTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    /**
+     * Sweeps the instances in parallel when the timer fires, see {@link OnTimeSweeper}. Use it when there are many
+     * instances or when {@link #onTime()} is slow. The default is false.
+     */
+    public ProcessingElement setParallelOnTime(boolean parallelOnTime) {
+        Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype.");
+        this.parallelOnTime = parallelOnTime;
         return this;
     }
 
+    /**
+     * @return the statistics of the calls to {@link #onTime()}, or null if the PE has no timer or is not started
+     */
+    public OnTimeSweeper getOnTimeSweeper() {
+        return getPrototype().onTimeSweeper;
+    }
+
+    boolean isProcessing() {
+        return processing;
+    }
+
     /**
      * Set to true if the concrete PE class has the {@link ThreadSafe} annotation. The default is false (no annotation).
      * In general, application developers don't need to worry about thread safety in the concrete PEs. In some cases the
@@ -431,34 +447,142 @@ public abstract class ProcessingElement implements Cloneable {
 
     protected void handleInputEvent(Event event) {
 
-        Object object;
-        if (isThreadSafe) {
-            object = new Object(); // a dummy object TODO improve this.
-        } else {
-            object = this;
+        synchronized (getProcessingLock()) {
+            if (evicted) {
+                // evicted since the event was dispatched to this instance
+                ProcessingElement live = pePrototype.getInstanceForKey(id);
+                if (live != null) {
+                    live.handleInputEvent(event);
+                }
+                return;
+            }
+            processing = true;
+            try {
+                if (!recoveryAttempted) {
+                    recover();
+                    recoveryAttempted = true;
+                }
+
+                processEvent(event);
+
+                eventCount++;
+
+                dirty = true;
+
+                if (isCheckpointable()) {
+                    checkpoint();
+                }
+            } finally {
+                processing = false;
+            }
         }
-        synchronized (object) {
-            if (!recoveryAttempted) {
-                recover();
-                recoveryAttempted = true;
+    }
+
+    /**
+     * Processes several events at once. The PE lock is taken once for the whole batch and, if the PE defines an
+     * <code>onEvents</code> method accepting these events, they are dispatched to it in as few calls as possible.
+     * Otherwise each event is dispatched as with {@link #handleInputEvent(Event)}.
+     * <p>
+     * Events are processed in order, and a trigger fires right after the event that reached it: <code>onEvents</code>
+     * receives the events up to that one, then <code>onTrigger</code> is called, then <code>onEvents</code> receives
+     * the following events. The checkpointing condition is still evaluated for each event, but the PE is checkpointed
+     * at most once per batch, after it.
+     */
+    protected void handleInputEvents(List<? extends Event> events) {
+
+        if (events.size() == 1) {
+            handleInputEvent(events.get(0));
+            return;
+        }
+
+        synchronized (getProcessingLock()) {
+            if (evicted) {
+                ProcessingElement live = pePrototype.getInstanceForKey(id);
+                if (live != null) {
+                    live.handleInputEvents(events);
+                }
+                return;
             }
+            processing = true;
+            try {
+                if (!recoveryAttempted) {
+                    recover();
+                    recoveryAttempted = true;
+                }
 
-            /* Dispatch onEvent() method. */
-            overloadDispatcher.dispatchEvent(this, event);
+                if (batchEventType != null && acceptsBatch(events)) {
+                    processBatch(events);
+                } else {
+                    for (Event event : events) {
+                        processEvent(event);
+                    }
+                }
 
-            /* Dispatch onTrigger() method. */
-            if (haveTriggers && isTrigger(event)) {
-                overloadDispatcher.dispatchTrigger(this, event);
+                dirty = true;
+
+                /*
+                 * The checkpointing condition may depend on the event count, so it is evaluated for each event of the
+                 * batch. The state is checkpointed once, after the whole batch.
+                 */
+                boolean checkpointDue = false;
+                for (int i = 0; i < events.size(); i++) {
+                    eventCount++;
+                    if (!checkpointDue && isCheckpointable()) {
+                        checkpointDue = true;
+                    }
+                }
+                if (checkpointDue) {
+                    checkpoint();
+                }
+            } finally {
+                processing = false;
             }
+        }
+    }
 
-            eventCount++;
+    private Object getProcessingLock() {
+        if (isThreadSafe) {
+            return new Object(); // a dummy object TODO improve this.
+        } else {
+            return this;
+        }
+    }
 
-            dirty = true;
+    /* Dispatches onEvent() then, if the event reaches a trigger, onTrigger(). */
+    private void processEvent(Event event) {
+        overloadDispatcher.dispatchEvent(this, event);
+
+        if (haveTriggers && isTrigger(event)) {
+            overloadDispatcher.dispatchTrigger(this, event);
+        }
+    }
+
+    /* Dispatches onEvents(), split at the events that reach a trigger. */
+    private void processBatch(List<? extends Event> events) {
+        if (!haveTriggers) {
+            overloadDispatcher.dispatchEvents(this, events);
+            return;
+        }
+        int from = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (isTrigger(events.get(i))) {
+                overloadDispatcher.dispatchEvents(this, events.subList(from, i + 1));
+                overloadDispatcher.dispatchTrigger(this, events.get(i));
+                from = i + 1;
+            }
+        }
+        if (from < events.size()) {
+            overloadDispatcher.dispatchEvents(this, events.subList(from, events.size()));
+        }
+    }
 
-            if (isCheckpointable()) {
-                checkpoint();
+    private boolean acceptsBatch(List<? extends Event> events) {
+        for (Event event : events) {
+            if (!batchEventType.isInstance(event)) {
+                return false;
             }
         }
+        return true;
     }
 
     protected boolean isCheckpointable() {
@@ -508,33 +632,41 @@ public abstract class ProcessingElement implements Cloneable {
             return;
 
         /* First let the PE instance clean after itself. */
-        onRemove();
+        ProcessingElement pe = peInstances.getIfPresent(id);
+        if (pe != null) {
+            pe.onRemove();
+        }
 
         /* Remove PE instance. */
-        peInstances.invalidate(id);
+        peInstances.remove(id);
     }
 
     protected void removeAll() {
 
         /* Close resources in prototype. */
         if (triggerTimer != null) {
-            triggerTimer.shutdownNow();
+            triggerTimer.cancel();
             logger.info("Trigger timer stopped.");
         }
+        if (checkpointingTimer != null) {
+            checkpointingTimer.cancel();
+        }
 
         /* Remove all the instances. */
-        peInstances.invalidateAll();
+        peInstances.clear();
     }
 
     protected void close() {
         removeInstanceForKeyInternal(id);
     }
 
-    private ProcessingElement createPE(String id) {
+    ProcessingElement createPE(String id) {
         ProcessingElement pe = (ProcessingElement) this.clone();
         pe.isPrototype = false;
         pe.id = id;
-        pe.triggers = Maps.newHashMap(triggers);
+        if (haveTriggers) {
+            pe.triggers = Maps.newHashMap(triggers);
+        }
         pe.onCreate();
         logger.trace("Num PE instances: {}.", getNumPEInstances());
         return pe;
@@ -545,32 +677,22 @@ public abstract class ProcessingElement implements Cloneable {
 
         /* Eagerly create singleton PE. */
         if (isSingleton) {
-            try {
-                peInstances.get(SINGLETON);
-                logger.trace("Created singleton [{}].", getInstanceForKey(SINGLETON));
-            } catch (ExecutionException e) {
-                logger.error("Problem when trying to create a PE instance.", e);
-            }
+            peInstances.getOrCreate(SINGLETON);
+            logger.trace("Created singleton [{}].", getInstanceForKey(SINGLETON));
         }
 
-        /* Start timer. */
-        if (triggerTimer != null) {
-            triggerTimer.scheduleAtFixedRate(new OnTimeTask(), 0, timerIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+        /* Start timer. Timers are shared by all the PEs of the node, the first call is delayed to spread them. */
+        if (timerIntervalInMilliseconds > 0) {
+            onTimeSweeper = new OnTimeSweeper(this, getApp().getTimerService(), parallelOnTime,
+                    timerIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+            triggerTimer = getApp().getTimerService().schedulePeriodic(onTimeSweeper, timerIntervalInMilliseconds,
+                    TimeUnit.MILLISECONDS);
             logger.debug("Started timer for PE prototype [{}], ID [{}] with interval [{}].", new String[] {
                     this.getClass().getName(), id, String.valueOf(timerIntervalInMilliseconds) });
         }
 
         if (checkpointingConfig.mode == CheckpointingMode.TIME) {
-            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                    .setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-
-                        @Override
-                        public void uncaughtException(Thread t, Throwable e) {
-                            logger.error("Expection from checkpointing thread", e);
-                        }
-                    }).setNameFormat("Checkpointing-trigger-" + getClass().getSimpleName()).build();
-            checkpointingTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
-            checkpointingTimer.scheduleAtFixedRate(new CheckpointingTask(this), checkpointingConfig.frequency,
+            checkpointingTimer = getApp().getTimerService().schedulePeriodic(new CheckpointingTask(this),
                     checkpointingConfig.frequency, checkpointingConfig.timeUnit);
             logger.debug(
                     "Started checkpointing timer for PE prototype [{}], ID [{}] with interval [{}] [{}].",
@@ -592,36 +714,21 @@ public abstract class ProcessingElement implements Cloneable {
     /**
      * This method is designed to be used within the package. We make it package-private. The returned instances are all
      * in the same JVM. Do not use it to access remote objects.
-     * 
-     * @throws ExecutionException
      */
     public ProcessingElement getInstanceForKey(String id) {
 
         /* Check if instance for key exists, otherwise create one. */
-        try {
-            if (isSingleton) {
-                return peInstances.get(SINGLETON);
-            }
-            return peInstances.get(id);
-        } catch (ExecutionException e) {
-            logger.error("Problem when trying to create a PE instance for id {}", id, e);
-        }
-        return null;
+        return peInstances.getOrCreate(isSingleton ? SINGLETON : id);
     }
 
     /**
      * Get all the local instances. See notes in {@link #getInstanceForKey(String) getLocalInstanceForKey}
      */
     public Collection<ProcessingElement> getInstances() {
-        try {
-            if (isSingleton) {
-                return ImmutableList.of(peInstances.get(SINGLETON));
-            } else {
-                return peInstances.asMap().values();
-            }
-        } catch (ExecutionException e) {
-            logger.error("Problem when trying to create a PE instance for id {}", id, e);
-            return null;
+        if (isSingleton) {
+            return ImmutableList.of(peInstances.getOrCreate(SINGLETON));
+        } else {
+            return peInstances.asMap().values();
         }
     }
 
@@ -636,7 +743,7 @@ public abstract class ProcessingElement implements Cloneable {
                 + "it to test your app in single node configuration only. Should work "
                 + "transparently for remote objects once it is implemented.");
 
-        ProcessingElement pe = peInstances.asMap().get(id);
+        ProcessingElement pe = peInstances.getIfPresent(id);
         return pe;
     }
 
@@ -700,30 +807,27 @@ public abstract class ProcessingElement implements Cloneable {
         }
     }
 
-    private class OnTimeTask extends TimerTask {
-
-        @Override
-        public void run() {
-
-            for (Map.Entry<String, ProcessingElement> entry : getPEInstances().entrySet()) {
-
-                ProcessingElement peInstance = entry.getValue();
+    /**
+     * Schedules a task for this PE instance, for instance to close a session after a period of inactivity. As with
+     * {@link #onTime()}, the task is synchronized with the event handlers of the instance, unless the PE is thread safe.
+     * The task is not cancelled when the instance is removed.
+     * 
+     * @return the handle used to cancel the task
+     */
+    protected Timeout schedule(final Runnable task, long delay, TimeUnit timeUnit) {
+        return getApp().getTimerService().schedule(new Runnable() {
 
-                try {
-                    if (isThreadSafe) {
-                        peInstance.onTime();
-                    } else {
-                        synchronized (peInstance) {
-                            peInstance.onTime();
-                        }
+            @Override
+            public void run() {
+                if (isThreadSafe) {
+                    task.run();
+                } else {
+                    synchronized (ProcessingElement.this) {
+                        task.run();
                     }
-                } catch (Exception e) {
-                    logger.error("Caught exception in timer when calling PE instance [{}] with id [{}].", peInstance,
-                            peInstance.id);
-                    logger.error("Timer error.", e);
                 }
             }
-        }
+        }, delay, timeUnit);
     }
 
     /**
@@ -788,8 +892,49 @@ public abstract class ProcessingElement implements Cloneable {
         return (ProcessingElement) getApp().getSerDeser().deserialize(loadedState);
     }
 
+    /**
+     * Copies the non-transient fields of a PE instance deserialized from a checkpoint, through a copier generated once
+     * per PE class.
+     */
     public void restoreState(ProcessingElement oldState) {
-        restoreFieldsForClass(oldState.getClass(), oldState);
+        if (!oldState.getClass().isInstance(this)) {
+            logger.error("Cannot recover old state of class [{}] for this PE of class [{}]", oldState.getClass()
+                    .getName(), getClass().getName());
+            return;
+        }
+        StateCopier copier = oldState.getClass() == getClass() ? getStateCopier() : StateCopierGenerator
+                .getCopier(oldState.getClass());
+        copier.copy(oldState, this);
+    }
+
+    private StateCopier getStateCopier() {
+        // held by the prototype, the shared cache only keeps copiers weakly
+        StateCopier copier = pePrototype.stateCopier;
+        if (copier == null) {
+            copier = StateCopierGenerator.getCopier(getClass());
+            pePrototype.stateCopier = copier;
+        }
+        return copier;
+    }
+
+    /* Whether a store that evicts this instance must save its state. */
+    boolean hasStateToSpill() {
+        return restoredFromSpill || isDirty();
+    }
+
+    /*
+     * Called by a store that spills, with the lock of the instance, before saving its state. Events that still reach
+     * this instance are then handled by the instance reloaded from the spill store, so that they are not lost.
+     */
+    void markEvicted() {
+        evicted = true;
+    }
+
+    /* Restores the state saved when this instance was evicted. It is more recent than any checkpoint. */
+    void restoreSpilledState(byte[] state) {
+        restoreState(deserializeState(state));
+        recoveryAttempted = true;
+        restoredFromSpill = true;
     }
 
     protected void recover() {
@@ -811,33 +956,6 @@ public abstract class ProcessingElement implements Cloneable {
         }
     }
 
-    private void restoreFieldsForClass(Class<?> currentInOldStateClassHierarchy, ProcessingElement oldState) {
-        if (!ProcessingElement.class.isAssignableFrom(currentInOldStateClassHierarchy)) {
-            return;
-        } else {
-            Field[] fields = oldState.getClass().getDeclaredFields();
-            for (Field field : fields) {
-                if (!Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
-                    if (!Modifier.isPublic(field.getModifiers())) {
-                        field.setAccessible(true);
-                    }
-                    try {
-                        // TODO use reflectasm
-                        field.set(this, field.get(oldState));
-                    } catch (IllegalArgumentException e) {
-                        logger.error("Cannot recover old state for this PE [{}]", e);
-                        return;
-                    } catch (IllegalAccessException e) {
-                        logger.error("Cannot recover old state for this PE [{}]", e);
-                        return;
-                    }
-
-                }
-            }
-            restoreFieldsForClass(currentInOldStateClassHierarchy.getSuperclass(), oldState);
-        }
-    }
-
     class Trigger {
         final long intervalInMilliseconds;
         final int intervalInEvents;
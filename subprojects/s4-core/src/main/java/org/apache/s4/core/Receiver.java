@@ -20,10 +20,11 @@ package org.apache.s4.core;
 
 import java.util.Map;
 
+import org.apache.s4.base.DeliveryState;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventMessageHandler;
 import org.apache.s4.base.Listener;
-import org.apache.s4.base.SerializerDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,9 +37,10 @@ import com.google.inject.Singleton;
  * <p>
  * {@link Receiver} is responsible for receiving an event to a {@link ProcessingElement} instance using a hashKey.
  * <p>
- * A Listener implementation receives data from the network and passes an event as a byte array to the {@link Receiver}.
- * The byte array is de-serialized and converted into an {@link Event}. Finally the event is passed to the matching
- * streams.
+ * A Listener implementation receives data from the network and decodes it into an {@link EventMessage}, which it
+ * pushes to the {@link Receiver}. The message is then offered to the queue of the matching stream, using the app id
+ * and stream id from its header. This happens on the threads of the listener and never blocks: when the stream queue
+ * is full, the listener is told to retry later. The event itself is deserialized by the stream.
  * </p>
  * There is a single {@link Receiver} instance per node.
  * 
@@ -46,25 +48,18 @@ import com.google.inject.Singleton;
  * from the application developer. </p>
  */
 @Singleton
-public class Receiver implements Runnable {
+public class Receiver implements EventMessageHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(Receiver.class);
 
     final private Listener listener;
-    final private SerializerDeserializer serDeser;
-    private Map<Integer, Map<String, Stream<? extends Event>>> streams;
-    private Thread thread;
+    private Map<Integer, Map<Integer, Stream<? extends Event>>> streams;
 
     @Inject
-    public Receiver(Listener listener, SerializerDeserializer serDeser) {
+    public Receiver(Listener listener) {
         this.listener = listener;
-        this.serDeser = serDeser;
-
-        thread = new Thread(this, "Receiver");
-        // TODO avoid starting the thread here
-        thread.start();
-
         streams = new MapMaker().makeMap();
+        listener.setHandler(this);
     }
 
     int getPartition() {
@@ -74,48 +69,40 @@ public class Receiver implements Runnable {
     /** Save stream keyed by app id and stream id. */
     void addStream(Stream<? extends Event> stream) {
         int appId = stream.getApp().getId();
-        Map<String, Stream<? extends Event>> appMap = streams.get(appId);
+        Map<Integer, Stream<? extends Event>> appMap = streams.get(appId);
         if (appMap == null) {
             appMap = new MapMaker().makeMap();
             streams.put(appId, appMap);
         }
-        appMap.put(stream.getName(), stream);
+        appMap.put(stream.getId(), stream);
     }
 
     /** Remove stream when it is no longer needed. */
     void removeStream(Stream<? extends Event> stream) {
         int appId = stream.getApp().getId();
-        Map<String, Stream<? extends Event>> appMap = streams.get(appId);
+        Map<Integer, Stream<? extends Event>> appMap = streams.get(appId);
         if (appMap == null) {
             logger.error("Tried to remove a stream that is not registered in the receiver.");
             return;
         }
-        appMap.remove(stream.getName());
+        appMap.remove(stream.getId());
     }
 
-    public void run() {
-        // TODO: this thread never seems to get interrupted. SHould we catch an interrupted exception from listener
-        // here?
-        while (!Thread.interrupted()) {
-            byte[] message = listener.recv();
-            EventMessage event = (EventMessage) serDeser.deserialize(message);
-
-            int appId = Integer.valueOf(event.getAppName());
-            String streamId = event.getStreamName();
-
-            /*
-             * Match appId and streamId in event to the target stream and pass the event to the target stream. TODO:
-             * make this more efficient for the case in which we send the same event to multiple PEs.
-             */
-            try {
-                streams.get(appId).get(streamId).receiveEvent(event);
-            } catch (NullPointerException e) {
-                logger.error("Could not find target stream for event with appId={} and streamId={}", appId, streamId);
-            }
+    @Override
+    public boolean onMessage(EventMessage message, DeliveryState state) {
+        /* Match appId and streamId in the message to the target stream and pass the message to the target stream. */
+        Map<Integer, Stream<? extends Event>> appMap = streams.get(message.getAppId());
+        Stream<? extends Event> stream = appMap == null ? null : appMap.get(message.getStreamId());
+        if (stream == null) {
+            logger.error("Could not find target stream for event with appId={} and streamId={}", message.getAppId(),
+                    message.getStreamId());
+            // retrying would not help
+            return true;
         }
+        return stream.offerEvent(message, state);
     }
 
     public void close() {
-        thread.interrupt();
+        listener.setHandler(null);
     }
 }
@@ -21,6 +21,7 @@ package org.apache.s4.core;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
+import org.apache.s4.base.Partitioner;
 
 /**
  * Sends events to a remote cluster.
@@ -30,20 +31,22 @@ public class RemoteSender {
 
     final private Emitter emitter;
     final private Hasher hasher;
+    final private Partitioner partitioner;
     int targetPartition = 0;
 
-    public RemoteSender(Emitter emitter, Hasher hasher) {
+    public RemoteSender(Emitter emitter, Hasher hasher, Partitioner partitioner) {
         super();
         this.emitter = emitter;
         this.hasher = hasher;
+        this.partitioner = partitioner;
     }
 
-    public void send(String hashKey, EventMessage eventMessage) {
+    public void send(CharSequence hashKey, EventMessage eventMessage) {
         if (hashKey == null) {
             // round robin by default
             emitter.send(Math.abs(targetPartition++ % emitter.getPartitionCount()), eventMessage);
         } else {
-            int partition = (int) (hasher.hash(hashKey) % emitter.getPartitionCount());
+            int partition = partitioner.partition(hasher.hash(hashKey), emitter.getPartitionCount());
             emitter.send(partition, eventMessage);
         }
     }
@@ -18,6 +18,7 @@
 
 package org.apache.s4.core;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -25,6 +26,7 @@ import java.util.Set;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
+import org.apache.s4.base.Partitioner;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.tcp.RemoteEmitters;
 import org.apache.s4.comm.topology.Clusters;
@@ -59,25 +61,38 @@ public class RemoteSenders {
     @Inject
     Hasher hasher;
 
+    @Inject
+    Partitioner partitioner;
+
     Map<String, RemoteSender> sendersByTopology = new HashMap<String, RemoteSender>();
 
-    public void send(String hashKey, Event event) {
+    public void send(CharSequence hashKey, Event event) {
 
         Set<StreamConsumer> consumers = streams.getConsumers(event.getStreamName());
+        if (consumers.isEmpty()) {
+            return;
+        }
+        /*
+         * The event is serialized once and the payload is shared by all consumers. Only the header, which holds the app
+         * id of the consumer app for correct dispatch within the consumer node, differs. The consumer stream assigns
+         * that app id to the event when deserializing it.
+         * 
+         * The payload is serialized with the default serializers of the event class, since the serializers registered
+         * by the consumer app are not known here. Messages are flagged accordingly.
+         */
+        byte[] payload = serDeser.serialize(event);
+        int streamId = streams.getStreamId(event.getStreamName());
         for (StreamConsumer consumer : consumers) {
             // NOTE: even though there might be several ephemeral znodes for the same app and topology, they are
             // represented by a single stream consumer
             RemoteSender sender = sendersByTopology.get(consumer.getClusterName());
             if (sender == null) {
-                sender = new RemoteSender(emitters.getEmitter(topologies.getCluster(consumer.getClusterName())), hasher);
+                sender = new RemoteSender(emitters.getEmitter(topologies.getCluster(consumer.getClusterName())), hasher,
+                        partitioner);
                 // TODO cleanup when remote topologies die
                 sendersByTopology.put(consumer.getClusterName(), sender);
             }
-            // we must set the app id of the consumer app for correct dispatch within the consumer node
-            // NOTE: this implies multiple serializations, there might be an optimization
-            event.setAppId(consumer.getAppId());
-            EventMessage eventMessage = new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(),
-                    serDeser.serialize(event));
+            EventMessage eventMessage = new EventMessage(consumer.getAppId(), streamId, ByteBuffer.wrap(payload), true);
             sender.send(hashKey, eventMessage);
         }
 
@@ -69,7 +69,7 @@ public class RemoteStream implements Streamable<Event> {
         event.setAppId(app.getId());
 
         if (key != null) {
-            remoteSenders.send(key.get(event), event);
+            remoteSenders.send(key.getCompositeKey(event), event);
         } else {
             remoteSenders.send(null, event);
         }
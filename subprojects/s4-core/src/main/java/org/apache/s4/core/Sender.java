@@ -22,6 +22,7 @@ import org.apache.s4.base.Emitter;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
+import org.apache.s4.base.Partitioner;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.topology.Assignment;
 import org.apache.s4.comm.topology.ClusterNode;
@@ -45,6 +46,7 @@ public class Sender {
     final private Emitter emitter;
     final private SerializerDeserializer serDeser;
     final private Hasher hasher;
+    final private Partitioner partitioner;
 
     Assignment assignment;
     private int localPartitionId = -1;
@@ -56,13 +58,17 @@ public class Sender {
      * @param serDeser
      *            a serialization mechanism.
      * @param hasher
-     *            a hashing function to map keys to partition IDs.
+     *            a hashing function for keys.
+     * @param partitioner
+     *            maps hashed keys to partition IDs.
      */
     @Inject
-    public Sender(Emitter emitter, SerializerDeserializer serDeser, Hasher hasher, Assignment assignment) {
+    public Sender(Emitter emitter, SerializerDeserializer serDeser, Hasher hasher, Partitioner partitioner,
+            Assignment assignment) {
         this.emitter = emitter;
         this.serDeser = serDeser;
         this.hasher = hasher;
+        this.partitioner = partitioner;
         this.assignment = assignment;
     }
 
@@ -80,20 +86,65 @@ public class Sender {
      * 
      * @param hashKey
      *            the string used to map the value of a key to a specific partition.
+     * @param appId
+     *            the id of the sending app, for the header of the message.
+     * @param streamId
+     *            the id of the target stream.
      * @param event
      *            the event to be delivered to a {@link ProcessingElement} instance.
      * @return true if the event was sent because the destination is <b>not</b> local.
      * 
      */
-    public boolean checkAndSendIfNotLocal(String hashKey, Event event) {
-        int partition = (int) (hasher.hash(hashKey) % emitter.getPartitionCount());
+    public boolean checkAndSendIfNotLocal(String hashKey, int appId, int streamId, Event event) {
+        return checkAndSendIfNotLocal(hasher.hash(hashKey), hashKey, appId, streamId, event, serDeser);
+    }
+
+    /**
+     * Same as {@link #checkAndSendIfNotLocal(String, int, int, Event)}, for a key that was already hashed with the
+     * {@link Hasher} of this node.
+     * 
+     * @param keyHash
+     *            the hash of the value of the key.
+     * @param appId
+     *            the id of the sending app, for the header of the message.
+     * @param streamId
+     *            the id of the target stream.
+     * @param event
+     *            the event to be delivered to a {@link ProcessingElement} instance.
+     * @return true if the event was sent because the destination is <b>not</b> local.
+     */
+    public boolean checkAndSendIfNotLocal(long keyHash, int appId, int streamId, Event event) {
+        return checkAndSendIfNotLocal(keyHash, null, appId, streamId, event, serDeser);
+    }
+
+    /**
+     * Same as {@link #checkAndSendIfNotLocal(long, int, int, Event)}, serializing the event with the given
+     * serializer. Apps use their own serializer, which knows about their event classes. The key travels with the
+     * message, so that the receiving stream does not extract it from the event again.
+     * 
+     * @param keyHash
+     *            the hash of the value of the key.
+     * @param key
+     *            the value of the key, may be <code>null</code>.
+     * @param appId
+     *            the id of the sending app, for the header of the message.
+     * @param streamId
+     *            the id of the target stream.
+     * @param event
+     *            the event to be delivered to a {@link ProcessingElement} instance.
+     * @param serDeser
+     *            serializer for the event
+     * @return true if the event was sent because the destination is <b>not</b> local.
+     */
+    public boolean checkAndSendIfNotLocal(long keyHash, String key, int appId, int streamId, Event event,
+            SerializerDeserializer serDeser) {
+        int partition = partitioner.partition(keyHash, emitter.getPartitionCount());
 
         if (partition == localPartitionId) {
             /* Hey we are in the same JVM, don't use the network. */
             return false;
         }
-        send(partition,
-                new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), serDeser.serialize(event)));
+        send(partition, new EventMessage(appId, streamId, keyHash, key, serDeser.serialize(event)));
         return true;
     }
 
@@ -105,20 +156,42 @@ public class Sender {
      * Send an event to all the remote partitions in the cluster. The caller is expected to also put the event in a
      * local queue.
      * 
+     * @param appId
+     *            the id of the sending app, for the header of the message.
+     * @param streamId
+     *            the id of the target stream.
      * @param event
      *            the event to be delivered to {@link ProcessingElement} instances.
      */
-    public void sendToRemotePartitions(Event event) {
+    public void sendToRemotePartitions(int appId, int streamId, Event event) {
+        if (hasRemotePartitions()) {
+            sendToRemotePartitions(new EventMessage(appId, streamId, serDeser.serialize(event)));
+        }
+    }
+
+    /**
+     * Send an already serialized event to all the remote partitions in the cluster. The same message, and therefore
+     * the same serialized payload, is used for every partition.
+     * 
+     * @param message
+     *            the message to be delivered to {@link ProcessingElement} instances.
+     */
+    public void sendToRemotePartitions(EventMessage message) {
 
         for (int i = 0; i < emitter.getPartitionCount(); i++) {
 
             /* Don't use the comm layer when we send to the same partition. */
             if (localPartitionId != i)
-                emitter.send(
-                        i,
-                        new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), serDeser
-                                .serialize(event)));
+                emitter.send(i, message);
         }
     }
 
+    /**
+     * @return true if the cluster has partitions other than the local one
+     */
+    public boolean hasRemotePartitions() {
+        int partitionCount = emitter.getPartitionCount();
+        return partitionCount > 1 || (partitionCount == 1 && localPartitionId != 0);
+    }
+
 }
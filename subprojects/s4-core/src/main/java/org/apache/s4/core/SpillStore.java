@@ -0,0 +1,412 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Local disk store for the state of evicted PE instances, see {@link PEInstanceTable}.
+ * <p>
+ * States are appended to segment files. Each record holds the id of the instance and its serialized state. Only the
+ * index, from id to record location, is kept in memory. Reading a state removes it from the store, so the store only
+ * holds instances that are not in memory. Segment files are deleted when they no longer hold live records. A segment
+ * that is mostly made of stale records is compacted: its live records are copied to the current segment.
+ * <p>
+ * The store lock only guards the index and the bookkeeping of segments: records are written and read outside of it, at
+ * positions reserved under the lock. Segments are neither compacted nor deleted while a record is being written to or
+ * read from them, and a state only becomes visible once it is completely written.
+ * <p>
+ * Files are removed when the store is closed: the store extends the memory of a node, it does not provide durability.
+ */
+public class SpillStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /* sealed segments with less live data than this fraction are compacted */
+    private static final double COMPACTION_THRESHOLD = 0.25;
+
+    private final File directory;
+    private final int segmentSize;
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final Map<Integer, Segment> segments = new LinkedHashMap<Integer, Segment>();
+    private Segment active;
+    private int nextSegmentId = 0;
+
+    private long spillCount;
+    private long lookupCount;
+    private long reloadCount;
+    private long reloadNanos;
+    private long maxReloadNanos;
+
+    /**
+     * @param directory
+     *            directory for the segment files, created if needed. It should not be used for anything else.
+     */
+    public SpillStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory
+     *            directory for the segment files, created if needed. It should not be used for anything else.
+     * @param segmentSize
+     *            size above which a new segment file is started
+     */
+    public SpillStore(File directory, int segmentSize) {
+        Preconditions.checkArgument(segmentSize > 0, "Segment size must be positive");
+        Preconditions.checkArgument(directory.isDirectory() || directory.mkdirs(), "Cannot create directory %s",
+                directory);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Saves the state of an instance, replacing any previous state for the same id.
+     */
+    public void put(String id, byte[] state) {
+        byte[] idBytes = id.getBytes(UTF8);
+        Location location;
+        synchronized (this) {
+            try {
+                location = reserve(idBytes.length, state.length);
+            } catch (IOException e) {
+                logger.error("Cannot save the state of PE instance [{}], the state is lost: {}", id, e.getMessage());
+                return;
+            }
+        }
+        boolean written = false;
+        try {
+            write(location, idBytes, state);
+            written = true;
+        } catch (IOException e) {
+            logger.error("Cannot save the state of PE instance [{}], the state is lost: {}", id, e.getMessage());
+        }
+        synchronized (this) {
+            if (written && !location.segment.deleted) {
+                Location previous = index.put(id, location);
+                spillCount++;
+                if (previous != null) {
+                    release(previous);
+                }
+            } else {
+                release(location);
+            }
+            unpin(location.segment);
+        }
+    }
+
+    /**
+     * Reads and removes the state of an instance.
+     * 
+     * @return the state, or <code>null</code> if the store does not hold the instance
+     */
+    public byte[] take(String id) {
+        Location location;
+        synchronized (this) {
+            lookupCount++;
+            location = index.remove(id);
+            if (location == null) {
+                return null;
+            }
+            location.segment.pins++;
+        }
+        long start = System.nanoTime();
+        byte[] state = new byte[location.length];
+        try {
+            read(location.segment, location.position, ByteBuffer.wrap(state));
+        } catch (IOException e) {
+            logger.error("Cannot read the state of PE instance [{}], the state is lost: {}", id, e.getMessage());
+            state = null;
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            if (state != null) {
+                reloadCount++;
+                reloadNanos += elapsed;
+                maxReloadNanos = Math.max(maxReloadNanos, elapsed);
+            }
+            release(location);
+            unpin(location.segment);
+        }
+        return state;
+    }
+
+    /**
+     * Discards the state of an instance, if any.
+     */
+    public synchronized void remove(String id) {
+        Location location = index.remove(id);
+        if (location != null) {
+            release(location);
+        }
+    }
+
+    /**
+     * Discards all states and deletes the segment files.
+     */
+    public synchronized void clear() {
+        index.clear();
+        for (Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    /**
+     * Same as {@link #clear()}.
+     */
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @return the number of instances held by this store
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the size of the segment files
+     */
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of states written
+     */
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return the number of states read back
+     */
+    public synchronized long getReloadCount() {
+        return reloadCount;
+    }
+
+    /**
+     * @return the fraction of lookups, i.e. creations of PE instances, that found a state in this store
+     */
+    public synchronized double getHitRate() {
+        return lookupCount == 0 ? 0 : (double) reloadCount / lookupCount;
+    }
+
+    /**
+     * @return the average time to read a state, in nanoseconds
+     */
+    public synchronized long getAverageReloadNanos() {
+        return reloadCount == 0 ? 0 : reloadNanos / reloadCount;
+    }
+
+    /**
+     * @return the longest time taken to read a state, in nanoseconds
+     */
+    public synchronized long getMaxReloadNanos() {
+        return maxReloadNanos;
+    }
+
+    /* Reserves space for a record in the active segment, and pins the segment until the record is written. */
+    private Location reserve(int idLength, int stateLength) throws IOException {
+        if (active == null || active.size >= segmentSize) {
+            Segment sealed = active;
+            active = new Segment(nextSegmentId++);
+            segments.put(active.id, active);
+            if (sealed != null) {
+                checkSealed(sealed);
+            }
+        }
+        int recordLength = 4 + idLength + 4 + stateLength;
+        long position = active.size;
+        active.size += recordLength;
+        active.liveBytes += recordLength;
+        active.pins++;
+        return new Location(active, position + 4 + idLength + 4, stateLength, recordLength);
+    }
+
+    /* record: id length, id, state length, state */
+    private static void write(Location location, byte[] id, byte[] state) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + id.length + 4);
+        header.putInt(id.length).put(id).putInt(state.length).flip();
+        long position = location.position - header.remaining();
+        while (header.hasRemaining()) {
+            position += location.segment.channel.write(header, position);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        while (buffer.hasRemaining()) {
+            position += location.segment.channel.write(buffer, position);
+        }
+    }
+
+    /* Appends a record while holding the lock, for compaction. */
+    private Location append(byte[] id, byte[] state) throws IOException {
+        Location location = reserve(id.length, state.length);
+        try {
+            write(location, id, state);
+        } finally {
+            location.segment.pins--;
+        }
+        return location;
+    }
+
+    /* No record of this segment is being read or written any more. */
+    private void unpin(Segment segment) {
+        segment.pins--;
+        if (segment != active) {
+            checkSealed(segment);
+        }
+    }
+
+    private static void read(Segment segment, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + segment.file);
+            }
+        }
+    }
+
+    /* The record at this location is no longer live. */
+    private void release(Location location) {
+        Segment segment = location.segment;
+        segment.liveBytes -= location.recordLength;
+        if (segment != active) {
+            checkSealed(segment);
+        }
+    }
+
+    /* Deletes or compacts a sealed segment that holds little live data. */
+    private void checkSealed(Segment segment) {
+        if (segment.deleted || segment.pins > 0) {
+            return;
+        }
+        if (segment.liveBytes == 0) {
+            segments.remove(segment.id);
+            segment.delete();
+        } else if (segment.liveBytes < segment.size * COMPACTION_THRESHOLD) {
+            compact(segment);
+        }
+    }
+
+    /* Copies the live records of a sealed segment to the active segment, and deletes the sealed segment. */
+    private void compact(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            long position = 0;
+            while (position < segment.size) {
+                length.clear();
+                read(segment, position, length);
+                byte[] idBytes = new byte[length.getInt(0)];
+                read(segment, position + 4, ByteBuffer.wrap(idBytes));
+                length.clear();
+                read(segment, position + 4 + idBytes.length, length);
+                int stateLength = length.getInt(0);
+                long statePosition = position + 4 + idBytes.length + 4;
+
+                String id = new String(idBytes, UTF8);
+                Location location = index.get(id);
+                if (location != null && location.segment == segment && location.position == statePosition) {
+                    byte[] state = new byte[stateLength];
+                    read(segment, statePosition, ByteBuffer.wrap(state));
+                    index.put(id, append(idBytes, state));
+                }
+                position = statePosition + stateLength;
+            }
+        } catch (IOException e) {
+            logger.error("Cannot compact spill segment " + segment.file + ", states it holds are lost", e);
+            for (Iterator<Location> it = index.values().iterator(); it.hasNext();) {
+                if (it.next().segment == segment) {
+                    it.remove();
+                }
+            }
+        }
+        segment.delete();
+    }
+
+    private class Segment {
+
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+        /* records being read or written outside the lock */
+        int pins;
+        boolean deleted;
+
+        Segment(int id) throws IOException {
+            this.id = id;
+            this.file = new File(directory, String.format("segment-%08d.spill", id));
+            this.raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            this.channel = raf.getChannel();
+        }
+
+        void delete() {
+            deleted = true;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close spill segment {}: {}", file, e.getMessage());
+            }
+            if (!file.delete()) {
+                logger.warn("Cannot delete spill segment {}", file);
+            }
+        }
+    }
+
+    private static class Location {
+
+        final Segment segment;
+        final long position;
+        final int length;
+        final int recordLength;
+
+        Location(Segment segment, long position, int length, int recordLength) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+}
@@ -18,14 +18,21 @@
 
 package org.apache.s4.core;
 
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
+import org.apache.s4.base.DeliveryState;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.GenericKeyFinder;
+import org.apache.s4.base.Hasher;
 import org.apache.s4.base.KeyFinder;
+import org.apache.s4.core.gen.KeyFinderGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,24 +44,29 @@ import com.google.common.base.Preconditions;
  * <p>
  * Once a stream is instantiated, it is immutable.
  * <p>
+ * By default a stream delivers events from a single thread. A stream can be configured with several lanes (see
+ * {@link #setLanes(int)}): each lane has its own queue and thread and events are assigned to a lane by key. All the
+ * events for a given key, and therefore for a given PE instance, go through the same lane, which preserves per-key
+ * ordering and serial execution of each PE instance.
+ * <p>
  * To build an application, create stream objects using relevant methods in the {@link App} class.
  */
-public class Stream<T extends Event> implements Runnable, Streamable {
+public class Stream<T extends Event> implements Streamable {
 
     private static final Logger logger = LoggerFactory.getLogger(Stream.class);
 
     final static private String DEFAULT_SEPARATOR = "^";
-    final static private int CAPACITY = 1000;
     private static int idCounter = 0;
     private String name;
     protected Key<T> key;
     private ProcessingElement[] targetPEs;
-    protected final BlockingQueue<EventMessage> queue = new ArrayBlockingQueue<EventMessage>(CAPACITY);
-    private Thread thread;
+    private Lane[] lanes;
+    private int batchSize = 1;
     final private Sender sender;
     final private Receiver receiver;
-    // final private int id;
+    private int id = -1;
     final private App app;
+    final private Hasher hasher;
     private Class<T> eventType = null;
 
     /**
@@ -68,6 +80,8 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         this.app = app;
         this.sender = app.getSender();
         this.receiver = app.getReceiver();
+        this.hasher = app.getHasher();
+        this.lanes = newLanes(1);
     }
 
     public void start() {
@@ -81,9 +95,9 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         }
 
         /* Start streaming. */
-        thread = new Thread(this, name);
-        thread.setContextClassLoader(getApp().getClass().getClassLoader());
-        thread.start();
+        for (Lane lane : lanes) {
+            lane.start();
+        }
         this.receiver.addStream(this);
     }
 
@@ -121,17 +135,30 @@ public class Stream<T extends Event> implements Runnable, Streamable {
     }
 
     /**
-     * Define the key finder for this stream using a descriptor.
+     * Define the key finder for this stream using a descriptor. When the key names are fields of the event type, a key
+     * finder reading these fields directly is generated.
      * 
-     * @param keyName
-     *            a descriptor to lookup up the value of the key.
+     * @param keyNames
+     *            a descriptor to lookup up the value of the key, several names for a composite key.
      * @return the stream object
      */
-    public Stream<T> setKey(String keyName) {
+    public Stream<T> setKey(String... keyNames) {
 
         Preconditions.checkNotNull(eventType);
 
-        KeyFinder<T> kf = new GenericKeyFinder<T>(keyName, eventType);
+        KeyFinder<T> kf = null;
+        try {
+            kf = new KeyFinderGenerator<T>(eventType, keyNames).generate();
+        } catch (RuntimeException e) {
+            logger.warn("Cannot generate key finder for event class [{}], using generic key finder: {}",
+                    eventType.getName(), e.getMessage());
+        } catch (LinkageError e) {
+            logger.warn("Cannot generate key finder for event class [{}], using generic key finder: {}",
+                    eventType.getName(), e.getMessage());
+        }
+        if (kf == null) {
+            kf = new GenericKeyFinder<T>(eventType, keyNames);
+        }
         setKey(kf);
 
         return this;
@@ -164,15 +191,88 @@ public class Stream<T extends Event> implements Runnable, Streamable {
     }
 
     /**
-     * Sends an event.
+     * Process events of this stream with several threads. Events are assigned to a lane using the hash of their key, so
+     * events with the same key are always processed in order by the same lane. Broadcast events (no key) are processed
+     * by every lane, each lane handling the PE instances it owns.
+     * <p>
+     * Must be called before the stream is started.
+     * 
+     * @param laneCount
+     *            number of lanes, default is 1.
+     * @return the stream object
+     */
+    public Stream<T> setLanes(int laneCount) {
+        Preconditions.checkArgument(laneCount > 0, "Number of lanes must be positive");
+        Preconditions.checkState(lanes[0].thread == null, "Cannot change the number of lanes of a started stream");
+        lanes = newLanes(laneCount);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Lane[] newLanes(int laneCount) {
+        Lane[] newLanes = (Lane[]) new Stream<?>.Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            newLanes[i] = new Lane(i);
+        }
+        return newLanes;
+    }
+
+    /**
+     * @return the number of lanes processing events of this stream
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @param lane
+     *            lane index
+     * @return the number of events waiting in the queue of the lane
+     */
+    public int getLaneQueueSize(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /**
+     * Sets the maximum number of queued events that a lane takes at once. Events of a batch are grouped by target PE
+     * instance and each group is passed to the PE in one call (see
+     * {@link ProcessingElement#handleInputEvents(List)}), which amortizes locking and bookkeeping in the PE.
+     * 
+     * @param batchSize
+     *            maximum number of events per batch, default is 1 (no batching).
+     * @return the stream object
+     */
+    public Stream<T> setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of events processed in one batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sends an event. The event is stamped with the name of this stream and the id of the app.
+     * <p>
+     * Events passed by reference to local PEs (see {@link App#setEventCopier(Class, EventCopier)}) are only stamped by
+     * the first stream they are put on, since PEs of that stream may be reading them. Other streams deliver a
+     * serialized copy to their local PEs.
      * 
      * @param event
      */
     @SuppressWarnings("unchecked")
     public void put(Event event) {
         try {
-            event.setStreamId(getName());
-            event.setAppId(app.getId());
+            boolean shared = app.isPassedByReference(event) && event.getStreamName() != null
+                    && (!event.getStreamName().equals(getName()) || event.getAppId() != app.getId());
+            if (!shared) {
+                event.setStreamId(getName());
+                event.setAppId(app.getId());
+            }
 
             /*
              * Events may be sent to local or remote partitions or both. The following code implements the logic.
@@ -183,14 +283,16 @@ public class Stream<T extends Event> implements Runnable, Streamable {
                  * We send to a specific PE instance using the key but we don't know if the target partition is remote
                  * or local. We need to ask the sender.
                  */
-                if (!sender.checkAndSendIfNotLocal(key.get((T) event), event)) {
+                CompositeKey compositeKey = key.getCompositeKey((T) event);
+                long keyHash = hasher.hash(compositeKey);
+                String peKey = compositeKey.toString();
+                if (!sender.checkAndSendIfNotLocal(keyHash, peKey, app.getId(), getId(), event, app.getSerDeser())) {
 
                     /*
                      * Sender checked and decided that the target is local so we simply put the event in the queue and
                      * we save the trip over the network.
                      */
-                    queue.put(new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), app
-                            .getSerDeser().serialize(event)));
+                    laneFor(keyHash).queue.put(localMessage(event, shared, keyHash, peKey));
                 }
 
             } else {
@@ -200,9 +302,17 @@ public class Stream<T extends Event> implements Runnable, Streamable {
                  * node. The sender method takes care of the remote partitions an we take care of putting the event into
                  * the queue.
                  */
-                sender.sendToRemotePartitions(event);
-                queue.put(new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), app.getSerDeser()
-                        .serialize(event)));
+                Event local = shared ? null : app.copyForLocalDelivery(event);
+                EventMessage serialized = null;
+                if (local == null || sender.hasRemotePartitions()) {
+                    /* Serialize once, for all remote partitions and for the local queue if needed. */
+                    serialized = new EventMessage(app.getId(), getId(), app.getSerDeser().serialize(event));
+                    sender.sendToRemotePartitions(serialized);
+                }
+                EventMessage message = local != null ? new EventMessage(app.getId(), getId(), local) : serialized;
+                for (Lane lane : lanes) {
+                    lane.queue.put(message);
+                }
             }
         } catch (InterruptedException e) {
             logger.error("Interrupted while waiting to put an event in the queue: {}.", e.getMessage());
@@ -210,18 +320,147 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         }
     }
 
+    /*
+     * Local deliveries skip serialization when the event class is immutable or has a registered copier. Otherwise the
+     * serialized form isolates the consumer from later changes to the event made by the producer, or to the stamp of
+     * a shared event, see put.
+     */
+    private EventMessage localMessage(Event event, boolean shared, long keyHash, String peKey) {
+        Event local = shared ? null : app.copyForLocalDelivery(event);
+        if (local != null) {
+            return new EventMessage(app.getId(), getId(), keyHash, peKey, local);
+        }
+        return new EventMessage(app.getId(), getId(), keyHash, peKey, app.getSerDeser().serialize(event));
+    }
+
     /**
      * The low level {@link Receiver} object call this method when a new {@link Event} is available.
      */
     public void receiveEvent(EventMessage event) {
         try {
-            queue.put(event);
+            if (lanes.length == 1) {
+                lanes[0].queue.put(event);
+            } else if (key == null) {
+                for (Lane lane : lanes) {
+                    lane.queue.put(event);
+                }
+            } else if (event.isKeyed()) {
+                /* Sent by a node of this app, the hash of the key comes with the message. */
+                laneFor(event.getKeyHash()).queue.put(event);
+            } else {
+                /* The lane depends on the key, so we need the event. Deserialize it once, here. */
+                EventMessage keyed = keyedMessage(event);
+                laneFor(keyed.getKeyHash()).queue.put(keyed);
+            }
         } catch (InterruptedException e) {
             logger.error("Interrupted while waiting to put an event in the queue: {}.", e.getMessage());
             Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Non-blocking variant of {@link #receiveEvent(EventMessage)}, used by the {@link Receiver} so that network threads
+     * never wait for a full queue.
+     * 
+     * @param state
+     *            progress of previous attempts to deliver the same message, updated when the message is only partly
+     *            delivered. May be <code>null</code> if the message will not be retried.
+     * @return true if the event was queued, false if a target queue is full. The caller is then expected to retry
+     *         later with the same state.
+     */
+    public boolean offerEvent(EventMessage event, DeliveryState state) {
+        if (lanes.length == 1) {
+            return lanes[0].queue.offer(event);
+        } else if (key == null) {
+            /* Every lane gets the event. Lanes that already got it in a previous attempt are skipped. */
+            boolean[] delivered = state == null ? null : (boolean[]) state.get();
+            boolean complete = true;
+            for (int i = 0; i < lanes.length; i++) {
+                if (delivered != null && delivered[i]) {
+                    continue;
+                }
+                if (lanes[i].queue.offer(event)) {
+                    if (delivered == null && state != null) {
+                        delivered = new boolean[lanes.length];
+                        state.set(delivered);
+                    }
+                    if (delivered != null) {
+                        delivered[i] = true;
+                    }
+                } else {
+                    complete = false;
+                }
+            }
+            return complete;
+        } else if (event.isKeyed()) {
+            return laneFor(event.getKeyHash()).queue.offer(event);
+        } else {
+            /* The event is deserialized and its key extracted once, retries reuse the keyed message. */
+            EventMessage keyed = state == null ? null : (EventMessage) state.get();
+            if (keyed == null) {
+                keyed = keyedMessage(event);
+            }
+            if (laneFor(keyed.getKeyHash()).queue.offer(keyed)) {
+                return true;
+            }
+            if (state != null) {
+                state.set(keyed);
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Serialized events may come from another app (through a remote stream), in which case their payload holds the app
+     * id of the producer. Stream name and app id are therefore taken from the header.
+     */
+    @SuppressWarnings("unchecked")
+    private T toEvent(EventMessage message) {
+        if (message.getEvent() != null) {
+            return (T) message.getEvent();
+        }
+        T event = (T) app.getSerDeser(message).deserialize(message.getSerializedEvent());
+        event.setAppId(app.getId());
+        event.setStreamId(name);
+        return event;
+    }
+
+    /*
+     * Messages from other apps do not carry the key, which depends on the key finder of this stream. The key is then
+     * extracted from the event once, here, and kept in the message.
+     */
+    private EventMessage keyedMessage(EventMessage message) {
+        T event = toEvent(message);
+        CompositeKey compositeKey = key.getCompositeKey(event);
+        return new EventMessage(message.getAppId(), message.getStreamId(), hasher.hash(compositeKey),
+                compositeKey.toString(), event);
+    }
+
+    /* The key of the target PE instance, taken from the message when it carries it. */
+    private String peKey(EventMessage message, T event) {
+        String peKey = message.getKey();
+        return peKey != null ? peKey : key.getCompositeKey(event).toString();
+    }
+
+    private Lane laneFor(long keyHash) {
+        return lanes[laneIndex(keyHash)];
+    }
+
+    /*
+     * All the keys of a partition have the same hash modulo the number of partitions, so the hash is mixed before
+     * picking a lane.
+     */
+    private int laneIndex(long keyHash) {
+        if (lanes.length == 1) {
+            return 0;
+        }
+        long h = keyHash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % lanes.length);
+    }
+
     /**
      * @return the name
      */
@@ -229,6 +468,16 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         return name;
     }
 
+    /**
+     * @return the cluster-wide id of this stream, which identifies the stream in messages sent between nodes
+     */
+    public int getId() {
+        if (id < 0) {
+            id = app.getRemoteStreams().getStreamId(name);
+        }
+        return id;
+    }
+
     /**
      * @return the key
      */
@@ -254,7 +503,9 @@ public class Stream<T extends Event> implements Runnable, Streamable {
      * Stop and close this stream.
      */
     public void close() {
-        thread.interrupt();
+        for (Lane lane : lanes) {
+            lane.close();
+        }
     }
 
     /**
@@ -271,56 +522,145 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         return receiver;
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                /* Get oldest event in queue. */
-                EventMessage eventMessage = queue.take();
-
-                @SuppressWarnings("unchecked")
-                T event = (T) app.getSerDeser().deserialize(eventMessage.getSerializedEvent());
+    public Stream<T> register() {
+        if (eventType != null && !eventType.isInterface() && !Modifier.isAbstract(eventType.getModifiers())) {
+            app.registerEventClass(eventType);
+        }
+        app.addStream(this);
+        return this;
+    }
 
-                /* Send event to each target PE. */
-                for (int i = 0; i < targetPEs.length; i++) {
+    /**
+     * A queue and the thread that consumes it.
+     */
+    private class Lane implements Runnable {
 
-                    if (key == null) {
+        private final int index;
+        private final BlockingQueue<EventMessage> queue = app.getStreamQueueFactory().createQueue();
+        private Thread thread;
+        private final List<String> peKeys = new ArrayList<String>();
 
-                        /* Broadcast to all PE instances! */
+        Lane(int index) {
+            this.index = index;
+        }
 
-                        /* STEP 1: find all PE instances. */
+        void start() {
+            thread = new Thread(this, lanes.length == 1 ? name : name + "-lane-" + index);
+            thread.setContextClassLoader(getApp().getClass().getClassLoader());
+            thread.start();
+        }
 
-                        Collection<ProcessingElement> pes = targetPEs[i].getInstances();
+        void close() {
+            thread.interrupt();
+        }
 
-                        /* STEP 2: iterate and pass event to PE instance. */
-                        for (ProcessingElement pe : pes) {
+        @Override
+        public void run() {
+            List<EventMessage> messages = new ArrayList<EventMessage>();
+            List<T> events = new ArrayList<T>();
+            Map<ProcessingElement, List<T>> eventsByPE = new LinkedHashMap<ProcessingElement, List<T>>();
+            while (true) {
+                try {
+                    /* Get oldest event in queue, and as many others as the batch allows. */
+                    messages.add(queue.take());
+                    if (batchSize > 1) {
+                        queue.drainTo(messages, batchSize - 1);
+                    }
 
-                            pe.handleInputEvent(event);
+                    for (EventMessage eventMessage : messages) {
+                        T event = toEvent(eventMessage);
+                        events.add(event);
+                        if (key != null) {
+                            peKeys.add(peKey(eventMessage, event));
                         }
+                    }
 
+                    if (events.size() == 1) {
+                        process(events.get(0), key == null ? null : peKeys.get(0));
                     } else {
+                        process(events, eventsByPE);
+                    }
+                } catch (InterruptedException e) {
+                    logger.info("Closing stream {}.", thread.getName());
+                    receiver.removeStream(Stream.this);
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    messages.clear();
+                    events.clear();
+                    peKeys.clear();
+                }
+            }
+        }
+
+        private boolean owns(ProcessingElement pe) {
+            return lanes.length == 1 || laneIndex(hasher.hash(pe.getId())) == index;
+        }
+
+        private void process(T event, String peKey) {
+            /* Send event to each target PE. */
+            for (int i = 0; i < targetPEs.length; i++) {
+
+                if (key == null) {
+
+                    /* Broadcast to all PE instances! */
 
-                        /* We have a key, send to target PE. */
+                    /* STEP 1: find all PE instances. */
 
-                        /* STEP 1: find the PE instance for key. */
-                        ProcessingElement pe = targetPEs[i].getInstanceForKey(key.get(event));
+                    Collection<ProcessingElement> pes = targetPEs[i].getInstances();
 
-                        /* STEP 2: pass event to PE instance. */
-                        pe.handleInputEvent(event);
+                    /* STEP 2: iterate and pass event to PE instance, if this lane owns it. */
+                    for (ProcessingElement pe : pes) {
+
+                        if (owns(pe)) {
+                            pe.handleInputEvent(event);
+                        }
                     }
-                }
 
-            } catch (InterruptedException e) {
-                logger.info("Closing stream {}.", name);
-                receiver.removeStream(this);
-                Thread.currentThread().interrupt();
-                return;
+                } else {
+
+                    /* We have a key, send to target PE. */
+
+                    /* STEP 1: find the PE instance for key. */
+                    ProcessingElement pe = targetPEs[i].getInstanceForKey(peKey);
+
+                    /* STEP 2: pass event to PE instance. */
+                    pe.handleInputEvent(event);
+                }
             }
         }
-    }
 
-    public Stream<T> register() {
-        app.addStream(this);
-        return this;
+        private void process(List<T> events, Map<ProcessingElement, List<T>> eventsByPE) {
+            for (int i = 0; i < targetPEs.length; i++) {
+
+                if (key == null) {
+
+                    /* Broadcast: every PE instance owned by this lane gets the whole batch. */
+                    for (ProcessingElement pe : targetPEs[i].getInstances()) {
+                        if (owns(pe)) {
+                            pe.handleInputEvents(events);
+                        }
+                    }
+
+                } else {
+
+                    /* Group events by PE instance, preserving their order. */
+                    for (int j = 0; j < events.size(); j++) {
+                        T event = events.get(j);
+                        ProcessingElement pe = targetPEs[i].getInstanceForKey(peKeys.get(j));
+                        List<T> peEvents = eventsByPE.get(pe);
+                        if (peEvents == null) {
+                            peEvents = new ArrayList<T>();
+                            eventsByPE.put(pe, peEvents);
+                        }
+                        peEvents.add(event);
+                    }
+                    for (Map.Entry<ProcessingElement, List<T>> entry : eventsByPE.entrySet()) {
+                        entry.getKey().handleInputEvents(entry.getValue());
+                    }
+                    eventsByPE.clear();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.util.S4RLoader;
+import org.apache.s4.base.util.S4RLoaderFactory;
+import org.apache.s4.core.ProcessingElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Generates classes of an application ahead of time and adds them to its S4R archive, so that nodes load them
+ * instead of generating them when the application starts.
+ * <p>
+ * The following classes are generated, in an additional application jar ({@value #GENERATED_JAR}):
+ * <ul>
+ * <li>overload dispatchers of the concrete PE classes, see {@link OverloadDispatcherGenerator}</li>
+ * <li>single field key finders of the concrete event classes, see {@link KeyFinderGenerator}. Key finders on several
+ * fields are still generated at run-time.</li>
+ * </ul>
+ * <p>
+ * Classes that cannot be generated here are skipped: they are generated at run-time as usual.
+ */
+public class AheadOfTimeGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AheadOfTimeGenerator.class);
+
+    public static final String GENERATED_JAR = "app/s4-generated.jar";
+
+    /**
+     * Generates the classes of the application packaged in an S4R and adds them to the S4R, replacing classes
+     * previously generated in that S4R.
+     * 
+     * @param s4r
+     *            the S4R archive, rewritten in place
+     * @return the number of generated classes
+     * @throws IOException
+     *             if the S4R cannot be read or rewritten
+     */
+    public static int addGeneratedClasses(File s4r) throws IOException {
+        Map<String, byte[]> generated = generateClasses(new S4RLoaderFactory().createS4RLoader(s4r
+                .getAbsolutePath()));
+        if (generated.isEmpty()) {
+            return 0;
+        }
+
+        JarFile jar = new JarFile(s4r);
+        File rewritten = new File(s4r.getParentFile(), s4r.getName() + ".tmp");
+        JarOutputStream out = null;
+        boolean threw = true;
+        try {
+            Manifest manifest = jar.getManifest();
+            FileOutputStream fos = new FileOutputStream(rewritten);
+            out = manifest == null ? new JarOutputStream(fos) : new JarOutputStream(fos, manifest);
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.getName().equals(JarFile.MANIFEST_NAME) || entry.getName().equals(GENERATED_JAR)) {
+                    continue;
+                }
+                out.putNextEntry(new JarEntry(entry.getName()));
+                InputStream is = jar.getInputStream(entry);
+                try {
+                    ByteStreams.copy(is, out);
+                } finally {
+                    Closeables.closeQuietly(is);
+                }
+                out.closeEntry();
+            }
+            out.putNextEntry(new JarEntry(GENERATED_JAR));
+            out.write(toJar(generated));
+            out.closeEntry();
+            threw = false;
+        } finally {
+            jar.close();
+            if (out != null) {
+                Closeables.close(out, threw);
+            }
+            if (threw) {
+                rewritten.delete();
+            }
+        }
+        Files.move(rewritten, s4r);
+        logger.info("Added {} generated classes to S4R [{}]", generated.size(), s4r.getAbsolutePath());
+        return generated.size();
+    }
+
+    /**
+     * Generates the classes of the application classes of an S4R.
+     * 
+     * @return bytecode, by class name, sorted
+     * @throws IOException
+     *             if application jars cannot be read
+     */
+    static Map<String, byte[]> generateClasses(S4RLoader loader) throws IOException {
+        Map<String, byte[]> generated = new TreeMap<String, byte[]>();
+        for (String className : loader.getAppClassNames()) {
+            Class<?> type;
+            try {
+                type = Class.forName(className, false, loader);
+            } catch (Throwable e) {
+                // e.g. classes depending on optional libraries
+                logger.debug("Skipping class [{}]: {}", className, e.getMessage());
+                continue;
+            }
+            if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+                continue;
+            }
+            try {
+                if (ProcessingElement.class.isAssignableFrom(type)) {
+                    generated.put(OverloadDispatcherGenerator.getDispatcherClassName(type),
+                            new OverloadDispatcherGenerator(type).generateBytes());
+                } else if (Event.class.isAssignableFrom(type)) {
+                    addKeyFinders(type.asSubclass(Event.class), generated);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Cannot generate classes for [{}], they will be generated at run-time: {}", className,
+                        e.getMessage());
+            } catch (LinkageError e) {
+                logger.warn("Cannot generate classes for [{}], they will be generated at run-time: {}", className,
+                        e.getMessage());
+            }
+        }
+        return generated;
+    }
+
+    private static <T extends Event> void addKeyFinders(Class<T> eventType, Map<String, byte[]> generated) {
+        for (Field field : eventType.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            byte[] bytes = new KeyFinderGenerator<T>(eventType, field.getName()).generateBytes();
+            if (bytes != null) {
+                generated.put(KeyFinderGenerator.getKeyFinderClassName(eventType, field.getName()), bytes);
+            }
+        }
+    }
+
+    private static byte[] toJar(Map<String, byte[]> classes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream jar = new JarOutputStream(bytes);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            jar.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+            jar.write(entry.getValue());
+            jar.closeEntry();
+        }
+        jar.close();
+        return bytes.toByteArray();
+    }
+}
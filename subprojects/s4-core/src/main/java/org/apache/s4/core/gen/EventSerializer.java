@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
+import com.esotericsoftware.kryo.Serializer;
+
+/**
+ * Base class of the serializers generated by {@link EventSerializerGenerator}.
+ * <p>
+ * Generated subclasses call the field accessors of this class once per field, with the field offset as a constant.
+ * Fields are accessed directly in memory, without reflection. Integral numbers are written as zigzag varints, strings
+ * as a varint length followed by varint chars. Other objects are delegated to kryo.
+ * <p>
+ * Instances are bound to a kryo instance and must not be shared between threads.
+ */
+public abstract class EventSerializer extends Serializer {
+
+    protected static final Unsafe UNSAFE;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    protected final Kryo kryo;
+    private final Constructor<?> constructor;
+
+    protected EventSerializer(Kryo kryo, Class<?> type) {
+        this.kryo = kryo;
+        Constructor<?> noArgConstructor = null;
+        try {
+            noArgConstructor = type.getDeclaredConstructor();
+            noArgConstructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            // fields are all read from the stream anyway
+        }
+        this.constructor = noArgConstructor;
+    }
+
+    /**
+     * Creates instances of classes without a public no-arg constructor, which generated serializers cannot invoke
+     * directly. Classes without any no-arg constructor are instantiated without calling a constructor.
+     */
+    protected final Object newInstance(Class<?> type) {
+        try {
+            if (constructor != null) {
+                return constructor.newInstance();
+            }
+            return UNSAFE.allocateInstance(type);
+        } catch (Exception e) {
+            throw new SerializationException("Cannot create an instance of " + type.getName(), e);
+        }
+    }
+
+    protected final void writeBoolean(ByteBuffer buffer, Object object, long offset) {
+        buffer.put(UNSAFE.getBoolean(object, offset) ? (byte) 1 : (byte) 0);
+    }
+
+    protected final void readBoolean(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putBoolean(object, offset, buffer.get() != 0);
+    }
+
+    protected final void writeByte(ByteBuffer buffer, Object object, long offset) {
+        buffer.put(UNSAFE.getByte(object, offset));
+    }
+
+    protected final void readByte(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putByte(object, offset, buffer.get());
+    }
+
+    protected final void writeShort(ByteBuffer buffer, Object object, long offset) {
+        putVarInt(buffer, UNSAFE.getShort(object, offset));
+    }
+
+    protected final void readShort(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putShort(object, offset, (short) getVarInt(buffer));
+    }
+
+    protected final void writeChar(ByteBuffer buffer, Object object, long offset) {
+        putVarInt(buffer, UNSAFE.getChar(object, offset));
+    }
+
+    protected final void readChar(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putChar(object, offset, (char) getVarInt(buffer));
+    }
+
+    protected final void writeInt(ByteBuffer buffer, Object object, long offset) {
+        putVarInt(buffer, UNSAFE.getInt(object, offset));
+    }
+
+    protected final void readInt(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putInt(object, offset, getVarInt(buffer));
+    }
+
+    protected final void writeLong(ByteBuffer buffer, Object object, long offset) {
+        putVarLong(buffer, UNSAFE.getLong(object, offset));
+    }
+
+    protected final void readLong(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putLong(object, offset, getVarLong(buffer));
+    }
+
+    protected final void writeFloat(ByteBuffer buffer, Object object, long offset) {
+        buffer.putFloat(UNSAFE.getFloat(object, offset));
+    }
+
+    protected final void readFloat(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putFloat(object, offset, buffer.getFloat());
+    }
+
+    protected final void writeDouble(ByteBuffer buffer, Object object, long offset) {
+        buffer.putDouble(UNSAFE.getDouble(object, offset));
+    }
+
+    protected final void readDouble(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putDouble(object, offset, buffer.getDouble());
+    }
+
+    protected final void writeString(ByteBuffer buffer, Object object, long offset) {
+        String value = (String) UNSAFE.getObject(object, offset);
+        if (value == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        int length = value.length();
+        putUnsignedVarInt(buffer, length + 1);
+        for (int i = 0; i < length; i++) {
+            putUnsignedVarInt(buffer, value.charAt(i));
+        }
+    }
+
+    protected final void readString(ByteBuffer buffer, Object object, long offset) {
+        int length = getUnsignedVarInt(buffer) - 1;
+        if (length < 0) {
+            UNSAFE.putObject(object, offset, null);
+            return;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) getUnsignedVarInt(buffer);
+        }
+        UNSAFE.putObject(object, offset, new String(chars));
+    }
+
+    protected final void writeObject(ByteBuffer buffer, Object object, long offset) {
+        kryo.writeClassAndObject(buffer, UNSAFE.getObject(object, offset));
+    }
+
+    protected final void readObject(ByteBuffer buffer, Object object, long offset) {
+        UNSAFE.putObject(object, offset, kryo.readClassAndObject(buffer));
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        putUnsignedVarInt(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        int value = getUnsignedVarInt(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putUnsignedVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getUnsignedVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new SerializationException("Malformed varint");
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        throw new SerializationException("Malformed varint");
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.s4.comm.serialize.KryoSerDeser;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+
+/**
+ * Generates a dedicated kryo {@link Serializer} for a given event class.
+ * <p>
+ * The generated serializer reads and writes each field of the class and its superclasses in turn, in a fixed order,
+ * through the accessors of {@link EventSerializer}. Static, transient and synthetic fields are skipped, as with the
+ * default kryo serializer.
+ * 
+ */
+public class EventSerializerGenerator {
+
+    private static final String BASE_CLASS = Type.getInternalName(EventSerializer.class);
+    private static final String ACCESSOR_DESCRIPTOR = "(" + Type.getDescriptor(ByteBuffer.class)
+            + "Ljava/lang/Object;J)V";
+    private static final String CONSTRUCTOR_DESCRIPTOR = "(" + Type.getDescriptor(Kryo.class) + "Ljava/lang/Class;)V";
+
+    private final Class<?> targetClass;
+
+    public EventSerializerGenerator(Class<?> targetClass) {
+        this.targetClass = targetClass;
+    }
+
+    public Class<?> generate() {
+        String serializerClassName = targetClass.getName().replace('.', '_') + "_Serializer";
+        List<Field> fields = getSerializedFields(targetClass);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, serializerClassName, null, BASE_CLASS, null);
+
+        // constructor, the event class is passed as a parameter since it may not be accessible from the serializer
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", CONSTRUCTOR_DESCRIPTOR, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", CONSTRUCTOR_DESCRIPTOR);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // write
+        mv = cw.visitMethod(ACC_PUBLIC, "writeObjectData", "(" + Type.getDescriptor(ByteBuffer.class)
+                + "Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        for (Field field : fields) {
+            generateFieldAccess(mv, "write", field, 2);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // read
+        mv = cw.visitMethod(ACC_PUBLIC, "readObjectData", "(" + Type.getDescriptor(ByteBuffer.class)
+                + "Ljava/lang/Class;)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        if (hasPublicNoArgConstructor(targetClass)) {
+            mv.visitTypeInsn(NEW, Type.getInternalName(targetClass));
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(targetClass), "<init>", "()V");
+        } else {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, BASE_CLASS, "newInstance", "(Ljava/lang/Class;)Ljava/lang/Object;");
+        }
+        mv.visitVarInsn(ASTORE, 3);
+        for (Field field : fields) {
+            generateFieldAccess(mv, "read", field, 3);
+        }
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        return new GeneratedClassLoader(targetClass.getClassLoader()).loadClassFromBytes(serializerClassName,
+                cw.toByteArray());
+    }
+
+    /**
+     * @return a factory of serializers of the generated class, one per kryo instance
+     */
+    public KryoSerDeser.SerializerFactory generateFactory() {
+        final Constructor<?> constructor;
+        try {
+            constructor = generate().getConstructor(Kryo.class, Class.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+        return new KryoSerDeser.SerializerFactory() {
+            @Override
+            public Serializer newSerializer(Kryo kryo) {
+                try {
+                    return (Serializer) constructor.newInstance(kryo, targetClass);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot create serializer for class " + targetClass.getName(), e);
+                }
+            }
+        };
+    }
+
+    /* this.<read|write><Kind>(buffer, object, offset) */
+    private void generateFieldAccess(MethodVisitor mv, String operation, Field field, int objectVar) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, objectVar);
+        mv.visitLdcInsn(EventSerializer.UNSAFE.objectFieldOffset(field));
+        mv.visitMethodInsn(INVOKEVIRTUAL, BASE_CLASS, operation + accessorKind(field.getType()), ACCESSOR_DESCRIPTOR);
+    }
+
+    private static String accessorKind(Class<?> type) {
+        if (type.isPrimitive()) {
+            String name = type.getName();
+            return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+        return type == String.class ? "String" : "Object";
+    }
+
+    /**
+     * Fields are ordered from the topmost superclass down, and by name within a class, so that all nodes agree on
+     * the serialized form.
+     */
+    static List<Field> getSerializedFields(Class<?> type) {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            hierarchy.add(current);
+        }
+        Collections.reverse(hierarchy);
+
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> current : hierarchy) {
+            List<Field> declared = new ArrayList<Field>();
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    declared.add(field);
+                }
+            }
+            Collections.sort(declared, new Comparator<Field>() {
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            fields.addAll(declared);
+        }
+        return fields;
+    }
+
+    private static boolean hasPublicNoArgConstructor(Class<?> type) {
+        if (!Modifier.isPublic(type.getModifiers()) || Modifier.isAbstract(type.getModifiers())) {
+            return false;
+        }
+        for (Constructor<?> constructor : type.getConstructors()) {
+            if (constructor.getParameterTypes().length == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.s4.base.ArrayKeyFinder;
+import org.apache.s4.base.Event;
+
+import sun.misc.Unsafe;
+
+/**
+ * Base class of the key finders generated by {@link KeyFinderGenerator}.
+ * <p>
+ * Generated subclasses call the accessors of this class once per key field, with the field offset held in a static
+ * final field resolved through {@link #fieldOffset(Class, String, String)} when the subclass is initialized.
+ * Fields are read directly in memory, without reflection, and converted as with {@link String#valueOf(Object)}.
+ */
+public abstract class FieldKeyFinder<T extends Event> implements ArrayKeyFinder<T> {
+
+    private static final Unsafe UNSAFE = EventSerializer.UNSAFE;
+
+    @Override
+    public List<String> get(T event) {
+        return Arrays.asList(getKeyValues(event));
+    }
+
+    protected static long fieldOffset(Class<?> finderClass, String eventClassName, String fieldName) {
+        try {
+            Class<?> eventType = Class.forName(eventClassName, false, finderClass.getClassLoader());
+            return UNSAFE.objectFieldOffset(eventType.getDeclaredField(fieldName));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot find event class of key finder " + finderClass.getName(), e);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Key finder " + finderClass.getName() + " does not match event class "
+                    + eventClassName, e);
+        }
+    }
+
+    protected static String booleanValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getBoolean(event, offset));
+    }
+
+    protected static String byteValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getByte(event, offset));
+    }
+
+    protected static String shortValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getShort(event, offset));
+    }
+
+    protected static String charValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getChar(event, offset));
+    }
+
+    protected static String intValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getInt(event, offset));
+    }
+
+    protected static String longValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getLong(event, offset));
+    }
+
+    protected static String floatValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getFloat(event, offset));
+    }
+
+    protected static String doubleValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getDouble(event, offset));
+    }
+
+    protected static String objectValue(Object event, long offset) {
+        return String.valueOf(UNSAFE.getObject(event, offset));
+    }
+}
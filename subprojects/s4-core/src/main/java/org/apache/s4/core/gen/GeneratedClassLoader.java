@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import org.apache.s4.base.util.S4RLoader;
+
+/**
+ * Defines generated classes in the S4R classloader of the class they relate to if any, or in a child of its
+ * classloader otherwise.
+ */
+class GeneratedClassLoader extends ClassLoader {
+
+    private final ClassLoader parentLoader;
+
+    GeneratedClassLoader(ClassLoader parentLoader) {
+        super(parentLoader);
+        this.parentLoader = parentLoader;
+    }
+
+    /**
+     * @return the class generated ahead of time in the S4R of the given classloader, or null if there is none
+     */
+    static Class<?> findPregeneratedClass(String name, ClassLoader loader) {
+        if (loader instanceof S4RLoader) {
+            return ((S4RLoader) loader).loadPregeneratedClass(name);
+        }
+        return null;
+    }
+
+    Class<?> loadClassFromBytes(String name, byte[] bytes) {
+        if (parentLoader instanceof S4RLoader) {
+            return ((S4RLoader) parentLoader).loadGeneratedClass(name, bytes);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
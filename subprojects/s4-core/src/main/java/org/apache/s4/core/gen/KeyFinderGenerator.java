@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Field;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.GenericKeyFinder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates a key finder that reads the key fields of an event class directly, as a replacement for a
+ * {@link GenericKeyFinder} on the same fields.
+ * <p>
+ * As with {@link GenericKeyFinder}, key names refer to fields declared by the event class itself. Key names that do
+ * not match such a field may be event attributes, which are only known at run-time: no key finder is generated in
+ * that case.
+ * <p>
+ * Key finders can also be generated when packaging the application, see {@link AheadOfTimeGenerator}.
+ * 
+ */
+public class KeyFinderGenerator<T extends Event> {
+
+    private static final String BASE_CLASS = Type.getInternalName(FieldKeyFinder.class);
+    private static final String ACCESSOR_DESCRIPTOR = "(Ljava/lang/Object;J)Ljava/lang/String;";
+    private static final String OFFSET_DESCRIPTOR = "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;)J";
+
+    private final Class<T> eventType;
+    private final String[] keyNames;
+
+    public KeyFinderGenerator(Class<T> eventType, String... keyNames) {
+        this.eventType = eventType;
+        this.keyNames = keyNames;
+    }
+
+    /**
+     * @return the name of the key finder class generated for an event class and key names
+     */
+    public static String getKeyFinderClassName(Class<?> eventType, String... keyNames) {
+        StringBuilder finderClassName = new StringBuilder(eventType.getName().replace('.', '_')).append("_KeyFinder");
+        for (String keyName : keyNames) {
+            // length prefixes keep names unambiguous
+            finderClassName.append('_').append(keyName.length()).append(keyName);
+        }
+        return finderClassName.toString();
+    }
+
+    /**
+     * @return a new key finder, or null if some key names are not fields of the event class
+     */
+    @SuppressWarnings("unchecked")
+    public FieldKeyFinder<T> generate() {
+        String finderClassName = getKeyFinderClassName(eventType, keyNames);
+        Class<?> finderClass = GeneratedClassLoader.findPregeneratedClass(finderClassName,
+                eventType.getClassLoader());
+        if (finderClass == null || !FieldKeyFinder.class.isAssignableFrom(finderClass)) {
+            byte[] bytes = generateBytes();
+            if (bytes == null) {
+                return null;
+            }
+            finderClass = new GeneratedClassLoader(eventType.getClassLoader()).loadClassFromBytes(finderClassName,
+                    bytes);
+        }
+        try {
+            return (FieldKeyFinder<T>) finderClass.newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create key finder for class " + eventType.getName(), e);
+        }
+    }
+
+    /**
+     * Generates the bytecode of the key finder class, named after {@link #getKeyFinderClassName(Class, String...)}.
+     * Field offsets are resolved when the class is initialized, so the bytecode does not depend on the JVM it was
+     * generated in.
+     * 
+     * @return the bytecode, or null if some key names are not fields of the event class
+     */
+    public byte[] generateBytes() {
+        Field[] fields = new Field[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            try {
+                fields[i] = eventType.getDeclaredField(keyNames[i]);
+            } catch (NoSuchFieldException e) {
+                return null;
+            }
+        }
+        String finderClassName = getKeyFinderClassName(eventType, keyNames);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, finderClassName, null, BASE_CLASS, null);
+
+        for (int i = 0; i < fields.length; i++) {
+            cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, "offset" + i, "J", null, null).visitEnd();
+        }
+
+        // offset<i> = fieldOffset(FinderClass.class, "<event class>", "<name>");
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        for (int i = 0; i < fields.length; i++) {
+            mv.visitLdcInsn(Type.getObjectType(finderClassName));
+            mv.visitLdcInsn(eventType.getName());
+            mv.visitLdcInsn(keyNames[i]);
+            mv.visitMethodInsn(INVOKESTATIC, BASE_CLASS, "fieldOffset", OFFSET_DESCRIPTOR);
+            mv.visitFieldInsn(PUTSTATIC, finderClassName, "offset" + i, "J");
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "()V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // String[] values = new String[n]; values[i] = <kind>Value(event, offset<i>); ...
+        mv = cw.visitMethod(ACC_PUBLIC, "getKeyValues", "(" + Type.getDescriptor(Event.class) + ")[Ljava/lang/String;",
+                null, null);
+        mv.visitCode();
+        mv.visitIntInsn(SIPUSH, fields.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (int i = 0; i < fields.length; i++) {
+            mv.visitInsn(DUP);
+            mv.visitIntInsn(SIPUSH, i);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitFieldInsn(GETSTATIC, finderClassName, "offset" + i, "J");
+            mv.visitMethodInsn(INVOKESTATIC, BASE_CLASS, accessorKind(fields[i].getType()) + "Value",
+                    ACCESSOR_DESCRIPTOR);
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String accessorKind(Class<?> type) {
+        return type.isPrimitive() ? type.getName() : "object";
+    }
+}
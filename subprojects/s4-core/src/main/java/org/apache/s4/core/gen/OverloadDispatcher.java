@@ -18,6 +18,8 @@
 
 package org.apache.s4.core.gen;
 
+import java.util.List;
+
 import org.apache.s4.base.Event;
 import org.apache.s4.core.ProcessingElement;
 
@@ -45,6 +47,10 @@ import org.apache.s4.core.ProcessingElement;
  * </ul>
  * </p>
  * <p>
+ * A PE may also accept events in batches by defining a single <code>onEvents(List&lt;SomeEvent&gt; events)</code>
+ * method, to which {@link #dispatchEvents(ProcessingElement, List)} forwards batches of events.
+ * </p>
+ * <p>
  * Implementations of this interface are typically generated at runtime.
  * </p>
  */
@@ -53,4 +59,11 @@ public interface OverloadDispatcher {
     public void dispatchEvent(ProcessingElement pe, Event event);
 
     public void dispatchTrigger(ProcessingElement pe, Event event);
+
+    /**
+     * Passes a batch of events to the <code>onEvents</code> method of the PE.
+     * 
+     * @return false if the PE does not define an <code>onEvents</code> method, in which case nothing was dispatched
+     */
+    public boolean dispatchEvents(ProcessingElement pe, List<? extends Event> events);
 }
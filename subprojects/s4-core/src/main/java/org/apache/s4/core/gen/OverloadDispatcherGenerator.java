@@ -31,6 +31,7 @@ import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
 import static org.objectweb.asm.Opcodes.NEW;
 import static org.objectweb.asm.Opcodes.RETURN;
 import static org.objectweb.asm.Opcodes.V1_6;
@@ -38,13 +39,14 @@ import static org.objectweb.asm.Opcodes.V1_6;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.WildcardType;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.s4.base.Event;
-import org.apache.s4.base.util.S4RLoader;
 import org.apache.s4.core.ProcessingElement;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
@@ -53,6 +55,7 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.MapMaker;
 import com.google.common.io.Files;
 
 /**
@@ -69,13 +72,35 @@ import com.google.common.io.Files;
  * <p>
  * If there is still no match, an error statement is logged and the event is ignored (not processed).
  * </p>
- * 
+ * <p>
+ * If the processing element defines an <code>onEvents</code> method taking a {@link List} of events, the proxy also
+ * forwards batches of events to that method.
+ * </p>
+ * <p>
+ * Dispatchers are generated once per PE class, see {@link #getDispatcher(Class)}. When there are more than a few
+ * methods for a kind of events, the dispatcher switches on the index of the matching method, resolved once per event
+ * class (see {@link TypeIndexedOverloadDispatcher}), instead of testing the event type against each method in turn.
+ * </p>
+ * <p>
+ * Dispatchers can also be generated when packaging the application, see {@link AheadOfTimeGenerator}.
+ * </p>
+ * <p>
+ * Generated classes are written to the temporary directory when the <code>s4.overloadDispatcher.dump</code> system
+ * property is set to true.
+ * </p>
  */
 public class OverloadDispatcherGenerator {
     private final List<Hierarchy> inputEventHierarchies = new ArrayList<Hierarchy>();
     private final List<Hierarchy> outputEventHierarchies = new ArrayList<Hierarchy>();
     private Class<?> targetClass;
-    private static final boolean DUMP = true;
+    private Method batchMethod;
+    private static final boolean DUMP = Boolean.getBoolean("s4.overloadDispatcher.dump");
+    /* methods with more overloads than this dispatch through an index of event types */
+    static final int INDEXED_DISPATCH_THRESHOLD = 4;
+
+    /* dispatchers are stateless and shared by all the PEs of a class */
+    private static final ConcurrentMap<Class<?>, OverloadDispatcher> dispatchers = new MapMaker().weakKeys()
+            .weakValues().makeMap();
 
     public OverloadDispatcherGenerator() {
     }
@@ -90,19 +115,64 @@ public class OverloadDispatcherGenerator {
                 outputEventHierarchies.add(new Hierarchy(method.getParameterTypes()[0]));
             }
         }
+        batchMethod = findBatchMethod(targetClass);
         // order by most specialized types
         Collections.sort(inputEventHierarchies);
         Collections.sort(outputEventHierarchies);
     }
 
+    /**
+     * Returns the dispatcher for a PE class, generating it on first use unless it was packaged in the S4R of the PE
+     * class.
+     */
+    public static OverloadDispatcher getDispatcher(Class<?> targetClass) {
+        OverloadDispatcher dispatcher = dispatchers.get(targetClass);
+        if (dispatcher == null) {
+            synchronized (dispatchers) {
+                dispatcher = dispatchers.get(targetClass);
+                if (dispatcher == null) {
+                    try {
+                        Class<?> dispatcherClass = GeneratedClassLoader.findPregeneratedClass(
+                                getDispatcherClassName(targetClass), targetClass.getClassLoader());
+                        if (dispatcherClass == null || !OverloadDispatcher.class.isAssignableFrom(dispatcherClass)) {
+                            dispatcherClass = new OverloadDispatcherGenerator(targetClass).generate();
+                        }
+                        dispatcher = (OverloadDispatcher) dispatcherClass.newInstance();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Cannot create overload dispatcher for class " + targetClass, e);
+                    }
+                    dispatchers.put(targetClass, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * @return the name of the dispatcher class generated for a PE class
+     */
+    public static String getDispatcherClassName(Class<?> targetClass) {
+        return targetClass.getName().replace('.', '_') + "_OverloadDispatcher";
+    }
+
     public Class<?> generate() {
-        Random rand = new Random(System.currentTimeMillis());
-        String dispatcherClassName = "OverloadDispatcher" + (Math.abs(rand.nextInt() % 3256));
+        return new GeneratedClassLoader(targetClass.getClassLoader()).loadClassFromBytes(
+                getDispatcherClassName(targetClass), generateBytes());
+    }
+
+    /**
+     * @return the bytecode of the dispatcher class, named after {@link #getDispatcherClassName(Class)}
+     */
+    public byte[] generateBytes() {
+        String dispatcherClassName = getDispatcherClassName(targetClass);
+        boolean indexed = inputEventHierarchies.size() > INDEXED_DISPATCH_THRESHOLD
+                || outputEventHierarchies.size() > INDEXED_DISPATCH_THRESHOLD;
+        String superClassName = Type.getInternalName(indexed ? TypeIndexedOverloadDispatcher.class : Object.class);
 
         // class headers
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
         // CheckClassAdapter cw = new CheckClassAdapter(cw1);
-        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, dispatcherClassName, null, Type.getInternalName(Object.class),
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, dispatcherClassName, null, superClassName,
                 new String[] { Type.getInternalName(OverloadDispatcher.class) });
 
         // constructor
@@ -111,21 +181,36 @@ public class OverloadDispatcherGenerator {
         Label l0 = new Label();
         mv1.visitLabel(l0);
         mv1.visitVarInsn(ALOAD, 0);
-        mv1.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        if (indexed) {
+            mv1.visitLdcInsn(Type.getType(targetClass));
+            mv1.visitMethodInsn(Opcodes.INVOKESPECIAL, superClassName, "<init>", "(Ljava/lang/Class;)V");
+        } else {
+            mv1.visitMethodInsn(Opcodes.INVOKESPECIAL, superClassName, "<init>", "()V");
+        }
         Label l1 = new Label();
         mv1.visitLabel(l1);
         mv1.visitInsn(RETURN);
         Label l2 = new Label();
         mv1.visitLabel(l2);
-        mv1.visitLocalVariable("this", "Lio/s4/core/" + dispatcherClassName + ";", null, l0, l2, 0);
-        mv1.visitMaxs(1, 1);
+        mv1.visitLocalVariable("this", "L" + dispatcherClassName + ";", null, l0, l2, 0);
+        mv1.visitMaxs(2, 1);
 
         mv1.visitEnd();
 
         // dispatch input events method
-        generateEventDispatchMethod(cw, "dispatchEvent", inputEventHierarchies, "onEvent");
+        if (inputEventHierarchies.size() > INDEXED_DISPATCH_THRESHOLD) {
+            generateIndexedDispatchMethod(cw, "dispatchEvent", inputEventHierarchies, "onEvent", "eventIndex");
+        } else {
+            generateEventDispatchMethod(cw, "dispatchEvent", inputEventHierarchies, "onEvent");
+        }
         // dispatch output events method
-        generateEventDispatchMethod(cw, "dispatchTrigger", outputEventHierarchies, "onTrigger");
+        if (outputEventHierarchies.size() > INDEXED_DISPATCH_THRESHOLD) {
+            generateIndexedDispatchMethod(cw, "dispatchTrigger", outputEventHierarchies, "onTrigger", "triggerIndex");
+        } else {
+            generateEventDispatchMethod(cw, "dispatchTrigger", outputEventHierarchies, "onTrigger");
+        }
+        // dispatch batches of input events method
+        generateBatchDispatchMethod(cw);
 
         cw.visitEnd();
 
@@ -139,9 +224,51 @@ public class OverloadDispatcherGenerator {
                 e.printStackTrace();
             }
         }
-        return new OverloadDispatcherClassLoader(targetClass.getClassLoader()).loadClassFromBytes(dispatcherClassName,
-                cw.toByteArray());
+        return cw.toByteArray();
+    }
+
+    List<Hierarchy> getInputEventHierarchies() {
+        return inputEventHierarchies;
+    }
+
+    List<Hierarchy> getOutputEventHierarchies() {
+        return outputEventHierarchies;
+    }
 
+    private void generateIndexedDispatchMethod(ClassWriter cw, String dispatchMethodName,
+            List<Hierarchy> eventHierarchies, String processEventMethodName, String indexMethodName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, dispatchMethodName, "("
+                + Type.getType(ProcessingElement.class).getDescriptor() + Type.getType(Event.class).getDescriptor()
+                + ")V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(TypeIndexedOverloadDispatcher.class),
+                indexMethodName, "(Ljava/lang/Class;)I");
+
+        Label noMethod = new Label();
+        Label[] cases = new Label[eventHierarchies.size()];
+        for (int i = 0; i < cases.length; i++) {
+            cases[i] = new Label();
+        }
+        mv.visitTableSwitchInsn(0, cases.length - 1, noMethod, cases);
+        for (int i = 0; i < cases.length; i++) {
+            Class<?> eventType = eventHierarchies.get(i).getTop();
+            mv.visitLabel(cases[i]);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(targetClass));
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(eventType));
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(targetClass), processEventMethodName, "("
+                    + Type.getDescriptor(eventType) + ")V");
+            mv.visitInsn(RETURN);
+        }
+        mv.visitLabel(noMethod);
+        addErrorLogStatement(mv);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(4, 3);
+        mv.visitEnd();
     }
 
     private void generateEventDispatchMethod(ClassWriter cw, String dispatchMethodName,
@@ -200,6 +327,65 @@ public class OverloadDispatcherGenerator {
         mv2.visitEnd();
     }
 
+    private void generateBatchDispatchMethod(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "dispatchEvents", "("
+                + Type.getType(ProcessingElement.class).getDescriptor() + Type.getType(List.class).getDescriptor()
+                + ")Z", null, null);
+        mv.visitCode();
+        if (batchMethod != null) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(targetClass));
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(targetClass), batchMethod.getName(),
+                    Type.getMethodDescriptor(batchMethod));
+            mv.visitInsn(Opcodes.ICONST_1);
+        } else {
+            mv.visitInsn(Opcodes.ICONST_0);
+        }
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(2, 3);
+        mv.visitEnd();
+    }
+
+    /**
+     * Looks for a public <code>void onEvents(List&lt;? extends Event&gt;)</code> method (the parameter may also be
+     * declared as a {@link java.util.Collection} or {@link Iterable}).
+     * 
+     * @return the method or null if there is none
+     */
+    public static Method findBatchMethod(Class<?> targetClass) {
+        for (Method method : targetClass.getMethods()) {
+            if (method.getName().equals("onEvents") && method.getReturnType().equals(Void.TYPE)
+                    && method.getParameterTypes().length == 1
+                    && method.getParameterTypes()[0].isAssignableFrom(List.class)) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the type of the events accepted by the <code>onEvents</code> method of the class, as declared by the
+     *         type parameter of the list, or null if there is no such method.
+     */
+    public static Class<?> getBatchEventType(Class<?> targetClass) {
+        Method method = findBatchMethod(targetClass);
+        if (method == null) {
+            return null;
+        }
+        java.lang.reflect.Type parameterType = method.getGenericParameterTypes()[0];
+        if (parameterType instanceof ParameterizedType) {
+            java.lang.reflect.Type elementType = ((ParameterizedType) parameterType).getActualTypeArguments()[0];
+            if (elementType instanceof WildcardType) {
+                elementType = ((WildcardType) elementType).getUpperBounds()[0];
+            }
+            if (elementType instanceof Class<?> && Event.class.isAssignableFrom((Class<?>) elementType)) {
+                return (Class<?>) elementType;
+            }
+        }
+        return Event.class;
+    }
+
     private void addErrorLogStatement(MethodVisitor mv2) {
         mv2.visitVarInsn(ALOAD, 0);
         mv2.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
@@ -260,56 +446,17 @@ public class OverloadDispatcherGenerator {
             return true;
         }
 
+        /*
+         * Subclasses come before their superclasses, so that events go to the most specific method. A subclass has a
+         * longer hierarchy than any of its superclasses, and hierarchies of the same length are ordered by name, which
+         * makes this a total order as required by sorting.
+         */
         @Override
         public int compareTo(Hierarchy other) {
-            if (this.equals(other)) {
-                return 0;
-            } else if (this.containsClass(other.getTop())) {
-                return -1;
-            }
-
-            return 1;
-        }
-
-        private boolean containsClass(Class<?> other) {
-            for (Class<?> clazz : classes) {
-                if (clazz.equals(other)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-    }
-
-    /**
-     * 
-     * Delegates to S4Classloader if it was used to load the PE prototype class, by passing to S4Classloader the
-     * generated bytecode.
-     * 
-     * Falls back to parent classloader otherwise.
-     * 
-     */
-    private static class OverloadDispatcherClassLoader extends ClassLoader {
-
-        ClassLoader s4AppLoader;
-
-        public OverloadDispatcherClassLoader(ClassLoader s4AppLoader) {
-            this.s4AppLoader = s4AppLoader;
-        }
-
-        public Class<?> loadClassFromBytes(String name, byte[] bytes) {
-
-            if (s4AppLoader instanceof S4RLoader) {
-                return ((S4RLoader) s4AppLoader).loadGeneratedClass(name, bytes);
-            } else {
-                try {
-                    return this.loadClass(name);
-                } catch (ClassNotFoundException cnfe) {
-                    // expected
-                }
-                return this.defineClass(name, bytes, 0, bytes.length);
+            if (classes.size() != other.classes.size()) {
+                return other.classes.size() - classes.size();
             }
+            return getTop().getName().compareTo(other.getTop().getName());
         }
-
     }
 }
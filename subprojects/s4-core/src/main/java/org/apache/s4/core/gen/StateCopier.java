@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import sun.misc.Unsafe;
+
+/**
+ * Base class of the state copiers generated by {@link StateCopierGenerator}.
+ * <p>
+ * Generated subclasses call the accessors of this class once per field, with the field offset as a constant. Fields
+ * are copied directly in memory, without reflection.
+ */
+public abstract class StateCopier {
+
+    private static final Unsafe UNSAFE = EventSerializer.UNSAFE;
+
+    /**
+     * Copies the state fields of an object to another object of the same class, or of a subclass.
+     */
+    public abstract void copy(Object from, Object to);
+
+    protected static void copyBoolean(Object from, Object to, long offset) {
+        UNSAFE.putBoolean(to, offset, UNSAFE.getBoolean(from, offset));
+    }
+
+    protected static void copyByte(Object from, Object to, long offset) {
+        UNSAFE.putByte(to, offset, UNSAFE.getByte(from, offset));
+    }
+
+    protected static void copyShort(Object from, Object to, long offset) {
+        UNSAFE.putShort(to, offset, UNSAFE.getShort(from, offset));
+    }
+
+    protected static void copyChar(Object from, Object to, long offset) {
+        UNSAFE.putChar(to, offset, UNSAFE.getChar(from, offset));
+    }
+
+    protected static void copyInt(Object from, Object to, long offset) {
+        UNSAFE.putInt(to, offset, UNSAFE.getInt(from, offset));
+    }
+
+    protected static void copyLong(Object from, Object to, long offset) {
+        UNSAFE.putLong(to, offset, UNSAFE.getLong(from, offset));
+    }
+
+    protected static void copyFloat(Object from, Object to, long offset) {
+        UNSAFE.putFloat(to, offset, UNSAFE.getFloat(from, offset));
+    }
+
+    protected static void copyDouble(Object from, Object to, long offset) {
+        UNSAFE.putDouble(to, offset, UNSAFE.getDouble(from, offset));
+    }
+
+    protected static void copyObject(Object from, Object to, long offset) {
+        UNSAFE.putObject(to, offset, UNSAFE.getObject(from, offset));
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.s4.core.ProcessingElement;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Generates a {@link StateCopier} that restores the state of a PE class from a checkpoint, as a replacement for
+ * setting each field through reflection.
+ * <p>
+ * The state of a PE is made of the non-static, non-transient fields of its class and of its superclasses up to
+ * {@link ProcessingElement}. Synthetic fields, such as references to enclosing instances, are not part of the state.
+ */
+public class StateCopierGenerator {
+
+    private static final String BASE_CLASS = Type.getInternalName(StateCopier.class);
+    private static final String ACCESSOR_DESCRIPTOR = "(Ljava/lang/Object;Ljava/lang/Object;J)V";
+
+    /* copiers are stateless and shared by all the PEs of a class */
+    private static final ConcurrentMap<Class<?>, StateCopier> copiers = new MapMaker().weakKeys().weakValues()
+            .makeMap();
+
+    private final Class<?> targetClass;
+
+    public StateCopierGenerator(Class<?> targetClass) {
+        this.targetClass = targetClass;
+    }
+
+    /**
+     * Returns the state copier for a PE class, generating it on first use.
+     */
+    public static StateCopier getCopier(Class<?> targetClass) {
+        StateCopier copier = copiers.get(targetClass);
+        if (copier == null) {
+            synchronized (copiers) {
+                copier = copiers.get(targetClass);
+                if (copier == null) {
+                    try {
+                        copier = (StateCopier) new StateCopierGenerator(targetClass).generate().newInstance();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Cannot create state copier for class " + targetClass, e);
+                    }
+                    copiers.put(targetClass, copier);
+                }
+            }
+        }
+        return copier;
+    }
+
+    public Class<?> generate() {
+        String copierClassName = targetClass.getName().replace('.', '_') + "_StateCopier";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, copierClassName, null, BASE_CLASS, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "()V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // copy<Kind>(from, to, offset); ...
+        mv = cw.visitMethod(ACC_PUBLIC, "copy", "(Ljava/lang/Object;Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        for (Field field : getStateFields(targetClass)) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitLdcInsn(EventSerializer.UNSAFE.objectFieldOffset(field));
+            mv.visitMethodInsn(INVOKESTATIC, BASE_CLASS, "copy" + accessorKind(field.getType()), ACCESSOR_DESCRIPTOR);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        return new GeneratedClassLoader(targetClass.getClassLoader()).loadClassFromBytes(copierClassName,
+                cw.toByteArray());
+    }
+
+    private static String accessorKind(Class<?> type) {
+        if (type.isPrimitive()) {
+            String name = type.getName();
+            return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+        return "Object";
+    }
+
+    static List<Field> getStateFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> current = type; current != null && ProcessingElement.class.isAssignableFrom(current); current = current
+                .getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Base class of the dispatchers generated for PEs with many <code>onEvent</code> or <code>onTrigger</code> methods.
+ * <p>
+ * Instead of testing the event against each parameter type in turn, the generated code switches on the index of the
+ * method accepting the event. That index is resolved once per event class, by the same rules as the chain of
+ * <code>instanceof</code> tests, and then cached.
+ */
+public abstract class TypeIndexedOverloadDispatcher implements OverloadDispatcher {
+
+    private static final Integer NO_METHOD = -1;
+
+    private final Class<?>[] eventTypes;
+    private final Class<?>[] triggerTypes;
+    private final ConcurrentMap<Class<?>, Integer> eventIndexes = new ConcurrentHashMap<Class<?>, Integer>();
+    private final ConcurrentMap<Class<?>, Integer> triggerIndexes = new ConcurrentHashMap<Class<?>, Integer>();
+
+    protected TypeIndexedOverloadDispatcher(Class<?> targetClass) {
+        OverloadDispatcherGenerator generator = new OverloadDispatcherGenerator(targetClass);
+        this.eventTypes = topTypes(generator.getInputEventHierarchies());
+        this.triggerTypes = topTypes(generator.getOutputEventHierarchies());
+    }
+
+    /**
+     * @return the index of the <code>onEvent</code> method for events of this class, or -1 if there is none
+     */
+    protected final int eventIndex(Class<?> eventClass) {
+        return index(eventClass, eventTypes, eventIndexes);
+    }
+
+    /**
+     * @return the index of the <code>onTrigger</code> method for events of this class, or -1 if there is none
+     */
+    protected final int triggerIndex(Class<?> eventClass) {
+        return index(eventClass, triggerTypes, triggerIndexes);
+    }
+
+    private static int index(Class<?> eventClass, Class<?>[] types, ConcurrentMap<Class<?>, Integer> indexes) {
+        Integer index = indexes.get(eventClass);
+        if (index == null) {
+            index = NO_METHOD;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i].isAssignableFrom(eventClass)) {
+                    index = i;
+                    break;
+                }
+            }
+            indexes.put(eventClass, index);
+        }
+        return index;
+    }
+
+    private static Class<?>[] topTypes(List<OverloadDispatcherGenerator.Hierarchy> hierarchies) {
+        Class<?>[] types = new Class<?>[hierarchies.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = hierarchies.get(i).getTop();
+        }
+        return types;
+    }
+}
@@ -18,6 +18,7 @@
 
 /**
  * Utility classes for dynamic code generation, in particular proxies to enable dispatching
- * of events to methods of processing elements based on the runtime type of the event.
+ * of events to methods of processing elements based on the runtime type of the event,
+ * dedicated serializers for event classes, and key finders reading event fields directly.
  */
 package org.apache.s4.core.gen;
\ No newline at end of file
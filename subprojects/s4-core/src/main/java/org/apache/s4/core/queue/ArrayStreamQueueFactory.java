@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.queue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Default factory, based on {@link ArrayBlockingQueue}.
+ */
+public class ArrayStreamQueueFactory implements StreamQueueFactory {
+
+    @Inject(optional = true)
+    @Named("s4.stream.queue.capacity")
+    int capacity = 1000;
+
+    @Override
+    public <E> BlockingQueue<E> createQueue() {
+        return new ArrayBlockingQueue<E>(capacity);
+    }
+
+}
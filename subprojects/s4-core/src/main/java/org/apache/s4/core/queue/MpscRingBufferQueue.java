@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded, lock-free, multi-producer / single-consumer queue backed by a preallocated ring buffer.
+ * <p>
+ * Producers claim a slot with a CAS on the tail counter and publish the element by advancing the sequence number of
+ * the slot. The consumer reads the slot when its sequence number shows it was published, then releases it for the next
+ * round. Producers never block each other on a lock and the consumer never takes one.
+ * <p>
+ * Only one thread may consume from the queue at any time ({@link #poll()}, {@link #take()}, {@link #drainTo}), which is
+ * the case for stream lanes. How threads wait for elements, or for free space, depends on the {@link WaitStrategy}.
+ * <p>
+ * The capacity is rounded up to the next power of two.
+ */
+public class MpscRingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * How a thread waits when the queue is empty (consumer) or full (producers).
+     */
+    public enum WaitStrategy {
+        /** Spin for a short while, then park the thread. Lowest CPU usage, highest wake-up latency. */
+        BLOCKING,
+        /** Spin for a short while, then yield the processor between attempts. */
+        YIELDING,
+        /** Spin on the queue. Lowest latency but keeps a core busy: only use it with spare cores. */
+        BUSY_SPIN
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] buffer;
+    /* For each slot, the position it is ready to be written at, or the position plus one once published. */
+    private final AtomicLongArray sequences;
+    /* Next position to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+    /* Next position to be consumed. Only written by the consumer. */
+    private final AtomicLong head = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity
+     *            minimum capacity of the queue
+     * @param waitStrategy
+     *            how to wait for elements or space
+     */
+    public MpscRingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(capacity <= (1 << 30), "Capacity is too large");
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Preconditions.checkNotNull(e);
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = e;
+                    sequences.set(index, position + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                /* the slot still holds the element from the previous round: the queue is full */
+                return false;
+            }
+            /* otherwise another producer claimed this position first, try again */
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        int attempts = 0;
+        while (!offer(e)) {
+            idleProducer(attempts++, PRODUCER_PARK_NANOS);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempts = 0;
+        while (!offer(e)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            idleProducer(attempts++, Math.min(remaining, PRODUCER_PARK_NANOS));
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        sequences.lazySet(index, position + capacity);
+        head.lazySet(position + 1);
+        return e;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        int attempts = 0;
+        E e;
+        while ((e = poll()) == null) {
+            idleConsumer(attempts++, 0);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempts = 0;
+        E e;
+        while ((e = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            idleConsumer(attempts++, remaining);
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return (E) buffer[index];
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Preconditions.checkArgument(c != this);
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        long consumed = head.get();
+        long claimed = tail.get();
+        return (int) Math.max(0, Math.min(claimed - consumed, capacity));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the published elements. The iterator does not support removal.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>(size());
+        long end = tail.get();
+        for (long position = head.get(); position < end; position++) {
+            int index = (int) position & mask;
+            Object e = buffer[index];
+            if (sequences.get(index) == position + 1 && e != null) {
+                snapshot.add((E) e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    private void idleConsumer(int attempts, long timeoutNanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (attempts < SPIN_TRIES || waitStrategy == WaitStrategy.BUSY_SPIN) {
+            return;
+        }
+        if (waitStrategy == WaitStrategy.YIELDING) {
+            Thread.yield();
+            return;
+        }
+        waitingConsumer = Thread.currentThread();
+        /* check again after registering, a producer may have published in the meantime without seeing us */
+        if (peek() == null) {
+            if (timeoutNanos > 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        waitingConsumer = null;
+    }
+
+    private void idleProducer(int attempts, long parkNanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (attempts < SPIN_TRIES || waitStrategy == WaitStrategy.BUSY_SPIN) {
+            return;
+        }
+        if (waitStrategy == WaitStrategy.YIELDING) {
+            Thread.yield();
+            return;
+        }
+        /* the consumer does not signal producers, so we poll at a short interval */
+        LockSupport.parkNanos(this, parkNanos);
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.queue;
+
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.s4.core.queue.MpscRingBufferQueue.WaitStrategy;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Creates lock-free {@link MpscRingBufferQueue} instances.
+ * <p>
+ * The wait strategy is set with the <code>s4.stream.queue.waitStrategy</code> property, one of
+ * <code>BLOCKING</code> (default), <code>YIELDING</code> or <code>BUSY_SPIN</code>.
+ */
+public class RingBufferStreamQueueFactory implements StreamQueueFactory {
+
+    @Inject(optional = true)
+    @Named("s4.stream.queue.capacity")
+    int capacity = 1024;
+
+    @Inject(optional = true)
+    @Named("s4.stream.queue.waitStrategy")
+    String waitStrategy = WaitStrategy.BLOCKING.name();
+
+    @Override
+    public <E> BlockingQueue<E> createQueue() {
+        return new MpscRingBufferQueue<E>(capacity, WaitStrategy.valueOf(waitStrategy.trim().toUpperCase()));
+    }
+
+}
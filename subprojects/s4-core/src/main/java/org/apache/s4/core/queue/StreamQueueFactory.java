@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.queue;
+
+import java.util.concurrent.BlockingQueue;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Creates the queues through which events are passed to stream threads. Each stream lane gets its own queue, fed by
+ * any number of producers (the receiver and PEs emitting events) and consumed by a single thread.
+ * <p>
+ * The implementation is selected with the <code>s4.stream.queue.factory.class</code> configuration property.
+ */
+@ImplementedBy(ArrayStreamQueueFactory.class)
+public interface StreamQueueFactory {
+
+    /**
+     * @return a new bounded queue
+     */
+    <E> BlockingQueue<E> createQueue();
+}
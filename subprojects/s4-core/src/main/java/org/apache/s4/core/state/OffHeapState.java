@@ -0,0 +1,577 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Fixed-size records of primitive state, indexed by key and stored outside of the Java heap.
+ * <p>
+ * This is an alternative to PE instances for PEs whose state per key is a few counters or accumulators: a singleton
+ * PE, or a PE keyed on a coarser key, keeps one record per key in this table instead of one PE instance per key. Keys
+ * and records are stored in slabs, either direct buffers or memory-mapped files, and indexed by an open-addressing
+ * hash table also stored in a direct buffer. There is no Java object per key, so the number of keys does not affect
+ * garbage collection, and each key costs its record, its characters, an 8 bytes header and about 11 bytes of index.
+ * <p>
+ * Records are accessed through typed accessors taking the key and the offset of the value within the record. Reading
+ * a missing key returns zero, writing it creates a zeroed record. For instance, a word counter uses a record of 8
+ * bytes and calls <code>state.addLong(word, 0, 1)</code>.
+ * <p>
+ * This class is not thread-safe. Calls from the event handlers of a PE that is not annotated as thread-safe are
+ * serialized by the PE. The state is not serialized with the PE: it is not checkpointed.
+ */
+public class OffHeapState {
+
+    private static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /* entry layout: [short key length][byte coder][byte unused][int free list link][record][key characters] */
+    private static final int HEADER = 8;
+    private static final int KEY_LENGTH = 0;
+    private static final int CODER = 2;
+    private static final int NEXT_FREE = 4;
+    private static final byte LATIN1 = 0;
+    private static final byte UTF16 = 1;
+
+    /* index entries reference entries by their position divided by 8, plus one */
+    private static final long MAX_POSITION = 0xffffffffL << 3;
+
+    private final int recordSize;
+    private final int slabSize;
+    private final int slabShift;
+    private final File directory;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final List<File> slabFiles = new ArrayList<File>();
+    private long top;
+    /* heads of the lists of free entries, by entry size divided by 8 */
+    private int[] freeLists = new int[0];
+
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+
+    /**
+     * Creates a table with slabs of 16MB allocated with {@link ByteBuffer#allocateDirect(int)}.
+     * 
+     * @param recordSize
+     *            size of the record of each key, in bytes
+     */
+    public OffHeapState(int recordSize) {
+        this(recordSize, DEFAULT_SLAB_SIZE, null);
+    }
+
+    /**
+     * @param recordSize
+     *            size of the record of each key, in bytes
+     * @param slabSize
+     *            size of the memory areas that hold keys and records, a power of two of at least 1KB
+     * @param directory
+     *            if not null, slabs are files mapped in memory, created in this directory and deleted by
+     *            {@link #close()}. The state may then be larger than the memory, which is managed by the operating
+     *            system.
+     */
+    public OffHeapState(int recordSize, int slabSize, File directory) {
+        Preconditions.checkArgument(recordSize >= 0, "Record size cannot be negative");
+        Preconditions.checkArgument(Integer.bitCount(slabSize) == 1 && slabSize >= 1024,
+                "Slab size must be a power of two of at least 1KB");
+        Preconditions.checkArgument(directory == null || directory.isDirectory() || directory.mkdirs(),
+                "Cannot create directory %s", directory);
+        this.recordSize = recordSize;
+        this.slabSize = slabSize;
+        this.slabShift = Integer.numberOfTrailingZeros(slabSize);
+        this.directory = directory;
+        this.capacity = INITIAL_CAPACITY;
+        this.index = allocateIndex(capacity);
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the memory used by slabs and by the index, in bytes
+     */
+    public long getAllocatedBytes() {
+        return (long) slabs.size() * slabSize + (long) capacity * 8;
+    }
+
+    public boolean contains(String key) {
+        return find(key, hash(key)) >= 0;
+    }
+
+    /**
+     * @return the long at this offset in the record of the key, or zero if there is no record for the key
+     */
+    public long getLong(String key, int offset) {
+        checkOffset(offset, 8);
+        long position = find(key, hash(key));
+        return position < 0 ? 0 : slab(position).getLong(recordOffset(position) + offset);
+    }
+
+    public void putLong(String key, int offset, long value) {
+        checkOffset(offset, 8);
+        long position = findOrCreate(key);
+        slab(position).putLong(recordOffset(position) + offset, value);
+    }
+
+    /**
+     * Adds to the long at this offset in the record of the key, creating the record if needed.
+     * 
+     * @return the new value
+     */
+    public long addLong(String key, int offset, long delta) {
+        checkOffset(offset, 8);
+        long position = findOrCreate(key);
+        ByteBuffer slab = slab(position);
+        int valueOffset = recordOffset(position) + offset;
+        long value = slab.getLong(valueOffset) + delta;
+        slab.putLong(valueOffset, value);
+        return value;
+    }
+
+    /**
+     * @return the double at this offset in the record of the key, or zero if there is no record for the key
+     */
+    public double getDouble(String key, int offset) {
+        checkOffset(offset, 8);
+        long position = find(key, hash(key));
+        return position < 0 ? 0 : slab(position).getDouble(recordOffset(position) + offset);
+    }
+
+    public void putDouble(String key, int offset, double value) {
+        checkOffset(offset, 8);
+        long position = findOrCreate(key);
+        slab(position).putDouble(recordOffset(position) + offset, value);
+    }
+
+    /**
+     * Adds to the double at this offset in the record of the key, creating the record if needed.
+     * 
+     * @return the new value
+     */
+    public double addDouble(String key, int offset, double delta) {
+        checkOffset(offset, 8);
+        long position = findOrCreate(key);
+        ByteBuffer slab = slab(position);
+        int valueOffset = recordOffset(position) + offset;
+        double value = slab.getDouble(valueOffset) + delta;
+        slab.putDouble(valueOffset, value);
+        return value;
+    }
+
+    /**
+     * Copies the record of the key to the buffer, which must have enough space remaining for a record. The position
+     * of the buffer is advanced by the record size.
+     * 
+     * @return false if there is no record for the key, in which case the buffer is not modified
+     */
+    public boolean getRecord(String key, ByteBuffer destination) {
+        long position = find(key, hash(key));
+        if (position < 0) {
+            return false;
+        }
+        copyRecord(position, destination);
+        return true;
+    }
+
+    /**
+     * Replaces the record of the key with the next record size bytes of the buffer.
+     */
+    public void putRecord(String key, ByteBuffer source) {
+        Preconditions.checkArgument(source.remaining() >= recordSize, "Buffer holds less than a record");
+        long position = findOrCreate(key);
+        ByteBuffer slab = slab(position);
+        int offset = recordOffset(position);
+        for (int i = 0; i < recordSize; i++) {
+            slab.put(offset + i, source.get());
+        }
+    }
+
+    /**
+     * @return false if there was no record for the key
+     */
+    public boolean remove(String key) {
+        int slot = findSlot(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+        free(position(index.getLong(slot << 3)));
+        removeSlot(slot);
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes all the keys. Allocated memory is kept for new keys.
+     */
+    public void clear() {
+        for (int slot = 0; slot < capacity; slot++) {
+            index.putLong(slot << 3, 0);
+        }
+        size = 0;
+        top = 0;
+        Arrays.fill(freeLists, 0);
+    }
+
+    /**
+     * Releases the slabs and deletes the mapped files. Direct buffers are released when they are garbage collected.
+     */
+    public void close() {
+        slabs.clear();
+        for (File file : slabFiles) {
+            file.delete();
+        }
+        slabFiles.clear();
+        capacity = INITIAL_CAPACITY;
+        index = allocateIndex(capacity);
+        size = 0;
+        top = 0;
+        freeLists = new int[0];
+    }
+
+    /**
+     * Returns a cursor over all the keys, in no particular order. Records can be updated through the cursor, but the
+     * cursor must not be used after keys are added or removed.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Iterates over the records. Call {@link #next()} before reading the first record.
+     */
+    public class Cursor {
+
+        private int slot = -1;
+        private long position;
+
+        Cursor() {
+        }
+
+        /**
+         * Moves to the next record.
+         * 
+         * @return false if there are no more records
+         */
+        public boolean next() {
+            while (++slot < capacity) {
+                long entry = index.getLong(slot << 3);
+                if (entry != 0) {
+                    position = position(entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String getKey() {
+            ByteBuffer slab = slab(position);
+            int offset = entryOffset(position);
+            int length = slab.getShort(offset + KEY_LENGTH) & 0xffff;
+            int keyOffset = offset + HEADER + recordSize;
+            char[] chars = new char[length];
+            if (slab.get(offset + CODER) == LATIN1) {
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char) (slab.get(keyOffset + i) & 0xff);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    chars[i] = slab.getChar(keyOffset + 2 * i);
+                }
+            }
+            return new String(chars);
+        }
+
+        public long getLong(int offset) {
+            checkOffset(offset, 8);
+            return slab(position).getLong(recordOffset(position) + offset);
+        }
+
+        public void putLong(int offset, long value) {
+            checkOffset(offset, 8);
+            slab(position).putLong(recordOffset(position) + offset, value);
+        }
+
+        public double getDouble(int offset) {
+            checkOffset(offset, 8);
+            return slab(position).getDouble(recordOffset(position) + offset);
+        }
+
+        public void putDouble(int offset, double value) {
+            checkOffset(offset, 8);
+            slab(position).putDouble(recordOffset(position) + offset, value);
+        }
+
+        /**
+         * @see OffHeapState#getRecord(String, ByteBuffer)
+         */
+        public void getRecord(ByteBuffer destination) {
+            copyRecord(position, destination);
+        }
+    }
+
+    private void checkOffset(int offset, int length) {
+        if (offset < 0 || offset + length > recordSize) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside of a record of " + recordSize
+                    + " bytes");
+        }
+    }
+
+    private void copyRecord(long position, ByteBuffer destination) {
+        Preconditions.checkArgument(destination.remaining() >= recordSize, "Buffer has less space than a record");
+        ByteBuffer slab = slab(position);
+        int offset = recordOffset(position);
+        for (int i = 0; i < recordSize; i++) {
+            destination.put(slab.get(offset + i));
+        }
+    }
+
+    private ByteBuffer slab(long position) {
+        return slabs.get((int) (position >>> slabShift));
+    }
+
+    private int entryOffset(long position) {
+        return (int) position & (slabSize - 1);
+    }
+
+    private int recordOffset(long position) {
+        return entryOffset(position) + HEADER;
+    }
+
+    private static long position(long entry) {
+        return ((entry & 0xffffffffL) - 1) << 3;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private long find(String key, int hash) {
+        int slot = findSlot(key, hash);
+        return slot < 0 ? -1 : position(index.getLong(slot << 3));
+    }
+
+    /* Returns the slot of the key, or (-1 - slot) where slot is the empty slot where it would be inserted. */
+    private int findSlot(String key, int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            long entry = index.getLong(slot << 3);
+            if (entry == 0) {
+                return -1 - slot;
+            }
+            if ((int) (entry >>> 32) == hash && keyEquals(position(entry), key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(long position, String key) {
+        ByteBuffer slab = slab(position);
+        int offset = entryOffset(position);
+        int length = slab.getShort(offset + KEY_LENGTH) & 0xffff;
+        if (length != key.length()) {
+            return false;
+        }
+        int keyOffset = offset + HEADER + recordSize;
+        if (slab.get(offset + CODER) == LATIN1) {
+            for (int i = 0; i < length; i++) {
+                if ((slab.get(keyOffset + i) & 0xff) != key.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (slab.getChar(keyOffset + 2 * i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long findOrCreate(String key) {
+        int hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot >= 0) {
+            return position(index.getLong(slot << 3));
+        }
+        Preconditions.checkArgument(key.length() <= 0xffff, "Key is longer than 65535 characters");
+        if (size + 1 > capacity - (capacity >>> 2)) {
+            resize();
+            slot = findSlot(key, hash);
+        }
+        byte coder = LATIN1;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) > 0xff) {
+                coder = UTF16;
+                break;
+            }
+        }
+        int keyBytes = coder == LATIN1 ? key.length() : 2 * key.length();
+        long position = allocate(entrySize(keyBytes));
+
+        ByteBuffer slab = slab(position);
+        int offset = entryOffset(position);
+        slab.putShort(offset + KEY_LENGTH, (short) key.length());
+        slab.put(offset + CODER, coder);
+        int recordOffset = offset + HEADER;
+        for (int i = 0; i < recordSize; i++) {
+            slab.put(recordOffset + i, (byte) 0);
+        }
+        int keyOffset = recordOffset + recordSize;
+        if (coder == LATIN1) {
+            for (int i = 0; i < key.length(); i++) {
+                slab.put(keyOffset + i, (byte) key.charAt(i));
+            }
+        } else {
+            for (int i = 0; i < key.length(); i++) {
+                slab.putChar(keyOffset + 2 * i, key.charAt(i));
+            }
+        }
+        index.putLong((-1 - slot) << 3, ((long) hash << 32) | ((position >>> 3) + 1));
+        size++;
+        return position;
+    }
+
+    private int entrySize(int keyBytes) {
+        return (HEADER + recordSize + keyBytes + 7) & ~7;
+    }
+
+    private long allocate(int entrySize) {
+        Preconditions.checkArgument(entrySize <= slabSize, "Entry of %s bytes does not fit in a slab", entrySize);
+        int sizeClass = entrySize >>> 3;
+        if (sizeClass < freeLists.length && freeLists[sizeClass] != 0) {
+            long position = position(freeLists[sizeClass]);
+            freeLists[sizeClass] = slab(position).getInt(entryOffset(position) + NEXT_FREE);
+            return position;
+        }
+        if (entryOffset(top) + entrySize > slabSize) {
+            top = (top | (slabSize - 1)) + 1;
+        }
+        if ((top >>> slabShift) == slabs.size()) {
+            if (top + slabSize > MAX_POSITION) {
+                throw new IllegalStateException("Off-heap state is full");
+            }
+            slabs.add(allocateSlab());
+        }
+        long position = top;
+        top += entrySize;
+        return position;
+    }
+
+    private void free(long position) {
+        ByteBuffer slab = slab(position);
+        int offset = entryOffset(position);
+        int length = slab.getShort(offset + KEY_LENGTH) & 0xffff;
+        int sizeClass = entrySize(slab.get(offset + CODER) == LATIN1 ? length : 2 * length) >>> 3;
+        if (sizeClass >= freeLists.length) {
+            freeLists = Arrays.copyOf(freeLists, Math.max(sizeClass + 1, 2 * freeLists.length));
+        }
+        slab.putInt(offset + NEXT_FREE, freeLists[sizeClass]);
+        freeLists[sizeClass] = (int) ((position >>> 3) + 1);
+    }
+
+    /* Backward shift deletion: moves up the following entries of the probe sequence, no tombstones are needed. */
+    private void removeSlot(int slot) {
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (true) {
+            long entry = index.getLong(next << 3);
+            if (entry == 0) {
+                break;
+            }
+            int ideal = (int) (entry >>> 32) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                index.putLong(hole << 3, entry);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index.putLong(hole << 3, 0);
+    }
+
+    private void resize() {
+        int newCapacity = capacity * 2;
+        Preconditions.checkState(newCapacity <= (1 << 27), "Off-heap state is full");
+        ByteBuffer newIndex = allocateIndex(newCapacity);
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            long entry = index.getLong(slot << 3);
+            if (entry != 0) {
+                int newSlot = (int) (entry >>> 32) & mask;
+                while (newIndex.getLong(newSlot << 3) != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newIndex.putLong(newSlot << 3, entry);
+            }
+        }
+        index = newIndex;
+        capacity = newCapacity;
+    }
+
+    private static ByteBuffer allocateIndex(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+    }
+
+    private ByteBuffer allocateSlab() {
+        if (directory == null) {
+            return ByteBuffer.allocateDirect(slabSize).order(ByteOrder.nativeOrder());
+        }
+        File file = new File(directory, String.format("slab-%08d.state", slabFiles.size()));
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                ByteBuffer slab = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+                slabFiles.add(file);
+                return slab.order(ByteOrder.nativeOrder());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw new IllegalStateException("Cannot map slab file " + file, e);
+        }
+    }
+}
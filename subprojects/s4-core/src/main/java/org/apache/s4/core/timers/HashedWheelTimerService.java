@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.timers;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Timer service based on a hashed timing wheel.
+ * <p>
+ * The wheel is an array of buckets, each covering one tick. A task is placed in the bucket of its deadline, with the
+ * number of wheel rotations to wait before it is due. A single thread advances the wheel every tick and hands the due
+ * tasks to a pool of worker threads. Scheduling and cancelling take constant time whatever the number of tasks, and
+ * deadlines are rounded up to the tick.
+ * <p>
+ * Threads are started on the first scheduled task, and worker threads terminate when idle.
+ */
+@Singleton
+public class HashedWheelTimerService implements TimerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimerService.class);
+
+    @Inject(optional = true)
+    @Named("s4.timer.tickMs")
+    long tickMs = 10;
+
+    @Inject(optional = true)
+    @Named("s4.timer.ticksPerWheel")
+    int ticksPerWheel = 512;
+
+    @Inject(optional = true)
+    @Named("s4.timer.threads")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /* tasks scheduled since the last tick, moved to the wheel by the wheel thread */
+    private final ConcurrentLinkedQueue<Task> pending = new ConcurrentLinkedQueue<Task>();
+    private final Random random = new Random();
+
+    private Task[] wheel;
+    private long tickNanos;
+    private long startTime;
+    private Thread wheelThread;
+    private ThreadPoolExecutor workers;
+    private volatile boolean stopped;
+
+    public HashedWheelTimerService() {
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        return add(new Task(task, 0), timeUnit.toNanos(delay));
+    }
+
+    @Override
+    public Timeout schedulePeriodic(Runnable task, long period, TimeUnit timeUnit) {
+        Preconditions.checkArgument(period > 0, "Period must be positive");
+        long periodNanos = timeUnit.toNanos(period);
+        long delay;
+        synchronized (random) {
+            delay = 1 + (long) (random.nextDouble() * periodNanos);
+        }
+        return add(new Task(task, periodNanos), delay);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        start();
+        workers.execute(new Task(task, 0));
+    }
+
+    private Task add(Task task, long delayNanos) {
+        start();
+        task.deadline = System.nanoTime() - startTime + Math.max(0, delayNanos);
+        pending.add(task);
+        return task;
+    }
+
+    private synchronized void start() {
+        Preconditions.checkState(!stopped, "Timer service is stopped");
+        if (wheelThread != null) {
+            return;
+        }
+        Preconditions.checkState(tickMs > 0 && ticksPerWheel > 0 && threads > 0, "Invalid timer configuration");
+        int wheelSize = 1;
+        while (wheelSize < ticksPerWheel) {
+            wheelSize <<= 1;
+        }
+        wheel = new Task[wheelSize];
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        startTime = System.nanoTime();
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Timer-%d").build());
+        workers.allowCoreThreadTimeOut(true);
+        wheelThread = new Thread(new Worker(), "Timer-wheel");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        if (wheelThread != null) {
+            wheelThread.interrupt();
+            workers.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    private class Worker implements Runnable {
+
+        private long tick;
+
+        @Override
+        public void run() {
+            int mask = wheel.length - 1;
+            while (!stopped) {
+                long deadline = tickNanos * (tick + 1);
+                long sleepNanos = deadline - (System.nanoTime() - startTime);
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+                transferPending();
+                expire((int) tick & mask, deadline);
+                tick++;
+            }
+        }
+
+        private void transferPending() {
+            Task task;
+            while ((task = pending.poll()) != null) {
+                if (task.cancelled) {
+                    continue;
+                }
+                long ticks = (task.deadline + tickNanos - 1) / tickNanos;
+                /* tasks that are already due go to the current bucket */
+                long slot = Math.max(ticks, tick);
+                task.rounds = (slot - tick) / wheel.length;
+                int bucket = (int) slot & (wheel.length - 1);
+                task.next = wheel[bucket];
+                wheel[bucket] = task;
+            }
+        }
+
+        private void expire(int bucket, long deadline) {
+            Task previous = null;
+            Task task = wheel[bucket];
+            while (task != null) {
+                Task next = task.next;
+                if (task.cancelled || (task.rounds <= 0 && task.deadline <= deadline)) {
+                    if (previous == null) {
+                        wheel[bucket] = next;
+                    } else {
+                        previous.next = next;
+                    }
+                    task.next = null;
+                    if (!task.cancelled) {
+                        workers.execute(task);
+                    }
+                } else {
+                    task.rounds--;
+                    previous = task;
+                }
+                task = next;
+            }
+        }
+    }
+
+    private class Task implements Timeout, Runnable {
+
+        final Runnable runnable;
+        final long period;
+        /* nanoseconds since the start of the service */
+        long deadline;
+        long rounds;
+        Task next;
+        volatile boolean cancelled;
+
+        Task(Runnable runnable, long period) {
+            this.runnable = runnable;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                logger.error("Exception from timer task " + runnable, t);
+            }
+            if (period > 0 && !cancelled && !stopped) {
+                /* fixed rate, skipping missed executions */
+                long now = System.nanoTime() - startTime;
+                deadline += period;
+                if (deadline < now) {
+                    deadline += ((now - deadline) / period + 1) * period;
+                }
+                pending.add(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.timers;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Schedules tasks for all the applications of a node, so that timers do not need a thread each.
+ * <p>
+ * Tasks are executed by a shared pool of threads and must not block for long. An execution of a periodic task never
+ * overlaps the previous one: executions that are missed because the task is too slow are skipped.
+ */
+@ImplementedBy(HashedWheelTimerService.class)
+public interface TimerService {
+
+    /**
+     * Executes a task once, after a delay.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit timeUnit);
+
+    /**
+     * Executes a task periodically. The first execution happens after a random delay, up to one period, so that tasks
+     * scheduled at the same time with the same period do not all run at the same instant.
+     */
+    Timeout schedulePeriodic(Runnable task, long period, TimeUnit timeUnit);
+
+    /**
+     * Executes a task as soon as possible on the threads of the service. Used to split the work of a timer task.
+     */
+    void execute(Runnable task);
+
+    /**
+     * Cancels all the tasks and stops the threads of the service.
+     */
+    void stop();
+}
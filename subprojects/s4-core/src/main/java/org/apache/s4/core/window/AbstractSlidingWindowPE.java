@@ -21,20 +21,16 @@ package org.apache.s4.core.window;
 import java.util.Collection;
 import java.util.Map;
 import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections15.buffer.CircularFifoBuffer;
 import org.apache.s4.base.Event;
 import org.apache.s4.core.App;
 import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.timers.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 /**
  * Abstract ProcessingElement that can store historical values using a sliding window. Each set of values is called a
  * slot. Each slot represents a segment of time or a fixed number of events. Slots are consecutive in time or events.
@@ -59,7 +55,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
 
     final private int numSlots;
     private CircularFifoBuffer<T> circularBuffer;
-    final private ScheduledExecutorService windowingTimerService;
+    transient private Timeout slotTimer;
     final private long slotDurationInMilliseconds;
 
     private T openSlot;
@@ -108,13 +104,8 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
         this.slotCapacity = slotCapacity;
         if (slotDuration > 0l) {
             slotDurationInMilliseconds = TimeUnit.MILLISECONDS.convert(slotDuration, timeUnit);
-            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                    .setNameFormat("SlidingWindow-" + getClass().getSimpleName()).build();
-            windowingTimerService = Executors.newSingleThreadScheduledExecutor(threadFactory);
-
         } else {
             slotDurationInMilliseconds = 0;
-            windowingTimerService = null;
         }
     }
 
@@ -128,7 +119,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
      * For count-based windows, we use a trigger that adds a new slot when the current one reaches its maximum capacity.
      */
     public final void onTrigger(Event event) {
-        if (windowingTimerService == null) {
+        if (slotDurationInMilliseconds == 0) {
             if (eventCount % slotCapacity == 0) {
                 addSlot();
             }
@@ -138,9 +129,11 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
     @Override
     protected void initPEPrototypeInternal() {
         super.initPEPrototypeInternal();
-        windowingTimerService.scheduleAtFixedRate(new SlotTask(), slotDurationInMilliseconds,
-                slotDurationInMilliseconds, TimeUnit.MILLISECONDS);
-        logger.trace("TIMER: " + slotDurationInMilliseconds);
+        if (slotDurationInMilliseconds > 0) {
+            slotTimer = getApp().getTimerService().schedulePeriodic(new SlotTask(), slotDurationInMilliseconds,
+                    TimeUnit.MILLISECONDS);
+            logger.trace("TIMER: " + slotDurationInMilliseconds);
+        }
 
     }
 
@@ -157,7 +150,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
      */
     protected final void addSlot() {
 
-        if (windowingTimerService != null) {
+        if (slotDurationInMilliseconds > 0) {
             logger.error("Calling method addSlot() in a periodic window is not allowed.");
             return;
         }
@@ -188,7 +181,9 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
 
     /** Stops the the sliding window. */
     protected void stop() {
-        windowingTimerService.shutdownNow();
+        if (slotTimer != null) {
+            slotTimer.cancel();
+        }
     }
 
     /**
@@ -21,16 +21,24 @@ package org.apache.s4.deploy;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Modifier;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.I0Itec.zkclient.IZkDataListener;
 import org.I0Itec.zkclient.ZkClient;
+import org.I0Itec.zkclient.exception.ZkBadVersionException;
+import org.I0Itec.zkclient.exception.ZkNodeExistsException;
+import org.apache.s4.base.Event;
+import org.apache.s4.base.util.S4RLoader;
 import org.apache.s4.comm.topology.ZNRecord;
 import org.apache.s4.comm.topology.ZNRecordSerializer;
 import org.apache.s4.core.App;
 import org.apache.s4.core.Server;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,17 +72,27 @@ import com.google.inject.name.Named;
  * Then, whenever new app children are detected, the deployment manager re-executes the above steps for those new
  * applications
  * </p>
+ * 
+ * <p>
+ * Before starting an application, event classes found in the application jars of the s4r are registered with the
+ * application serializer, so that they are sent with compact ids. The list of classes, hence the ids, is agreed upon
+ * by all nodes through the <code>classRegistry</code> node, next to the application node: the first node deploying a
+ * given s4r publishes its list, others use it.
+ * </p>
  */
 public class DistributedDeploymentManager implements DeploymentManager {
 
     public static final String S4R_URI = "s4r_uri";
 
+    public static final String EVENT_CLASSES = "eventClasses";
+
     private static Logger logger = LoggerFactory.getLogger(DistributedDeploymentManager.class);
 
     private final String clusterName;
 
     private final ZkClient zkClient;
     private final String appPath;
+    private final String classRegistryPath;
     private final Server server;
     boolean deployed = false;
 
@@ -94,6 +112,7 @@ public class DistributedDeploymentManager implements DeploymentManager {
             zkClient.create(appDir, null, CreateMode.PERSISTENT);
         }
         appPath = appDir + "/s4App";
+        classRegistryPath = appDir + "/classRegistry";
         zkClient.subscribeDataChanges(appPath, new AppChangeListener());
     }
 
@@ -128,6 +147,7 @@ public class DistributedDeploymentManager implements DeploymentManager {
             App loaded = server.loadApp(localS4RFileCopy, appName);
             if (loaded != null) {
                 logger.info("Successfully installed application {}", appName);
+                registerEventClasses(loaded, agreeOnEventClasses(uriString, findEventClasses(loaded)));
                 // TODO sync with other nodes? (e.g. wait for other apps deployed before starting?
                 server.startApp(loaded, appName, clusterName);
             } else {
@@ -143,6 +163,84 @@ public class DistributedDeploymentManager implements DeploymentManager {
         deployed = true;
     }
 
+    /**
+     * Lists concrete event classes from the application jars of the s4r, sorted by name.
+     */
+    private List<String> findEventClasses(App app) throws DeploymentFailedException {
+        List<String> eventClasses = new ArrayList<String>();
+        if (!(app.getClass().getClassLoader() instanceof S4RLoader)) {
+            return eventClasses;
+        }
+        S4RLoader loader = (S4RLoader) app.getClass().getClassLoader();
+        List<String> classNames;
+        try {
+            classNames = loader.getAppClassNames();
+        } catch (IOException e) {
+            throw new DeploymentFailedException("Cannot list application classes", e);
+        }
+        for (String className : classNames) {
+            Class<?> type;
+            try {
+                type = Class.forName(className, false, loader);
+            } catch (Throwable e) {
+                // e.g. classes depending on optional libraries
+                logger.debug("Skipping class [{}]: {}", className, e.getMessage());
+                continue;
+            }
+            if (Event.class.isAssignableFrom(type) && !type.isInterface()
+                    && !Modifier.isAbstract(type.getModifiers())) {
+                eventClasses.add(className);
+            }
+        }
+        return eventClasses;
+    }
+
+    /**
+     * Returns the event classes published in ZooKeeper for the given s4r, publishing the local list if there are
+     * none.
+     */
+    private List<String> agreeOnEventClasses(String uri, List<String> localEventClasses) {
+        ZNRecord localRecord = new ZNRecord("classRegistry");
+        localRecord.putSimpleField(S4R_URI, uri);
+        localRecord.putListField(EVENT_CLASSES, localEventClasses);
+        while (true) {
+            if (!zkClient.exists(classRegistryPath)) {
+                try {
+                    zkClient.createPersistent(classRegistryPath, localRecord);
+                    return localEventClasses;
+                } catch (ZkNodeExistsException e) {
+                    // created concurrently by another node
+                    continue;
+                }
+            }
+            Stat stat = new Stat();
+            ZNRecord record = zkClient.readData(classRegistryPath, stat);
+            if (uri.equals(record.getSimpleField(S4R_URI))) {
+                return record.getListField(EVENT_CLASSES);
+            }
+            // registry from a previously deployed s4r
+            try {
+                zkClient.writeData(classRegistryPath, localRecord, stat.getVersion());
+                return localEventClasses;
+            } catch (ZkBadVersionException e) {
+                // updated concurrently by another node
+            }
+        }
+    }
+
+    private void registerEventClasses(App app, List<String> eventClasses) throws DeploymentFailedException {
+        for (String className : eventClasses) {
+            try {
+                app.registerEventClass(Class.forName(className, true, app.getClass().getClassLoader()).asSubclass(
+                        Event.class));
+            } catch (ClassNotFoundException e) {
+                throw new DeploymentFailedException("Cannot register event class [" + className
+                        + "] agreed upon by the cluster", e);
+            }
+        }
+        logger.info("Registered {} event classes", eventClasses.size());
+    }
+
     // NOTE: in theory, we could support any protocol by implementing a chained visitor scheme,
     // but that's probably not that useful, and we can simply provide whichever protocol is needed
     public InputStream fetchS4App(URI uri) throws DeploymentFailedException {
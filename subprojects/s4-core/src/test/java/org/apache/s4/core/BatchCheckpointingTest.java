@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.CheckpointId;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.CheckpointingConfig;
+import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
+import org.apache.s4.core.ft.SafeKeeper;
+import org.apache.s4.core.ft.StorageCallback;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Event count based checkpointing of PEs processing batches of events.
+ */
+public class BatchCheckpointingTest {
+
+    private CountingSafeKeeper safeKeeper;
+    private BatchPE pe;
+
+    @Before
+    public void setUp() {
+        safeKeeper = new CountingSafeKeeper();
+        TestApp app = new TestApp();
+        app.checkpointingFramework = safeKeeper;
+        pe = new BatchPE();
+        pe.setApp(app);
+        pe.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.EVENT_COUNT).frequency(3).build());
+    }
+
+    @Test
+    public void testBatchCrossingTheFrequency() {
+        pe.handleInputEvents(events(2));
+        Assert.assertEquals(0, safeKeeper.saved);
+
+        // 4 events, the 3rd is in this batch
+        pe.handleInputEvents(events(2));
+        Assert.assertEquals(1, safeKeeper.saved);
+
+        pe.handleInputEvents(events(2));
+        Assert.assertEquals(2, safeKeeper.saved);
+        Assert.assertEquals(6, pe.received);
+    }
+
+    @Test
+    public void testCheckpointedOncePerBatch() {
+        pe.handleInputEvents(events(7));
+        Assert.assertEquals(1, safeKeeper.saved);
+        Assert.assertEquals(7, pe.getEventCount());
+    }
+
+    private static List<Event> events(int count) {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < count; i++) {
+            events.add(new Event());
+        }
+        return events;
+    }
+
+    public static class BatchPE extends ProcessingElement {
+        int received;
+
+        public void onEvent(Event event) {
+            received++;
+        }
+
+        public void onEvents(List<Event> events) {
+            received += events.size();
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    /* Checkpoints as SafeKeeper would, without storing anything. */
+    private static class CountingSafeKeeper implements CheckpointingFramework {
+        private final SafeKeeper safeKeeper = new SafeKeeper();
+        int saved;
+
+        @Override
+        public StorageCallback saveState(ProcessingElement pe) {
+            saved++;
+            return null;
+        }
+
+        @Override
+        public byte[] fetchSerializedState(CheckpointId key) {
+            return null;
+        }
+
+        @Override
+        public boolean isCheckpointable(ProcessingElement pe) {
+            return safeKeeper.isCheckpointable(pe);
+        }
+    }
+
+    private static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
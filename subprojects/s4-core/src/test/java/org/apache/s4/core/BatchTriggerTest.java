@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.NoOpCheckpointingFramework;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Order of onEvents and onTrigger calls for PEs processing batches of events.
+ */
+public class BatchTriggerTest {
+
+    @Test
+    public void testBatchIsSplitAtTriggers() {
+        TestApp app = new TestApp();
+        app.checkpointingFramework = new NoOpCheckpointingFramework();
+        BatchPE pe = new BatchPE();
+        pe.setApp(app);
+        pe.setTrigger(Event.class, 2, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 5; i++) {
+            events.add(new Event());
+        }
+        pe.events = events;
+
+        pe.handleInputEvents(events);
+
+        Assert.assertEquals("[0-1, trigger 1, 2-3, trigger 3, 4-4]", pe.calls.toString());
+        Assert.assertEquals(5, pe.getEventCount());
+    }
+
+    public static class BatchPE extends ProcessingElement {
+        List<Event> events;
+        List<String> calls = new ArrayList<String>();
+
+        public void onEvent(Event event) {
+            calls.add("event " + events.indexOf(event));
+        }
+
+        public void onEvents(List<Event> batch) {
+            calls.add(events.indexOf(batch.get(0)) + "-" + events.indexOf(batch.get(batch.size() - 1)));
+        }
+
+        public void onTrigger(Event event) {
+            calls.add("trigger " + events.indexOf(event));
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    private static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.core.timers.HashedWheelTimerService;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OnTimeSweeperTest {
+
+    public static class TimedPE extends ProcessingElement {
+
+        int onTimeCalls;
+
+        @Override
+        protected void onTime() {
+            onTimeCalls++;
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    @Test
+    public void testParallelSweep() throws InterruptedException {
+        TimedPE prototype = new TimedPE();
+        for (int i = 0; i < 20000; i++) {
+            prototype.getInstanceForKey("key-" + i);
+        }
+        HashedWheelTimerService timerService = new HashedWheelTimerService();
+        OnTimeSweeper sweeper = new OnTimeSweeper(prototype, timerService, true, 1, TimeUnit.SECONDS);
+        sweeper.run();
+        for (int i = 0; i < 500 && sweeper.getSweepCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        timerService.stop();
+
+        Assert.assertEquals(1, sweeper.getSweepCount());
+        Assert.assertTrue(sweeper.getLastSweepNanos() > 0);
+        for (ProcessingElement pe : prototype.getPEInstances().values()) {
+            Assert.assertEquals(1, ((TimedPE) pe).onTimeCalls);
+        }
+    }
+}
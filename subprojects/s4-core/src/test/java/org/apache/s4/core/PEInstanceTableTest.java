@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PEInstanceTableTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PEInstanceTableTest.class);
+
+    public static class CountingPE extends ProcessingElement {
+
+        int created;
+
+        @Override
+        protected void onCreate() {
+            ((CountingPE) getPrototype()).created++;
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    public static class FailingPE extends ProcessingElement {
+
+        @Override
+        protected void onCreate() {
+            if ("bad".equals(getId())) {
+                throw new IllegalStateException("Cannot create instance");
+            }
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    @Test
+    public void testFailedCreationReturnsNull() {
+        for (PEInstanceStore store : new PEInstanceStore[] { new CachePEInstanceStore(), new PEInstanceTable() }) {
+            FailingPE prototype = new FailingPE();
+            prototype.setPEInstanceStore(store);
+            Assert.assertNull(prototype.getInstanceForKey("bad"));
+            Assert.assertNotNull(prototype.getInstanceForKey("good"));
+            Assert.assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void testSameAsMap() {
+        CountingPE prototype = new CountingPE();
+        PEInstanceTable table = new PEInstanceTable(0, 0, TimeUnit.SECONDS, 4);
+        prototype.setPEInstanceStore(table);
+
+        Map<String, ProcessingElement> expected = new HashMap<String, ProcessingElement>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            String id = "key-" + random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                table.remove(id);
+                expected.remove(id);
+            } else {
+                ProcessingElement pe = prototype.getInstanceForKey(id);
+                Assert.assertEquals(id, pe.getId());
+                if (expected.containsKey(id)) {
+                    Assert.assertSame(expected.get(id), pe);
+                } else {
+                    expected.put(id, pe);
+                }
+            }
+            Assert.assertEquals(expected.size(), table.size());
+        }
+        Assert.assertEquals(expected, new HashMap<String, ProcessingElement>(prototype.getPEInstances()));
+        Assert.assertEquals(table.getMissCount(), prototype.created);
+    }
+
+    @Test
+    public void testEvictionKeepsFrequentlyUsedInstances() {
+        CountingPE prototype = new CountingPE();
+        PEInstanceTable table = new PEInstanceTable(1000);
+        prototype.setPEInstanceStore(table);
+
+        for (int i = 0; i < 100000; i++) {
+            prototype.getInstanceForKey("hot-" + (i % 100));
+            prototype.getInstanceForKey("cold-" + i);
+        }
+        Assert.assertTrue(table.size() <= 1100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(table.getIfPresent("hot-" + i));
+        }
+        Assert.assertEquals(200000, table.getHitCount() + table.getMissCount());
+        Assert.assertEquals(table.getMissCount() - table.size(), table.getEvictionCount());
+        logger.info("{} hits, {} misses, {} evictions, {} bytes per entry", new Object[] { table.getHitCount(),
+                table.getMissCount(), table.getEvictionCount(), table.getBytesPerEntry() });
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        CountingPE prototype = new CountingPE();
+        PEInstanceTable table = new PEInstanceTable(0, 50, TimeUnit.MILLISECONDS, 1);
+        prototype.setPEInstanceStore(table);
+
+        ProcessingElement pe = prototype.getInstanceForKey("a");
+        Assert.assertSame(pe, prototype.getInstanceForKey("a"));
+        Thread.sleep(100);
+        Assert.assertNull(table.getIfPresent("a"));
+        Assert.assertNotSame(pe, prototype.getInstanceForKey("a"));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.nio.ByteBuffer;
+
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.comm.serialize.EventMessageCodec;
+import org.apache.s4.comm.serialize.KryoSerDeser;
+import org.apache.s4.wordcount.WordCountEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Events sent to another app are serialized by the node of the producer, and read by the consumer app, which may use
+ * generated serializers for the same event class.
+ */
+public class RemoteEventSerializationTest {
+
+    @Test
+    public void testProducerToConsumerRoundTrip() {
+        ConsumerApp consumer = new ConsumerApp();
+        consumer.registerEventClass(WordCountEvent.class);
+
+        // as in RemoteSenders, with the serializer of the producer node
+        byte[] payload = new KryoSerDeser().serialize(new WordCountEvent("hello", 3));
+        EventMessage sent = new EventMessage(4, 2, ByteBuffer.wrap(payload), true);
+        EventMessage received = EventMessageCodec.decode(EventMessageCodec.encode(sent));
+        Assert.assertTrue(received.isFromOtherApp());
+
+        WordCountEvent event = (WordCountEvent) consumer.getSerDeser(received).deserialize(
+                received.getSerializedEvent());
+        Assert.assertEquals("hello", event.getWord());
+        Assert.assertEquals(3, event.getCount());
+    }
+
+    @Test
+    public void testSameAppMessagesUseRegisteredSerializers() {
+        ConsumerApp app = new ConsumerApp();
+        app.registerEventClass(WordCountEvent.class);
+
+        EventMessage message = EventMessageCodec.decode(EventMessageCodec.encode(new EventMessage(4, 2, app
+                .getSerDeser().serialize(new WordCountEvent("hello", 3)))));
+        Assert.assertFalse(message.isFromOtherApp());
+        Assert.assertSame(app.getSerDeser(), app.getSerDeser(message));
+        WordCountEvent event = (WordCountEvent) app.getSerDeser(message).deserialize(message.getSerializedEvent());
+        Assert.assertEquals("hello", event.getWord());
+    }
+
+    private static class ConsumerApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
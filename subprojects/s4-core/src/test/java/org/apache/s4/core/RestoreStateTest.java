@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RestoreStateTest {
+
+    @Test
+    public void testSameClass() {
+        CounterPE oldState = new CounterPE();
+        oldState.count = 12;
+        oldState.scratch = 3;
+        CounterPE pe = new CounterPE();
+
+        pe.restoreState(oldState);
+        Assert.assertEquals(12, pe.count);
+        Assert.assertEquals(0, pe.scratch);
+    }
+
+    @Test
+    public void testOldStateOfSuperclass() {
+        CounterPE oldState = new CounterPE();
+        oldState.count = 12;
+        WordCounterPE pe = new WordCounterPE();
+        pe.word = "kept";
+
+        pe.restoreState(oldState);
+        // fields of the superclass only
+        Assert.assertEquals(12, pe.count);
+        Assert.assertEquals("kept", pe.word);
+    }
+
+    @Test
+    public void testMismatchedClassIsIgnored() {
+        CounterPE oldState = new CounterPE();
+        oldState.count = 12;
+        OtherPE other = new OtherPE();
+        other.count = 1;
+
+        other.restoreState(oldState);
+        Assert.assertEquals(1, other.count);
+
+        // old state of a subclass
+        WordCounterPE subclassState = new WordCounterPE();
+        subclassState.count = 12;
+        subclassState.word = "word";
+        CounterPE pe = new CounterPE();
+
+        pe.restoreState(subclassState);
+        Assert.assertEquals(0, pe.count);
+    }
+
+    public static class CounterPE extends ProcessingElement {
+        int count;
+        transient int scratch;
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    public static class WordCounterPE extends CounterPE {
+        String word;
+    }
+
+    public static class OtherPE extends ProcessingElement {
+        int count;
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.jcip.annotations.Immutable;
+
+import org.apache.s4.base.Emitter;
+import org.apache.s4.base.Event;
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.KeyFinder;
+import org.apache.s4.core.queue.StreamQueueFactory;
+import org.apache.s4.fixtures.MockCommModule;
+import org.apache.s4.fixtures.MockCoreModule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Puts an immutable event, passed by reference to local PEs, on several streams that are not started.
+ */
+public class SharedEventTest {
+
+    private Injector injector;
+    private TestApp app;
+    private final List<BlockingQueue<EventMessage>> queues = new ArrayList<BlockingQueue<EventMessage>>();
+
+    @Before
+    public void setUp() {
+        // no remote partitions: every message stays local
+        injector = Guice.createInjector(new MockCommModule(), new MockCoreModule());
+        app = injector.getInstance(TestApp.class);
+        app.streamQueueFactory = new StreamQueueFactory() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <E> BlockingQueue<E> createQueue() {
+                BlockingQueue<E> queue = new LinkedBlockingQueue<E>();
+                queues.add((BlockingQueue<EventMessage>) queue);
+                return queue;
+            }
+        };
+        queues.clear();
+    }
+
+    @Test
+    public void testOnlyFirstStreamStampsSharedEvent() {
+        Stream<Event> first = new Stream<Event>(app).setName("first");
+        Stream<Event> second = new Stream<Event>(app).setName("second");
+        SharedEvent event = new SharedEvent();
+
+        first.put(event);
+        second.put(event);
+        Assert.assertEquals("first", event.getStreamName());
+
+        EventMessage byReference = queues.get(0).poll();
+        Assert.assertSame(event, byReference.getEvent());
+        EventMessage copy = queues.get(1).poll();
+        Assert.assertNull(copy.getEvent());
+        Assert.assertEquals(second.getId(), copy.getStreamId());
+        Assert.assertEquals(app.getId(), copy.getAppId());
+    }
+
+    @Test
+    public void testSameStreamPassesByReferenceAgain() {
+        Stream<Event> stream = new Stream<Event>(app).setName("stream");
+        SharedEvent event = new SharedEvent();
+
+        stream.put(event);
+        stream.put(event);
+        Assert.assertSame(event, queues.get(0).poll().getEvent());
+        Assert.assertSame(event, queues.get(0).poll().getEvent());
+    }
+
+    @Test
+    public void testRemoteMessageHasIdOfSendingApp() {
+        app.setId(3);
+        Emitter emitter = injector.getInstance(Emitter.class);
+        Mockito.when(emitter.getPartitionCount()).thenReturn(16);
+        Stream<Event> stream = new Stream<Event>(app).setName("stream").setKey(new KeyFinder<Event>() {
+            @Override
+            public List<String> get(Event event) {
+                return ImmutableList.of("remote");
+            }
+        });
+        // stamped by a stream of another app
+        SharedEvent event = new SharedEvent();
+        event.setStreamId("elsewhere");
+        event.setAppId(7);
+
+        stream.put(event);
+        Assert.assertEquals(7, event.getAppId());
+        ArgumentCaptor<EventMessage> sent = ArgumentCaptor.forClass(EventMessage.class);
+        Mockito.verify(emitter).send(Mockito.anyInt(), sent.capture());
+        Assert.assertEquals(3, sent.getValue().getAppId());
+        Assert.assertTrue(queues.get(0).isEmpty());
+    }
+
+    @Immutable
+    public static class SharedEvent extends Event {
+    }
+
+    static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.NoOpCheckpointingFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class SpillStoreTest {
+
+    public static class CounterPE extends ProcessingElement {
+
+        long count;
+
+        public void onEvent(Event event) {
+            count++;
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+
+        @Override
+        public boolean isDirty() {
+            return true;
+        }
+
+        @Override
+        public byte[] serializeState() {
+            return ByteBuffer.allocate(8).putLong(count).array();
+        }
+
+        @Override
+        public ProcessingElement deserializeState(byte[] loadedState) {
+            CounterPE pe = new CounterPE();
+            pe.count = ByteBuffer.wrap(loadedState).getLong();
+            return pe;
+        }
+
+        @Override
+        public void restoreState(ProcessingElement oldState) {
+            count = ((CounterPE) oldState).count;
+        }
+    }
+
+    private File directory;
+    private SpillStore store;
+
+    @Before
+    public void createStore() {
+        directory = Files.createTempDir();
+        store = new SpillStore(directory, 4096);
+    }
+
+    @After
+    public void closeStore() {
+        store.close();
+        directory.delete();
+    }
+
+    @Test
+    public void testPutAndTake() {
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] state = new byte[random.nextInt(100)];
+            random.nextBytes(state);
+            store.put("key-" + i, state);
+            if (i % 2 == 1) {
+                Assert.assertArrayEquals(state, store.take("key-" + i));
+            }
+        }
+        Assert.assertEquals(500, store.size());
+        Assert.assertNull(store.take("key-1"));
+        Assert.assertEquals(500, store.getReloadCount());
+        Assert.assertEquals(500.0 / 501, store.getHitRate(), 1e-9);
+
+        /* segments of released records are deleted or compacted */
+        for (int i = 0; i < 1000; i += 2) {
+            store.remove("key-" + i);
+        }
+        Assert.assertEquals(0, store.size());
+        Assert.assertTrue(store.getDiskBytes() <= 4096 + 200);
+        store.clear();
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testConcurrentPutAndTake() throws Exception {
+        Thread[] threads = new Thread[4];
+        final AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    for (int i = 0; i < 2000; i++) {
+                        String id = thread + "-" + random.nextInt(50);
+                        byte[] state = new byte[random.nextInt(200)];
+                        random.nextBytes(state);
+                        store.put(id, state);
+                        if (!Arrays.equals(state, store.take(id))) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(0, store.size());
+        Assert.assertTrue(store.getDiskBytes() <= 4096 + 200);
+    }
+
+    @Test
+    public void testEvictedInstancesAreReloaded() {
+        CounterPE prototype = new CounterPE();
+        PEInstanceTable table = new PEInstanceTable(100, 0, TimeUnit.SECONDS, 1, store);
+        prototype.setPEInstanceStore(table);
+
+        Random random = new Random(0);
+        long[] expected = new long[1000];
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(expected.length);
+            ((CounterPE) prototype.getInstanceForKey("key-" + key)).count++;
+            expected[key]++;
+        }
+        Assert.assertTrue(table.size() + store.size() <= expected.length);
+        Assert.assertTrue(store.getReloadCount() > 0);
+        for (int key = 0; key < expected.length; key++) {
+            Assert.assertEquals(expected[key], ((CounterPE) prototype.getInstanceForKey("key-" + key)).count);
+        }
+
+        table.remove("key-0");
+        Assert.assertEquals(0, ((CounterPE) prototype.getInstanceForKey("key-0")).count);
+        table.clear();
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testEventsForEvictedInstanceAreKept() {
+        CounterPE prototype = newPrototype();
+        PEInstanceTable table = new PEInstanceTable(16, 0, TimeUnit.SECONDS, 1, store);
+        prototype.setPEInstanceStore(table);
+
+        // a lane got the instance before its eviction, and processes an event after the state was spilled
+        CounterPE stale = (CounterPE) prototype.getInstanceForKey("a");
+        for (int i = 0; i < 100; i++) {
+            prototype.getInstanceForKey("other-" + i);
+        }
+        Assert.assertNull(table.getIfPresent("a"));
+        stale.handleInputEvent(new Event());
+
+        Assert.assertEquals(1, ((CounterPE) prototype.getInstanceForKey("a")).count);
+    }
+
+    @Test(timeout = 10000)
+    public void testSpillDoesNotBlockSegment() throws Exception {
+        final CounterPE prototype = newPrototype();
+        PEInstanceTable table = new PEInstanceTable(16, 0, TimeUnit.SECONDS, 1, store);
+        prototype.setPEInstanceStore(table);
+
+        final CounterPE busy = (CounterPE) prototype.getInstanceForKey("a");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread lane = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (busy) {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    busy.count += 10;
+                }
+            }
+        });
+        lane.start();
+        locked.await();
+
+        // evicts the busy instance, whose state cannot be saved until the lane is done with it
+        Thread evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    prototype.getInstanceForKey("other-" + i);
+                }
+            }
+        });
+        evictor.start();
+        while (evictor.getState() != Thread.State.BLOCKED) {
+            Thread.sleep(1);
+        }
+
+        // other instances of the segment are still available
+        Assert.assertNotNull(prototype.getInstanceForKey("free"));
+
+        release.countDown();
+        evictor.join();
+        lane.join();
+        Assert.assertEquals(10, ((CounterPE) prototype.getInstanceForKey("a")).count);
+    }
+
+    private static CounterPE newPrototype() {
+        TestApp app = new TestApp();
+        app.checkpointingFramework = new NoOpCheckpointingFramework();
+        CounterPE prototype = new CounterPE();
+        prototype.setApp(app);
+        return prototype;
+    }
+
+    private static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.base.DeliveryState;
+import org.apache.s4.base.Event;
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.KeyFinder;
+import org.apache.s4.comm.DefaultHasher;
+import org.apache.s4.core.queue.StreamQueueFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Offers messages to a stream that is not started, so that queues only fill up.
+ */
+public class StreamOfferTest {
+
+    private TestApp app;
+    private final List<BlockingQueue<?>> queues = new ArrayList<BlockingQueue<?>>();
+
+    @Before
+    public void setUp() {
+        app = new TestApp();
+        app.hasher = new DefaultHasher();
+        // the stream creates a queue, then one per lane: lane 0 holds one message, lane 1 two messages
+        app.streamQueueFactory = new StreamQueueFactory() {
+            @Override
+            public <E> BlockingQueue<E> createQueue() {
+                BlockingQueue<E> queue = new ArrayBlockingQueue<E>(queues.size() % 2 == 1 ? 1 : 2);
+                queues.add(queue);
+                return queue;
+            }
+        };
+        queues.clear();
+    }
+
+    @Test
+    public void testBroadcastResumesWithMissingLanes() {
+        Stream<Event> stream = new Stream<Event>(app).setName("stream").setLanes(2);
+        queues.remove(0);
+        EventMessage first = new EventMessage(0, 0, new Event());
+        EventMessage second = new EventMessage(0, 0, new Event());
+        DeliveryState state = new DeliveryState();
+
+        Assert.assertTrue(stream.offerEvent(first, new DeliveryState()));
+        // lane 0 is full, lane 1 gets the message
+        Assert.assertFalse(stream.offerEvent(second, state));
+        Assert.assertEquals(1, stream.getLaneQueueSize(0));
+        Assert.assertEquals(2, stream.getLaneQueueSize(1));
+
+        queues.get(0).clear();
+        Assert.assertTrue(stream.offerEvent(second, state));
+        Assert.assertEquals(1, stream.getLaneQueueSize(0));
+        Assert.assertEquals(2, stream.getLaneQueueSize(1));
+        Assert.assertTrue(queues.get(0).contains(second));
+    }
+
+    @Test
+    public void testKeyedMessageIsReusedOnRetry() {
+        final AtomicInteger keyLookups = new AtomicInteger();
+        Stream<Event> stream = new Stream<Event>(app).setName("stream").setLanes(2)
+                .setKey(new KeyFinder<Event>() {
+                    @Override
+                    public List<String> get(Event event) {
+                        keyLookups.incrementAndGet();
+                        return ImmutableList.of("key");
+                    }
+                });
+        queues.remove(0);
+        EventMessage message = new EventMessage(0, 0, new Event());
+
+        // fill the lane of the key
+        while (stream.offerEvent(message, new DeliveryState())) {
+        }
+        keyLookups.set(0);
+
+        DeliveryState state = new DeliveryState();
+        Assert.assertFalse(stream.offerEvent(message, state));
+        Assert.assertFalse(stream.offerEvent(message, state));
+        EventMessage keyed = (EventMessage) state.get();
+        Assert.assertNotNull(keyed);
+        Assert.assertEquals(1, keyLookups.get());
+
+        for (BlockingQueue<?> queue : queues) {
+            queue.clear();
+        }
+        Assert.assertTrue(stream.offerEvent(message, state));
+        Assert.assertEquals(1, keyLookups.get());
+        Assert.assertTrue(queues.get(0).contains(keyed) || queues.get(1).contains(keyed));
+    }
+
+    private static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.tcp.TCPEmitter;
+import org.apache.s4.comm.topology.RemoteStreams;
 import org.apache.s4.fixtures.CommTestUtils;
 import org.apache.s4.fixtures.CoreTestUtils;
 import org.apache.s4.fixtures.ZkBasedTest;
@@ -118,8 +119,8 @@ public class FTWordCountTest extends ZkBasedTest {
         Event event;
         event = new Event();
         event.put("sentence", String.class, sentence);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
     }
 
     private void restartNode() throws IOException, InterruptedException {
@@ -30,6 +30,7 @@ import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.tcp.TCPEmitter;
+import org.apache.s4.comm.topology.RemoteStreams;
 import org.apache.s4.comm.topology.ZkClient;
 import org.apache.s4.fixtures.CoreTestUtils;
 import org.apache.s4.fixtures.ZkBasedTest;
@@ -84,8 +85,8 @@ public class RecoveryTest extends ZkBasedTest {
         Event event;
         event = new Event();
         event.put("command", String.class, "checkpoint");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
     }
 
     private void testCheckpointingConfiguration(Class<?> appClass, Class<?> backendModuleClass,
@@ -117,8 +118,8 @@ public class RecoveryTest extends ZkBasedTest {
         Event event = new Event();
         event.put("command", String.class, "setValue1");
         event.put("value", String.class, "message1");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
 
         if (manualCheckpointing) {
             insertCheckpointInstruction(injector, emitter);
@@ -142,8 +143,8 @@ public class RecoveryTest extends ZkBasedTest {
         event = new Event();
         event.put("command", String.class, "setValue2");
         event.put("value", String.class, "message2");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
 
         Assert.assertTrue(signalValue2Set.await(10, TimeUnit.SECONDS));
 
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.util.S4RLoader;
+import org.apache.s4.base.util.S4RLoaderFactory;
+import org.apache.s4.core.ProcessingElement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import com.google.common.io.Files;
+
+/**
+ * Generates the classes of an S4R holding a PE and an event class. These classes are generated by the test, so that
+ * they are not visible from the test classpath and are loaded by the S4R classloader.
+ */
+public class AheadOfTimeGeneratorTest {
+
+    private static final String EVENT_CLASS = "aot.FixtureEvent";
+    private static final String PE_CLASS = "aot.FixturePE";
+
+    private File directory;
+    private File s4r;
+
+    @Before
+    public void createS4R() throws IOException {
+        directory = Files.createTempDir();
+        s4r = new File(directory, "fixture.s4r");
+        ByteArrayOutputStream appJar = new ByteArrayOutputStream();
+        JarOutputStream app = new JarOutputStream(appJar);
+        addClass(app, EVENT_CLASS, eventClass());
+        addClass(app, PE_CLASS, peClass());
+        app.close();
+
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(s4r));
+        out.putNextEntry(new JarEntry("app/fixture.jar"));
+        out.write(appJar.toByteArray());
+        out.closeEntry();
+        out.close();
+    }
+
+    @After
+    public void deleteS4R() {
+        s4r.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testLoadsPregeneratedClasses() throws Exception {
+        S4RLoader before = new S4RLoaderFactory().createS4RLoader(s4r.getAbsolutePath());
+        Assert.assertFalse(isPregenerated(before, keyFinder(before)));
+
+        Assert.assertTrue(AheadOfTimeGenerator.addGeneratedClasses(s4r) >= 2);
+
+        S4RLoader loader = new S4RLoaderFactory().createS4RLoader(s4r.getAbsolutePath());
+        Class<?> peClass = loader.loadClass(PE_CLASS);
+        Assert.assertSame(loader, peClass.getClassLoader());
+        Class<?> dispatcherClass = OverloadDispatcherGenerator.getDispatcher(peClass).getClass();
+        Assert.assertEquals(OverloadDispatcherGenerator.getDispatcherClassName(peClass), dispatcherClass.getName());
+        Assert.assertTrue(isPregenerated(loader, dispatcherClass));
+
+        Class<?> keyFinderClass = keyFinder(loader);
+        Assert.assertEquals(KeyFinderGenerator.getKeyFinderClassName(loader.loadClass(EVENT_CLASS), "name"),
+                keyFinderClass.getName());
+        Assert.assertTrue(isPregenerated(loader, keyFinderClass));
+    }
+
+    @Test
+    public void testRegenerationReplacesGeneratedJar() throws Exception {
+        int generated = AheadOfTimeGenerator.addGeneratedClasses(s4r);
+        Assert.assertEquals(2, countEntries(s4r));
+
+        Assert.assertEquals(generated, AheadOfTimeGenerator.addGeneratedClasses(s4r));
+        Assert.assertEquals(2, countEntries(s4r));
+        S4RLoader loader = new S4RLoaderFactory().createS4RLoader(s4r.getAbsolutePath());
+        Assert.assertTrue(isPregenerated(loader, keyFinder(loader)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<?> keyFinder(S4RLoader loader) throws ClassNotFoundException {
+        Class<Event> eventClass = (Class<Event>) loader.loadClass(EVENT_CLASS);
+        return new KeyFinderGenerator<Event>(eventClass, "name").generate().getClass();
+    }
+
+    /* Classes generated at run-time are defined from bytes, they have no class file in the S4R. */
+    private static boolean isPregenerated(S4RLoader loader, Class<?> type) {
+        URL classFile = loader.getResource(type.getName().replace('.', '/') + ".class");
+        return type.getClassLoader() == loader && classFile != null
+                && classFile.toString().contains(new File(AheadOfTimeGenerator.GENERATED_JAR).getName());
+    }
+
+    private static int countEntries(File s4r) throws IOException {
+        JarFile jar = new JarFile(s4r);
+        try {
+            int count = 0;
+            for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+                String name = entries.nextElement().getName();
+                Assert.assertTrue(name,
+                        name.equals("app/fixture.jar") || name.equals(AheadOfTimeGenerator.GENERATED_JAR));
+                count++;
+            }
+            return count;
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void addClass(JarOutputStream jar, String className, byte[] bytes) throws IOException {
+        jar.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+
+    /* public class FixtureEvent extends Event { private String name; } */
+    private static byte[] eventClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, internalName(EVENT_CLASS), null,
+                Type.getInternalName(Event.class), null);
+        cw.visitField(Opcodes.ACC_PRIVATE, "name", "Ljava/lang/String;", null, null).visitEnd();
+        addConstructor(cw, Event.class);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /* public class FixturePE extends ProcessingElement { public void onEvent(FixtureEvent event) {} ... } */
+    private static byte[] peClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, internalName(PE_CLASS), null,
+                Type.getInternalName(ProcessingElement.class), null);
+        addConstructor(cw, ProcessingElement.class);
+        addEmptyMethod(cw, Opcodes.ACC_PUBLIC, "onEvent", "(L" + internalName(EVENT_CLASS) + ";)V");
+        addEmptyMethod(cw, Opcodes.ACC_PROTECTED, "onCreate", "()V");
+        addEmptyMethod(cw, Opcodes.ACC_PROTECTED, "onRemove", "()V");
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void addConstructor(ClassWriter cw, Class<?> superClass) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(superClass), "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void addEmptyMethod(ClassWriter cw, int access, String name, String descriptor) {
+        MethodVisitor mv = cw.visitMethod(access, name, descriptor, null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static String internalName(String className) {
+        return className.replace('.', '/');
+    }
+}
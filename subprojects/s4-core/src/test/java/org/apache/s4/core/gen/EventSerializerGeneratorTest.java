@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import org.apache.s4.comm.serialize.KryoSerDeser;
+import org.apache.s4.wordcount.WordCountEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventSerializerGeneratorTest {
+
+    @Test
+    public void testRoundTrip() {
+        KryoSerDeser generated = new KryoSerDeser(getClass().getClassLoader());
+        generated.registerClass(WordCountEvent.class,
+                new EventSerializerGenerator(WordCountEvent.class).generateFactory());
+        KryoSerDeser reflective = new KryoSerDeser(getClass().getClassLoader());
+        reflective.registerClass(WordCountEvent.class);
+
+        WordCountEvent event = new WordCountEvent("hello", 42);
+        event.setAppId(3);
+        event.setStreamId("wordCountStream");
+        event.put("language", String.class, "en");
+
+        byte[] bytes = generated.serialize(event);
+        WordCountEvent read = (WordCountEvent) generated.deserialize(bytes);
+        Assert.assertEquals("hello", read.getWord());
+        Assert.assertEquals(42, read.getCount());
+        Assert.assertEquals(3, read.getAppId());
+        Assert.assertEquals("wordCountStream", read.getStreamName());
+        Assert.assertEquals(event.getTime(), read.getTime());
+        Assert.assertEquals("en", read.get("language", String.class));
+
+        Assert.assertTrue(bytes.length <= reflective.serialize(event).length);
+    }
+
+    @Test
+    public void testSameEventAsReflectiveSerializer() {
+        KryoSerDeser generated = new KryoSerDeser(getClass().getClassLoader());
+        generated.registerClass(WordCountEvent.class,
+                new EventSerializerGenerator(WordCountEvent.class).generateFactory());
+        KryoSerDeser reflective = new KryoSerDeser(getClass().getClassLoader());
+        reflective.registerClass(WordCountEvent.class);
+
+        WordCountEvent withAttributes = new WordCountEvent("hello", 42);
+        withAttributes.setStreamId("wordCountStream");
+        withAttributes.put("language", String.class, "en");
+        // null fields and no attributes
+        WordCountEvent empty = new WordCountEvent(null, 0);
+
+        for (WordCountEvent event : new WordCountEvent[] { withAttributes, empty }) {
+            WordCountEvent expected = (WordCountEvent) reflective.deserialize(reflective.serialize(event));
+            WordCountEvent actual = (WordCountEvent) generated.deserialize(generated.serialize(event));
+            Assert.assertEquals(expected.getWord(), actual.getWord());
+            Assert.assertEquals(expected.getCount(), actual.getCount());
+            Assert.assertEquals(expected.getAppId(), actual.getAppId());
+            Assert.assertEquals(expected.getStreamName(), actual.getStreamName());
+            Assert.assertEquals(expected.getTime(), actual.getTime());
+            Assert.assertEquals(expected.hasAttributes(), actual.hasAttributes());
+            if (expected.hasAttributes()) {
+                Assert.assertEquals(expected.getAttributesAsMap(), actual.getAttributesAsMap());
+            }
+        }
+    }
+}
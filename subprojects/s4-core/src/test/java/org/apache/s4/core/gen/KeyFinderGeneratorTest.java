@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.util.Arrays;
+
+import org.apache.s4.base.GenericKeyFinder;
+import org.apache.s4.base.SimpleEvent;
+import org.apache.s4.comm.DefaultHasher;
+import org.apache.s4.core.CompositeKey;
+import org.apache.s4.core.Key;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyFinderGeneratorTest {
+
+    @Test
+    public void testSameKeyAsGenericKeyFinder() {
+        SimpleEvent event = new SimpleEvent("Hello", 28);
+        Key<SimpleEvent> generated = new Key<SimpleEvent>(new KeyFinderGenerator<SimpleEvent>(SimpleEvent.class,
+                "name", "numGrapes").generate(), "^");
+        Key<SimpleEvent> generic = new Key<SimpleEvent>(new GenericKeyFinder<SimpleEvent>(SimpleEvent.class, "name",
+                "numGrapes"), "^");
+
+        Assert.assertEquals("Hello^28", generated.get(event));
+        Assert.assertEquals(generic.get(event), generated.get(event));
+        Assert.assertEquals(generic.getList(event), generated.getList(event));
+        Assert.assertEquals(generic.getCompositeKey(event), generated.getCompositeKey(event));
+    }
+
+    @Test
+    public void testCompositeKeyBehavesAsJoinedString() {
+        SimpleEvent event = new SimpleEvent("Hello", 28);
+        CompositeKey key = new Key<SimpleEvent>(new KeyFinderGenerator<SimpleEvent>(SimpleEvent.class, "name",
+                "numGrapes").generate(), "^").getCompositeKey(event);
+        String joined = "Hello^28";
+
+        Assert.assertEquals(joined.length(), key.length());
+        for (int i = 0; i < joined.length(); i++) {
+            Assert.assertEquals(joined.charAt(i), key.charAt(i));
+        }
+        Assert.assertEquals(joined.hashCode(), key.hashCode());
+        Assert.assertEquals(new DefaultHasher().hash(joined), new DefaultHasher().hash(key));
+        Assert.assertEquals(joined, key.toString());
+
+        /* same characters, different values */
+        Assert.assertEquals(key, new CompositeKey(new String[] { "Hello^2", "8" }, ""));
+        Assert.assertTrue(key.compareTo(new CompositeKey(new String[] { "Hello", "3" }, "^")) < 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGeneratedBytesCanBeLoadedAheadOfTime() throws Exception {
+        String className = KeyFinderGenerator.getKeyFinderClassName(SimpleEvent.class, "name");
+        byte[] bytes = new KeyFinderGenerator<SimpleEvent>(SimpleEvent.class, "name").generateBytes();
+        FieldKeyFinder<SimpleEvent> finder = (FieldKeyFinder<SimpleEvent>) new GeneratedClassLoader(
+                SimpleEvent.class.getClassLoader()).loadClassFromBytes(className, bytes).newInstance();
+
+        Assert.assertEquals(className, finder.getClass().getName());
+        Assert.assertEquals(Arrays.asList("Hello"), finder.get(new SimpleEvent("Hello", 28)));
+    }
+
+    @Test
+    public void testAttributesAreNotGenerated() {
+        Assert.assertNull(new KeyFinderGenerator<SimpleEvent>(SimpleEvent.class, "An Int").generate());
+    }
+}
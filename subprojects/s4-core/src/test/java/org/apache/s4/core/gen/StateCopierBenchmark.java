@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.gen.StateCopierGeneratorTest.StatePE;
+
+/**
+ * Compares the generated state copier with the reflective restore it replaced. Not part of the unit tests, run it as
+ * a main class.
+ */
+public class StateCopierBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        StatePE oldState = StateCopierGeneratorTest.newState();
+        StatePE restored = new StatePE();
+        StateCopier copier = StateCopierGenerator.getCopier(StatePE.class);
+        // warm up, then measure
+        copies(copier, oldState, restored, 100000);
+        reflectiveRestores(oldState, restored, 100000);
+        System.out.println("Generated state copier: " + copies(copier, oldState, restored, 1000000)
+                + " ns per restore");
+        System.out.println("Reflective restore: " + reflectiveRestores(oldState, restored, 1000000)
+                + " ns per restore");
+    }
+
+    private static long copies(StateCopier copier, StatePE oldState, StatePE restored, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            copier.copy(oldState, restored);
+        }
+        return (System.nanoTime() - start) / count;
+    }
+
+    /* as restoreState did before state copiers */
+    private static long reflectiveRestores(StatePE oldState, StatePE restored, int count) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (Class<?> current = oldState.getClass(); ProcessingElement.class.isAssignableFrom(current); current = current
+                    .getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (!Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        field.set(restored, field.get(oldState));
+                    }
+                }
+            }
+        }
+        return (System.nanoTime() - start) / count;
+    }
+}
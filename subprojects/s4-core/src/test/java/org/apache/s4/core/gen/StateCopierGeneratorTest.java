@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.s4.core.ProcessingElement;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StateCopierGeneratorTest {
+
+    @Test
+    public void testCopiesStateOfTheWholeHierarchy() {
+        StatePE oldState = newState();
+        StatePE restored = new StatePE();
+        restored.scratch = 5;
+
+        StateCopierGenerator.getCopier(StatePE.class).copy(oldState, restored);
+
+        Assert.assertEquals(12, restored.count);
+        Assert.assertEquals(5, restored.scratch);
+        Assert.assertTrue(restored.flag);
+        Assert.assertEquals((byte) 1, restored.b);
+        Assert.assertEquals((short) 2, restored.s);
+        Assert.assertEquals('c', restored.c);
+        Assert.assertEquals(3L, restored.l);
+        Assert.assertEquals(4.5f, restored.f, 0);
+        Assert.assertEquals(6.5, restored.d, 0);
+        Assert.assertEquals("word", restored.word);
+        Assert.assertSame(oldState.words, restored.words);
+    }
+
+    @Test
+    public void testCopierIsSharedByClass() {
+        Assert.assertSame(StateCopierGenerator.getCopier(StatePE.class),
+                StateCopierGenerator.getCopier(StatePE.class));
+        Assert.assertNotSame(StateCopierGenerator.getCopier(StatePE.class),
+                StateCopierGenerator.getCopier(CounterPE.class));
+    }
+
+    static StatePE newState() {
+        StatePE state = new StatePE();
+        state.count = 12;
+        state.flag = true;
+        state.b = 1;
+        state.s = 2;
+        state.c = 'c';
+        state.l = 3;
+        state.f = 4.5f;
+        state.d = 6.5;
+        state.word = "word";
+        state.words.add("word");
+        return state;
+    }
+
+    public static class CounterPE extends ProcessingElement {
+        int count;
+        transient int scratch;
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    public static class StatePE extends CounterPE {
+        boolean flag;
+        byte b;
+        short s;
+        char c;
+        long l;
+        float f;
+        double d;
+        String word;
+        List<String> words = new ArrayList<String>();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.overloadgen;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ProcessingElement;
+
+/**
+ * PE with enough overloads to get a dispatcher that switches on event types.
+ */
+public class F extends ProcessingElement {
+
+    public static class Event3 extends Event1 {
+    }
+
+    public static class Event3a extends Event3 {
+    }
+
+    public static class Event4 extends Event2 {
+    }
+
+    public Class<?> processedMethodParameter;
+
+    public void onEvent(Event event) {
+        processedMethodParameter = Event.class;
+    }
+
+    public void onEvent(Event1 event) {
+        processedMethodParameter = Event1.class;
+    }
+
+    public void onEvent(Event1a event) {
+        processedMethodParameter = Event1a.class;
+    }
+
+    public void onEvent(Event2 event) {
+        processedMethodParameter = Event2.class;
+    }
+
+    public void onEvent(Event3 event) {
+        processedMethodParameter = Event3.class;
+    }
+
+    public void onEvent(Event4 event) {
+        processedMethodParameter = Event4.class;
+    }
+
+    @Override
+    protected void onCreate() {
+    }
+
+    @Override
+    protected void onRemove() {
+    }
+}
@@ -21,12 +21,16 @@ package org.apache.s4.core.overloadgen;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
 
+import org.apache.s4.base.Event;
 import org.apache.s4.core.gen.OverloadDispatcher;
 import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+import org.apache.s4.core.gen.TypeIndexedOverloadDispatcher;
 import org.junit.Test;
 
 public class OverloadDispatcherTest {
@@ -77,7 +81,7 @@ public class OverloadDispatcherTest {
             dispatcher.dispatchEvent(b, new Event1());
             String output = tmpOut.toString().trim();
             // use DOTALL to ignore previous lines in output debug mode
-            Assert.assertTrue(Pattern.compile("^.+OverloadDispatcher\\d+ - Cannot dispatch event "
+            Assert.assertTrue(Pattern.compile("^.+_OverloadDispatcher - Cannot dispatch event "
                     + "of type \\[" + Event1.class.getName() + "\\] to PE of type \\[" + B.class.getName()
                     + "\\] : no matching onEvent method found$", Pattern.DOTALL).matcher(output).matches());
         } finally {
@@ -96,4 +100,46 @@ public class OverloadDispatcherTest {
         dispatcher.dispatchEvent(d, new Event1());
         Assert.assertTrue(d.processedEvent1);
     }
+
+    @Test
+    public void testDispatchBatch() throws Exception {
+        Assert.assertEquals(Event1.class, OverloadDispatcherGenerator.getBatchEventType(E.class));
+        OverloadDispatcher dispatcher = (OverloadDispatcher) new OverloadDispatcherGenerator(E.class).generate()
+                .newInstance();
+        E e = new E();
+        Assert.assertTrue(dispatcher.dispatchEvents(e, Arrays.asList(new Event1(), new Event1a())));
+        Assert.assertEquals(1, e.processedBatches);
+        Assert.assertEquals(2, e.processedEvents);
+
+        Assert.assertNull(OverloadDispatcherGenerator.getBatchEventType(A.class));
+        dispatcher = (OverloadDispatcher) new OverloadDispatcherGenerator(A.class).generate().newInstance();
+        Assert.assertFalse(dispatcher.dispatchEvents(new A(), Collections.<Event> singletonList(new Event1())));
+    }
+
+    @Test
+    public void testIndexedDispatch() throws Exception {
+        OverloadDispatcher dispatcher = (OverloadDispatcher) new OverloadDispatcherGenerator(F.class).generate()
+                .newInstance();
+        Assert.assertTrue(dispatcher instanceof TypeIndexedOverloadDispatcher);
+        F f = new F();
+        Event[] events = { new Event(), new Event1(), new Event1a(), new Event2(), new F.Event3(),
+                new F.Event3a(), new F.Event4() };
+        Class<?>[] expected = { Event.class, Event1.class, Event1a.class, Event2.class, F.Event3.class,
+                F.Event3.class, F.Event4.class };
+        for (int i = 0; i < events.length; i++) {
+            dispatcher.dispatchEvent(f, events[i]);
+            Assert.assertEquals(expected[i], f.processedMethodParameter);
+        }
+        // no onTrigger method
+        dispatcher.dispatchTrigger(f, new Event1());
+    }
+
+    @Test
+    public void testDispatcherIsSharedByClass() {
+        OverloadDispatcher dispatcher = OverloadDispatcherGenerator.getDispatcher(A.class);
+        Assert.assertSame(dispatcher, OverloadDispatcherGenerator.getDispatcher(A.class));
+        Assert.assertEquals(OverloadDispatcherGenerator.getDispatcherClassName(A.class), dispatcher.getClass()
+                .getName());
+        Assert.assertNotSame(dispatcher, OverloadDispatcherGenerator.getDispatcher(C.class));
+    }
 }
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.core.queue.MpscRingBufferQueue.WaitStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MpscRingBufferQueueTest {
+
+    @Test
+    public void testBoundedFifo() throws InterruptedException {
+        MpscRingBufferQueue<Integer> queue = new MpscRingBufferQueue<Integer>(3, WaitStrategy.BLOCKING);
+        // capacity is rounded up to 4
+        Assert.assertEquals(4, queue.remainingCapacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertFalse(queue.offer(4, 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(Integer.valueOf(0), queue.peek());
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        Assert.assertTrue(queue.offer(4));
+
+        List<Integer> drained = new ArrayList<Integer>();
+        Assert.assertEquals(3, queue.drainTo(drained, 3));
+        Assert.assertEquals(Integer.valueOf(4), queue.take());
+        Assert.assertEquals("[1, 2, 3]", drained.toString());
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testMultipleProducersBlocking() throws InterruptedException {
+        checkMultipleProducers(WaitStrategy.BLOCKING, 100000);
+    }
+
+    @Test
+    public void testMultipleProducersYielding() throws InterruptedException {
+        checkMultipleProducers(WaitStrategy.YIELDING, 100000);
+    }
+
+    @Test
+    public void testMultipleProducersBusySpin() throws InterruptedException {
+        // spinning threads compete with the consumer when cores are scarce, keep this one short
+        checkMultipleProducers(WaitStrategy.BUSY_SPIN, 1000);
+    }
+
+    private void checkMultipleProducers(WaitStrategy waitStrategy, final int perProducer) throws InterruptedException {
+        final int producers = 4;
+        final MpscRingBufferQueue<long[]> queue = new MpscRingBufferQueue<long[]>(64, waitStrategy);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            queue.put(new long[] { producer, i });
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+
+        // elements of a given producer must come out in order, and none may be lost
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * perProducer; i++) {
+            long[] element = queue.poll(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(element);
+            Assert.assertEquals(next[(int) element[0]]++, element[1]);
+        }
+        Assert.assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.state;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class OffHeapStateTest {
+
+    private void checkSameAsMap(OffHeapState state) {
+        Map<String, Long> expected = new HashMap<String, Long>();
+        Random random = new Random(0);
+        for (int i = 0; i < 200000; i++) {
+            int n = random.nextInt(20000);
+            /* keys of various lengths, some of them not in latin-1 */
+            String key = (n % 7 == 0 ? "\u00e9t\u00e9-\u4e2d-" : "key-") + n + (n % 3 == 0 ? "-long-suffix" : "");
+            switch (random.nextInt(4)) {
+            case 0:
+                Assert.assertEquals(expected.remove(key) != null, state.remove(key));
+                break;
+            case 1:
+                Long value = expected.get(key);
+                Assert.assertEquals(value == null ? 0 : value.longValue(), state.getLong(key, 8));
+                break;
+            default:
+                long count = state.addLong(key, 8, n);
+                expected.put(key, count);
+                state.putDouble(key, 0, count / 2.0);
+            }
+            Assert.assertEquals(expected.size(), state.size());
+        }
+
+        Map<String, Long> actual = new HashMap<String, Long>();
+        for (OffHeapState.Cursor cursor = state.cursor(); cursor.next();) {
+            Assert.assertEquals(cursor.getLong(8) / 2.0, cursor.getDouble(0), 0);
+            actual.put(cursor.getKey(), cursor.getLong(8));
+        }
+        Assert.assertEquals(expected, actual);
+
+        state.clear();
+        Assert.assertEquals(0, state.size());
+        Assert.assertFalse(state.contains("key-1"));
+    }
+
+    @Test
+    public void testDirectSlabs() {
+        checkSameAsMap(new OffHeapState(16, 64 * 1024, null));
+    }
+
+    @Test
+    public void testMappedSlabs() {
+        File directory = Files.createTempDir();
+        OffHeapState state = new OffHeapState(16, 64 * 1024, directory);
+        checkSameAsMap(state);
+        state.close();
+        Assert.assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+    @Test
+    public void testRecords() {
+        OffHeapState state = new OffHeapState(12);
+        ByteBuffer record = ByteBuffer.allocate(12);
+        Assert.assertFalse(state.getRecord("a", record));
+        record.putInt(1).putLong(2).flip();
+        state.putRecord("a", record);
+
+        record.clear();
+        Assert.assertTrue(state.getRecord("a", record));
+        record.flip();
+        Assert.assertEquals(1, record.getInt());
+        Assert.assertEquals(2, record.getLong());
+
+        try {
+            state.getLong("a", 8);
+            Assert.fail("Read past the end of the record");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.timers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashedWheelTimerServiceTest {
+
+    private final HashedWheelTimerService timerService = new HashedWheelTimerService();
+
+    @After
+    public void stop() {
+        timerService.stop();
+    }
+
+    @Test
+    public void testDelays() throws InterruptedException {
+        /* small wheel, so that some tasks wait for several rotations */
+        timerService.ticksPerWheel = 8;
+        final CountDownLatch latch = new CountDownLatch(1000);
+        final AtomicInteger early = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            final long delay = i % 300;
+            final long scheduled = System.nanoTime();
+            timerService.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (System.nanoTime() - scheduled < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        early.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, early.get());
+    }
+
+    @Test
+    public void testPeriodicAndCancel() throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        Timeout timeout = timerService.schedulePeriodic(new Runnable() {
+
+            @Override
+            public void run() {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                count.incrementAndGet();
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                }
+                running.decrementAndGet();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        Thread.sleep(500);
+        timeout.cancel();
+        int executions = count.get();
+        Assert.assertTrue(executions >= 8 && executions <= 20);
+        Assert.assertEquals(0, overlaps.get());
+        Thread.sleep(100);
+        Assert.assertTrue(count.get() <= executions + 1);
+
+        final AtomicInteger cancelled = new AtomicInteger();
+        timerService.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        }, 20, TimeUnit.MILLISECONDS).cancel();
+        Thread.sleep(100);
+        Assert.assertEquals(0, cancelled.get());
+    }
+}
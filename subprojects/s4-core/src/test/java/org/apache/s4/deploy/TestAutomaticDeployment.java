@@ -37,6 +37,7 @@ import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.tcp.TCPEmitter;
+import org.apache.s4.comm.topology.RemoteStreams;
 import org.apache.s4.comm.topology.ZNRecord;
 import org.apache.s4.comm.topology.ZNRecordSerializer;
 import org.apache.s4.fixtures.CommTestUtils;
@@ -132,8 +133,8 @@ public class TestAutomaticDeployment extends ZkBasedTest {
 
         Event event = new Event();
         event.put("line", String.class, time1);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
 
         // check event processed
         Assert.assertTrue(signalEvent1Processed.await(5, TimeUnit.SECONDS));
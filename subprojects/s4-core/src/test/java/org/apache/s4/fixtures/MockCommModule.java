@@ -19,8 +19,10 @@
 package org.apache.s4.fixtures;
 
 import org.apache.s4.base.Hasher;
+import org.apache.s4.base.Partitioner;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.DefaultHasher;
+import org.apache.s4.comm.ModuloPartitioner;
 import org.apache.s4.comm.RemoteEmitterFactory;
 import org.apache.s4.comm.serialize.KryoSerDeser;
 import org.apache.s4.comm.tcp.RemoteEmitters;
@@ -49,6 +51,7 @@ public class MockCommModule extends AbstractModule {
     protected void configure() {
         /* The hashing function to map keys top partitions. */
         bind(Hasher.class).to(DefaultHasher.class);
+        bind(Partitioner.class).to(ModuloPartitioner.class);
         /* Use Kryo to serialize events. */
         bind(SerializerDeserializer.class).to(KryoSerDeser.class);
         bind(RemoteStreams.class).toInstance(Mockito.mock(RemoteStreams.class));
@@ -29,6 +29,7 @@ import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.DefaultCommModule;
 import org.apache.s4.comm.tcp.TCPEmitter;
+import org.apache.s4.comm.topology.RemoteStreams;
 import org.apache.s4.core.DefaultCoreModule;
 import org.apache.s4.core.Main;
 import org.apache.s4.fixtures.CommTestUtils;
@@ -114,8 +115,8 @@ public class WordCountTest extends ZkBasedTest {
     public void injectSentence(String sentence) throws IOException {
         Event event = new Event();
         event.put("sentence", String.class, sentence);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
-                .serialize(event)));
+        emitter.send(0, new EventMessage(-1, injector.getInstance(RemoteStreams.class).getStreamId("inputStream"),
+                injector.getInstance(SerializerDeserializer.class).serialize(event)));
     }
 
 }
@@ -95,6 +95,10 @@ class StreamBuilder<T extends Event> {
         stream.setName(type.getCanonicalName() + "," + keyDescriptor);
     }
 
+    void setLanes(int lanes) {
+        stream.setLanes(lanes);
+    }
+
     // Not all PE may have been created, we use PE Name as a placeholder. The PE prototypes will be assigned in the
     // buildApp() method in AppBuilder.
     void to(String[] peNames) {
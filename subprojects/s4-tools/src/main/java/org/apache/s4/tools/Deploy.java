@@ -87,6 +87,9 @@ public class Deploy extends S4ArgsBase {
                 params.add("appName=" + deployArgs.appName);
                 ExecGradle.exec(deployArgs.gradleBuildFile, "installS4R", params.toArray(new String[] {}));
                 File tmpS4R = new File(tmpAppsDir.getAbsolutePath() + "/" + deployArgs.appName + ".s4r");
+                if (deployArgs.pregenerate) {
+                    Package.pregenerate(tmpS4R);
+                }
                 if (!Strings.isNullOrEmpty(deployArgs.generatedS4R)) {
                     logger.info("Copying generated S4R to [{}]", deployArgs.generatedS4R);
                     s4rToDeploy = new File(deployArgs.generatedS4R);
@@ -146,6 +149,9 @@ public class Deploy extends S4ArgsBase {
         @Parameter(names = "-appName", description = "Name of S4 application.", required = true)
         String appName;
 
+        @Parameter(names = { "-pregenerate" }, description = "Generate PE dispatchers and key finders ahead of time, in the generated s4r", arity = 1, required = false)
+        boolean pregenerate = true;
+
         @Parameter(names = { "-c", "-cluster" }, description = "Logical name of the S4 cluster", required = true)
         String clusterName;
 
@@ -22,6 +22,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.s4.core.gen.AheadOfTimeGenerator;
 import org.apache.s4.tools.Deploy.ExecGradle;
 import org.slf4j.LoggerFactory;
 
@@ -40,8 +41,13 @@ public class Package extends S4ArgsBase {
             // prepare gradle -P parameters, including passed gradle opts
             params.add("appClass=" + packageArgs.appClass);
             params.add("appName=" + packageArgs.appName.get(0));
+            params.add("appsDir=" + packageArgs.appsDir.getAbsolutePath());
             ExecGradle.exec(packageArgs.gradleBuildFile, "installS4R", params.toArray(new String[] {}));
 
+            if (packageArgs.pregenerate) {
+                pregenerate(new File(packageArgs.appsDir, packageArgs.appName.get(0) + ".s4r"));
+            }
+
             // Explicitly shutdown the JVM since Gradle leaves non-daemon threads running that delay the termination
             System.exit(0);
         } catch (Exception e) {
@@ -49,6 +55,20 @@ public class Package extends S4ArgsBase {
         }
     }
 
+    /**
+     * Adds the classes usually generated when the application starts to the s4r. Nodes fall back to generating them
+     * if this fails.
+     */
+    static void pregenerate(File s4r) {
+        try {
+            AheadOfTimeGenerator.addGeneratedClasses(s4r);
+        } catch (Exception e) {
+            LoggerFactory.getLogger(Package.class).warn(
+                    "Cannot add generated classes to s4r [" + s4r.getAbsolutePath()
+                            + "], they will be generated when the application starts", e);
+        }
+    }
+
     @Parameters(commandNames = "package", separators = "=", commandDescription = "Create s4r")
     static class PackageArgs extends S4ArgsBase {
 
@@ -61,5 +81,11 @@ public class Package extends S4ArgsBase {
         @Parameter(names = { "-a", "-appClass" }, description = "Full class name of the application class (extending App or AdapterApp)", required = false)
         String appClass = "";
 
+        @Parameter(names = { "-appsDir" }, description = "Directory where the s4r is created", required = false, converter = FileConverter.class)
+        File appsDir = new File("/tmp/appsDir");
+
+        @Parameter(names = { "-pregenerate" }, description = "Generate PE dispatchers and key finders ahead of time, in the s4r", arity = 1, required = false)
+        boolean pregenerate = true;
+
     }
 }